@@ -0,0 +1,97 @@
+package system;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Utils;
+import util.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how much recording changes in the journal adds to the latency of sending a message,
+ * compared to a system without a journal ("NONE"), for each of the sync policies.
+ * <p>
+ * Each send is followed by consuming the message, so that the quotas are not reached and both
+ * changes are recorded. The journal is kept in the default temporary directory, so the results
+ * for the "ALWAYS" policy depend mostly on how long that disk takes to force a write.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    private static final String SENDER_ID = "sender", RECEIVER_ID = "receiver";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    @Param({"NONE", "NEVER", "INTERVAL", "ALWAYS"})
+    public String syncPolicy;
+
+    private Path directory;
+    private Journal journal;
+    private MessagingSystem messagingSystem;
+    private Session sender, receiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final ConcurrentHashMap<String, AgentInfo> agentInfos = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, TemporaryKey> loginKeys = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+        if (syncPolicy.equals("NONE")) {
+            journal = Journal.DISABLED;
+        } else {
+            directory = Files.createTempDirectory("journal");
+            journal = Journal.open(directory, WriteAheadLog.SyncPolicy.valueOf(syncPolicy), Duration.ofMillis(100));
+        }
+        messagingSystem = MessagingSystem.builder().journal(journal).state(agentInfos, loginKeys, sessions).build();
+        journal.recover(agentInfos, loginKeys, sessions);
+    }
+
+    @Setup(Level.Iteration)
+    public void login() {
+        final String senderKey = Utils.getNRandomCharacters(10), receiverKey = Utils.getNRandomCharacters(10);
+        messagingSystem.registerLoginKey(SENDER_ID, senderKey);
+        messagingSystem.registerLoginKey(RECEIVER_ID, receiverKey);
+        sender = messagingSystem.authenticate(messagingSystem.login(SENDER_ID, senderKey), SENDER_ID);
+        receiver = messagingSystem.authenticate(messagingSystem.login(RECEIVER_ID, receiverKey), RECEIVER_ID);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public Message sendAndConsume() {
+        final StatusCodes status = messagingSystem.sendMessage(sender, RECEIVER_ID, MESSAGE);
+        if (status != StatusCodes.OK) {
+            login(); // quotas reached
+        }
+        return messagingSystem.getNextMessage(receiver);
+    }
+}
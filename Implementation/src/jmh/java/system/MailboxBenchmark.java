@@ -0,0 +1,79 @@
+package system;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures mailbox operations on mailboxes that hold a given number of messages.
+ * Every benchmark puts back as many messages as it takes, so the depth stays the same.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailboxBenchmark {
+
+    private static final String OWNER_ID = "owner", SENDER_ID = "sender", MESSAGE = "message";
+    private static final int BATCH = 16;
+
+    @Param({"0", "1000", "100000"})
+    public int depth;
+
+    private Mailbox mailbox;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        mailbox = new Mailbox(OWNER_ID);
+        message = new Message(SENDER_ID, OWNER_ID, MESSAGE);
+        for (int i = 0; i < depth; i++) {
+            mailbox.addMessage(message);
+        }
+    }
+
+    @Benchmark
+    public Message addAndConsume() {
+        mailbox.addMessage(message);
+        return mailbox.consumeNextMessage();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Message addAndConsumeContended() {
+        mailbox.addMessage(message);
+        return mailbox.consumeNextMessage();
+    }
+
+    @Benchmark
+    public List<Message> addAndConsumeBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            mailbox.addMessage(message);
+        }
+        return mailbox.consumeNextMessages(BATCH);
+    }
+
+    @Benchmark
+    public boolean hasMessages() {
+        return mailbox.hasMessages();
+    }
+
+    @Benchmark
+    public int removeExpiredMessages() {
+        return mailbox.removeExpiredMessages();
+    }
+}
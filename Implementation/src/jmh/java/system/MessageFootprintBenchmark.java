@@ -0,0 +1,100 @@
+package system;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.RandomKeyGenerator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much heap a mailbox of a million messages takes up, per message, with the messages
+ * on the heap or in a {@link MessageStore}. The messages are sent through the system as a servlet
+ * would send them, with the receiver's ID and the text parsed from each request, and a new login
+ * whenever the quotas are reached. The footprint is reported as the "bytesPerMessage" counter.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=2g"})
+@State(Scope.Thread)
+public class MessageFootprintBenchmark {
+
+    private static final int MESSAGES = 1_000_000;
+    private static final int QUOTA = 25;
+    private static final String SENDER_ID = "sender", RECEIVER_ID = "receiver";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog ";
+
+    @Param({"heap", "direct"})
+    public String store;
+
+    private MessageStore messageStore;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerMessage;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (messageStore != null) {
+            messageStore.close();
+            messageStore = null;
+        }
+    }
+
+    @Benchmark
+    public MessagingSystem fillMailbox(Footprint footprint) throws IOException {
+        messageStore = store.equals("direct") ? MessageStore.direct(1L << 30) : null;
+        final MessagingSystem messagingSystem = MessagingSystem.builder()
+                .keyGenerator(new RandomKeyGenerator(ThreadLocalRandom::current))
+                .messageStore(messageStore)
+                .state(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>())
+                .build();
+        Session sender = login(messagingSystem, SENDER_ID, 0);
+        login(messagingSystem, RECEIVER_ID, 0);
+
+        final long before = usedHeap();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i % QUOTA == 0) {
+                sender = login(messagingSystem, SENDER_ID, i);
+                login(messagingSystem, RECEIVER_ID, i);
+            }
+            final String receiverId = new String(RECEIVER_ID.toCharArray()); // as parsed from a request
+            final StatusCodes status = messagingSystem.sendMessage(sender, receiverId, MESSAGE + i);
+            if (status != StatusCodes.OK) {
+                throw new IllegalStateException(status.toString());
+            }
+        }
+        footprint.bytesPerMessage = (usedHeap() - before) / (double) MESSAGES;
+        return messagingSystem;
+    }
+
+    private static Session login(MessagingSystem messagingSystem, String agentId, int round) {
+        final String loginKey = String.format("%09d", round) + agentId.charAt(0);
+        messagingSystem.registerLoginKey(agentId, loginKey);
+        return messagingSystem.authenticate(messagingSystem.login(agentId, loginKey), agentId);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,81 @@
+package system;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding and consuming a message while a million others are queued, with the queued
+ * messages kept on the heap or in a {@link MessageStore}. The latency percentiles show the
+ * collector's pauses, which grow with what is on the heap; run with {@code -prof gc} to see
+ * the time spent collecting.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+@State(Scope.Benchmark)
+public class MessageStoreBenchmark {
+
+    private static final int MAILBOXES = 1000, QUEUED = 1_000_000;
+    private static final String SENDER_ID = "sender";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog ";
+
+    @Param({"heap", "direct", "mapped"})
+    public String store;
+
+    private MessageStore messageStore;
+    private Mailbox[] mailboxes;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (store.equals("direct")) {
+            messageStore = MessageStore.direct(1L << 30);
+        } else if (store.equals("mapped")) {
+            messageStore = MessageStore.mapped(Files.createTempFile("messages", ".slabs"), 1L << 30);
+        }
+        mailboxes = new Mailbox[MAILBOXES];
+        for (int i = 0; i < MAILBOXES; i++) {
+            final String ownerId = "agent" + i;
+            mailboxes[i] = messageStore != null ? messageStore.newMailbox(ownerId) : new Mailbox(ownerId);
+        }
+        for (int i = 0; i < QUEUED; i++) {
+            add(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (messageStore != null) {
+            messageStore.close();
+        }
+    }
+
+    @Benchmark
+    public Message addAndConsume() {
+        final Mailbox mailbox = add(next++);
+        return mailbox.consumeNextMessage(); // the oldest, so the number queued stays the same
+    }
+
+    private Mailbox add(int i) {
+        final Mailbox mailbox = mailboxes[i % MAILBOXES];
+        mailbox.addMessage(new Message(SENDER_ID, mailbox.ownerId, MESSAGE + i, Clock.systemUTC()));
+        return mailbox;
+    }
+}
@@ -0,0 +1,157 @@
+package system;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the public operations of the messaging system. Each thread works with its own
+ * agent, except for the contended variants, where every thread sends to the same agent.
+ * <p>
+ * Sends are subject to the usual quotas, so the send benchmarks include logging the
+ * agent back in after every 25 messages, which is what a busy agent has to do too.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessagingSystemBenchmark {
+
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    @State(Scope.Benchmark)
+    public static class SystemState {
+
+        final ConcurrentHashMap<String, AgentInfo> agentInfos = new ConcurrentHashMap<>();
+        final MessagingSystem messagingSystem = new MessagingSystem(agentInfos);
+        final AtomicInteger agentCount = new AtomicInteger();
+        final String sharedTargetId = "shared-target";
+
+        @Setup
+        public void setUp() {
+            messagingSystem.registerLoginKey(sharedTargetId, Utils.getNRandomCharacters(10));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AgentState {
+
+        String agentId;
+        String[] loginKeys;
+        int nextLoginKey = 0;
+        String sessionKey;
+        Message message;
+
+        @Setup
+        public void setUp(SystemState system) {
+            agentId = "agent-" + system.agentCount.incrementAndGet();
+            // registering alternates between two keys, since a key cannot be registered again while it is valid
+            loginKeys = new String[]{Utils.getNRandomCharacters(10), Utils.getNRandomCharacters(10)};
+            message = new Message(agentId, agentId, MESSAGE);
+            register(system);
+            login(system);
+        }
+
+        boolean register(SystemState system) {
+            nextLoginKey = 1 - nextLoginKey;
+            return system.messagingSystem.registerLoginKey(agentId, loginKeys[nextLoginKey]);
+        }
+
+        String login(SystemState system) {
+            sessionKey = system.messagingSystem.login(agentId, loginKeys[nextLoginKey]);
+            if (sessionKey == null) { // login key expired
+                register(system);
+                sessionKey = system.messagingSystem.login(agentId, loginKeys[nextLoginKey]);
+            }
+            return sessionKey;
+        }
+    }
+
+    @Benchmark
+    public boolean register(SystemState system, AgentState agent) {
+        return agent.register(system);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean registerContended(SystemState system, AgentState agent) {
+        return agent.register(system);
+    }
+
+    @Benchmark
+    public String login(SystemState system, AgentState agent) {
+        return agent.login(system);
+    }
+
+    @Benchmark
+    public StatusCodes send(SystemState system, AgentState agent) {
+        final StatusCodes status = system.messagingSystem.sendMessage(agent.sessionKey, agent.agentId, agent.agentId, MESSAGE);
+        if (status != StatusCodes.OK) {
+            system.agentInfos.get(agent.agentId).mailbox.consumeNextMessages(Integer.MAX_VALUE);
+            agent.login(system);
+        }
+        return status;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public StatusCodes sendContended(SystemState system, AgentState agent) {
+        final StatusCodes status = system.messagingSystem.sendMessage(agent.sessionKey, agent.agentId, system.sharedTargetId, MESSAGE);
+        if (status == StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED) {
+            system.agentInfos.get(system.sharedTargetId).mailbox.consumeNextMessages(Integer.MAX_VALUE);
+        } else if (status != StatusCodes.OK) {
+            agent.login(system);
+        }
+        return status;
+    }
+
+    /**
+     * Consumes a message that was put directly into the agent's mailbox, so that no quota applies.
+     */
+    @Benchmark
+    public Message consume(SystemState system, AgentState agent) {
+        system.agentInfos.get(agent.agentId).mailbox.addMessage(agent.message);
+        final Message message = system.messagingSystem.getNextMessage(agent.sessionKey, agent.agentId);
+        if (message == null) { // session expired
+            agent.login(system);
+        }
+        return message;
+    }
+
+    /**
+     * Runs a whole session of one agent: registering, logging in, sending and consuming
+     * 24 messages, and logging out. Running it with increasing thread counts ({@code -t})
+     * shows how the system scales with independent agents.
+     */
+    @Benchmark
+    public int session(SystemState system, AgentState agent) {
+        agent.register(system);
+        final String sessionKey = agent.login(system);
+        int consumed = 0;
+        for (int i = 0; i < 24; i++) {
+            system.messagingSystem.sendMessage(sessionKey, agent.agentId, agent.agentId, MESSAGE);
+            consumed += system.messagingSystem.getNextMessage(sessionKey, agent.agentId) != null ? 1 : 0;
+        }
+        system.messagingSystem.logout(agent.agentId);
+        return consumed;
+    }
+
+    @Benchmark
+    public boolean loggedIn(SystemState system, AgentState agent) {
+        return system.messagingSystem.agentLoggedIn(agent.agentId);
+    }
+}
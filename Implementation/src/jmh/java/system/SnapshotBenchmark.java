@@ -0,0 +1,120 @@
+package system;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.RandomKeyGenerator;
+import util.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes to recover a system from a snapshot, compared to replaying the journal
+ * of the same changes from the start. Every agent is registered, logged in and sent the given number
+ * of messages, which are all still in its mailbox when the system is recovered.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    @Param({"1000", "100000"})
+    public int agents;
+
+    @Param({"0", "10"})
+    public int messagesPerAgent;
+
+    private Path journalOnly, withSnapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        journalOnly = Files.createTempDirectory("journal");
+        withSnapshot = Files.createTempDirectory("snapshot");
+
+        final ConcurrentHashMap<String, AgentInfo> agentInfos = new ConcurrentHashMap<>();
+        try (Journal journal = Journal.open(journalOnly, WriteAheadLog.SyncPolicy.NEVER, Duration.ZERO)) {
+            final MessagingSystem messagingSystem = MessagingSystem.builder()
+                    .keyGenerator(new RandomKeyGenerator(ThreadLocalRandom::current))
+                    .journal(journal)
+                    .state(agentInfos, new ConcurrentHashMap<>(), new ConcurrentHashMap<>())
+                    .build();
+            journal.recover(agentInfos, new HashMap<>(), new HashMap<>());
+
+            final Session[] sessions = new Session[agents];
+            for (int i = 0; i < agents; i++) {
+                final String agentId = "agent" + i, loginKey = String.format("%010d", i);
+                messagingSystem.registerLoginKey(agentId, loginKey);
+                sessions[i] = messagingSystem.authenticate(messagingSystem.login(agentId, loginKey), agentId);
+            }
+            for (int m = 0; m < messagesPerAgent; m++) {
+                for (int i = 0; i < agents; i++) {
+                    messagingSystem.sendMessage(sessions[i], "agent" + (i + 1) % agents, MESSAGE);
+                }
+            }
+        }
+
+        try (Stream<Path> files = Files.list(journalOnly)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, withSnapshot.resolve(file.getFileName()));
+            }
+        }
+        final ConcurrentHashMap<String, AgentInfo> recovered = new ConcurrentHashMap<>();
+        try (Journal journal = recover(withSnapshot, recovered)) {
+            journal.snapshot(recovered.values());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (final Path directory : new Path[]{journalOnly, withSnapshot}) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<String, AgentInfo> replayJournal() throws IOException {
+        final Map<String, AgentInfo> agentInfos = new HashMap<>();
+        recover(journalOnly, agentInfos).close();
+        return agentInfos;
+    }
+
+    @Benchmark
+    public Map<String, AgentInfo> restoreFromSnapshot() throws IOException {
+        final Map<String, AgentInfo> agentInfos = new HashMap<>();
+        recover(withSnapshot, agentInfos).close();
+        return agentInfos;
+    }
+
+    private static Journal recover(Path directory, Map<String, AgentInfo> agentInfos) throws IOException {
+        final Journal journal = Journal.open(directory, WriteAheadLog.SyncPolicy.NEVER, Duration.ZERO);
+        journal.recover(agentInfos, new HashMap<>(), new HashMap<>());
+        return journal;
+    }
+}
@@ -0,0 +1,77 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the blocked word filter against the regex loop that it replaced, for word lists of
+ * different sizes. One in four messages contains a blocked word.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockedWordFilterBenchmark {
+
+    private static final int MESSAGES = 64;
+
+    @Param({"3", "300", "30000"})
+    public int wordCount;
+
+    private List<String> words;
+    private BlockedWordFilter filter;
+    private String[] messages;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        words = new ArrayList<>(Arrays.asList("recipe", "ginger", "nuclear"));
+        while (words.size() < wordCount) {
+            words.add("w" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+        }
+        filter = new BlockedWordFilter(words);
+
+        messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = Utils.getNRandomCharacters(60) + (i % 4 == 0 ? " Nuclear " : " ") + Utils.getNRandomCharacters(60);
+        }
+    }
+
+    @Benchmark
+    public String filter() {
+        return filter.filter(nextMessage());
+    }
+
+    @Benchmark
+    public String regexLoop() {
+        String message = nextMessage();
+        for (final String word : words) {
+            message = message.replaceAll("(?i)" + Pattern.quote(word) + "\\s?", "");
+        }
+        return message;
+    }
+
+    private String nextMessage() {
+        next = (next + 1) % MESSAGES;
+        return messages[next];
+    }
+}
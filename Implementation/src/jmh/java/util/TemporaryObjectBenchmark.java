@@ -0,0 +1,49 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the expiry checks that every key and message goes through.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TemporaryObjectBenchmark {
+
+    private final TemporaryObject<String> temporaryObject = new TemporaryObject<String>(
+            "object", Instant.now().plus(Duration.ofDays(1)), Clock.systemUTC()) {
+    };
+
+    @Benchmark
+    public boolean isExpired() {
+        return temporaryObject.isExpired();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isExpiredContended() {
+        return temporaryObject.isExpired();
+    }
+
+    @Benchmark
+    public String getTempObject() {
+        return temporaryObject.getTempObject();
+    }
+}
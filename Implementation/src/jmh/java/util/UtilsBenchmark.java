@@ -0,0 +1,41 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the generation of login keys (10 characters) and session keys (50 characters).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UtilsBenchmark {
+
+    @Param({"10", "50"})
+    public int length;
+
+    @Benchmark
+    public String getNRandomCharacters() {
+        return Utils.getNRandomCharacters(length);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getNRandomCharactersContended() {
+        return Utils.getNRandomCharacters(length);
+    }
+}
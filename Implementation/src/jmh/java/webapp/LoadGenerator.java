@@ -0,0 +1,352 @@
+package webapp;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import system.MessagingSystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives the web application with simulated agents over plain HTTP, as a browser would, and
+ * reports the throughput and latency percentiles of each endpoint. The server is started in
+ * this process, as {@link StartJettyHandler} would start it, so the system properties of the
+ * server and the messaging system apply; {@code -Dserver.port=0} picks a free port.
+ * <p>
+ * The agents work in pairs, each pair on one worker thread. In every round both agents
+ * register, log in, send each other messages, read the messages sent to them and log out,
+ * keeping the cookies of each agent apart. Redirects are not followed: each request goes
+ * straight to the page that the redirect would lead to. The first rounds warm the server up
+ * and are not reported.
+ * <p>
+ * A worker thread runs one pair at a time, one request at a time, so the concurrency is set by
+ * {@code load.threads} alone: at most twice that many agents are active at once, however many
+ * agents there are. The load is set by these system properties:
+ * <ul>
+ * <li>{@code load.agents}: the number of agents that take turns in each round (2000 by default).</li>
+ * <li>{@code load.threads}: the number of worker threads, and so of requests in flight at once (64 by default).</li>
+ * <li>{@code load.messages}: the number of messages each agent sends per round (10 by default).</li>
+ * <li>{@code load.rounds}: the number of rounds reported (3 by default).</li>
+ * <li>{@code load.warmupRounds}: the number of rounds not reported (1 by default).</li>
+ * </ul>
+ * Run it from the benchmarks jar with
+ * {@code java -Dserver.port=0 -cp target/benchmarks.jar webapp.LoadGenerator}.
+ */
+public final class LoadGenerator {
+
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    private enum Endpoint {REGISTER, LOGIN, SEND, READ, LOGOUT}
+
+    private final String baseUrl;
+    private final int agents;
+    private final int messages;
+    private final String runId = Long.toString(System.nanoTime(), 36); // so that every run has new agents
+
+    private LoadGenerator(String baseUrl, int agents, int messages) {
+        this.baseUrl = baseUrl;
+        this.agents = agents;
+        this.messages = messages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int agents = Math.max(2, Integer.getInteger("load.agents", 2000)) / 2 * 2;
+        final int threads = Integer.getInteger("load.threads", 64);
+        final int messages = Integer.getInteger("load.messages", 10);
+        final int rounds = Integer.getInteger("load.rounds", 3);
+        final int warmupRounds = Integer.getInteger("load.warmupRounds", 1);
+        System.setProperty("http.maxConnections", Integer.toString(threads)); // kept alive, per server
+
+        final MessagingSystem messagingSystem = StartJettyHandler.createMessagingSystem();
+        final Server server = StartJettyHandler.createServer(ServerConfig.load(), messagingSystem);
+        server.start();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            final int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+            System.out.println("Server configuration: " + ServerConfig.describe(server));
+            System.out.println(agents + " agents, " + threads + " threads, " + messages + " messages per round, "
+                    + warmupRounds + " warm-up and " + rounds + " measured rounds");
+
+            final LoadGenerator generator = new LoadGenerator("http://localhost:" + port, agents, messages);
+            generator.run(workers, warmupRounds, 0);
+            final long start = System.nanoTime();
+            final Samples[] samples = generator.run(workers, rounds, warmupRounds);
+            report(samples, System.nanoTime() - start);
+        } finally {
+            workers.shutdownNow();
+            server.stop();
+        }
+    }
+
+    /**
+     * Runs the given rounds for every pair of agents, spread over the workers.
+     *
+     * @return The latencies, by endpoint.
+     */
+    private Samples[] run(ExecutorService workers, int rounds, int firstRound) throws Exception {
+        final List<Future<Samples[]>> futures = new ArrayList<>();
+        for (int pair = 0; pair < agents / 2; pair++) {
+            final String idA = "load-" + runId + "-" + (2 * pair), idB = "load-" + runId + "-" + (2 * pair + 1);
+            futures.add(workers.submit(() -> {
+                final Samples[] samples = newSamples();
+                for (int round = firstRound; round < firstRound + rounds; round++) {
+                    runRound(new Agent(idA), new Agent(idB), round, samples);
+                }
+                return samples;
+            }));
+        }
+        final Samples[] merged = newSamples();
+        for (final Future<Samples[]> future : futures) {
+            final Samples[] samples = future.get();
+            for (int i = 0; i < merged.length; i++) {
+                merged[i].addAll(samples[i]);
+            }
+        }
+        return merged;
+    }
+
+    private void runRound(Agent a, Agent b, int round, Samples[] samples) {
+        a.register(samples);
+        b.register(samples);
+        a.login(samples);
+        b.login(samples);
+        for (int i = 0; i < messages; i++) {
+            a.send(b.id, MESSAGE + " " + round + "/" + i, samples);
+            b.send(a.id, MESSAGE + " " + round + "/" + i, samples);
+        }
+        for (int i = 0; i < messages; i++) {
+            a.read(samples);
+            b.read(samples);
+        }
+        a.logout(samples);
+        b.logout(samples);
+    }
+
+    private static void report(Samples[] samples, long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        long total = 0, errors = 0;
+        System.out.println(String.format(Locale.ROOT, "%-9s %9s %7s %9s %9s %9s %9s %9s",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (final Endpoint endpoint : Endpoint.values()) {
+            final Samples endpointSamples = samples[endpoint.ordinal()];
+            final long[] sorted = endpointSamples.sorted();
+            total += sorted.length;
+            errors += endpointSamples.errors;
+            System.out.println(String.format(Locale.ROOT, "%-9s %9d %7d %9.0f %9.2f %9.2f %9.2f %9.2f",
+                    endpoint.name().toLowerCase(Locale.ROOT), sorted.length, endpointSamples.errors,
+                    sorted.length / seconds, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), percentile(sorted, 1)));
+        }
+        System.out.println(String.format(Locale.ROOT, "%-9s %9d %7d %9.0f   in %.1f s",
+                "total", total, errors, total / seconds, seconds));
+    }
+
+    /**
+     * @return The latency in milliseconds that the given fraction of the sorted latencies do not exceed.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static Samples[] newSamples() {
+        final Samples[] samples = new Samples[Endpoint.values().length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new Samples();
+        }
+        return samples;
+    }
+
+    /**
+     * The latencies of the requests to one endpoint, and the number of them that failed.
+     */
+    private static final class Samples {
+
+        private long[] nanos = new long[64];
+        private int size = 0;
+        private long errors = 0;
+
+        void add(long latency, boolean failed) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = latency;
+            if (failed) {
+                errors++;
+            }
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.nanos[i], false);
+            }
+            errors += other.errors;
+        }
+
+        long[] sorted() {
+            final long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * A simulated agent, with the cookies that its browser would keep.
+     */
+    private final class Agent {
+
+        private final String id;
+        private final Map<String, String> cookies = new HashMap<>();
+
+        private Agent(String id) {
+            this.id = id;
+        }
+
+        void register(Samples[] samples) {
+            final Response response = request(Endpoint.REGISTER, "POST", "/register", form("idInput", id), samples);
+            response.check(cookies.containsKey(CookieNames.LOGIN_KEY.name()));
+        }
+
+        void login(Samples[] samples) {
+            final String loginKey = cookies.get(CookieNames.LOGIN_KEY.name());
+            final Response response = request(Endpoint.LOGIN, "POST", "/login",
+                    form("lKeyInput", loginKey == null ? "" : loginKey), samples);
+            response.check(cookies.containsKey(CookieNames.SESSION_KEY.name()));
+        }
+
+        void send(String targetId, String message, Samples[] samples) {
+            final Response response = request(Endpoint.SEND, "POST", "/sendmessage",
+                    form("destination", targetId) + "&" + form("messageBody", message), samples);
+            response.check("OK".equals(cookies.remove(CookieNames.MESSAGE_SENDING_STATUS.name())));
+        }
+
+        void read(Samples[] samples) {
+            request(Endpoint.READ, "GET", "/readmessage", null, samples).check(true);
+        }
+
+        void logout(Samples[] samples) {
+            request(Endpoint.LOGOUT, "GET", "/logout", null, samples).check(true);
+            cookies.clear();
+        }
+
+        /**
+         * Sends a request and reads the whole response, so that the connection can be kept alive.
+         * Redirects are not followed, as the next request of the agent is always known.
+         */
+        private Response request(Endpoint endpoint, String method, String path, String form, Samples[] samples) {
+            final long start = System.nanoTime();
+            int status;
+            try {
+                final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+                connection.setInstanceFollowRedirects(false);
+                connection.setRequestMethod(method);
+                if (!cookies.isEmpty()) {
+                    connection.setRequestProperty("Cookie", cookieHeader());
+                }
+                if (form != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(form.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                status = connection.getResponseCode();
+                final List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+                if (setCookies != null) {
+                    for (final String setCookie : setCookies) {
+                        storeCookie(setCookie);
+                    }
+                }
+                try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                    if (in != null) {
+                        final byte[] buffer = new byte[8192];
+                        while (in.read(buffer) >= 0) {
+                            // discard the page
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                status = -1;
+            }
+            return new Response(endpoint, status, System.nanoTime() - start, samples);
+        }
+
+        private String cookieHeader() {
+            final StringBuilder header = new StringBuilder();
+            for (final Map.Entry<String, String> cookie : cookies.entrySet()) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            return header.toString();
+        }
+
+        private void storeCookie(String setCookie) {
+            final int equals = setCookie.indexOf('=');
+            if (equals <= 0) {
+                return;
+            }
+            final int semicolon = setCookie.indexOf(';');
+            final String name = setCookie.substring(0, equals).trim();
+            final String value = setCookie.substring(equals + 1, semicolon < 0 ? setCookie.length() : semicolon).trim();
+            final String attributes = setCookie.toLowerCase(Locale.ROOT);
+            if (value.isEmpty() || attributes.contains("max-age=0") || attributes.contains("expires=thu, 01-jan-1970")) {
+                cookies.remove(name);
+            } else {
+                cookies.put(name, value);
+            }
+        }
+
+        private String form(String name, String value) {
+            try {
+                return name + "=" + URLEncoder.encode(value, "UTF-8");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * The outcome of a request, which is recorded once it is checked.
+     */
+    private static final class Response {
+
+        private final Endpoint endpoint;
+        private final int status;
+        private final long latency;
+        private final Samples[] samples;
+
+        private Response(Endpoint endpoint, int status, long latency, Samples[] samples) {
+            this.endpoint = endpoint;
+            this.status = status;
+            this.latency = latency;
+            this.samples = samples;
+        }
+
+        /**
+         * @param expected Whether the response did what the agent expected, besides succeeding.
+         */
+        void check(boolean expected) {
+            final boolean failed = status < 200 || status >= 400 || !expected;
+            samples[endpoint.ordinal()].add(latency, failed);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package system;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This class encapsulates an Agent that can use the system.
  */
@@ -64,6 +68,22 @@ public class Agent {
         }
     }
 
+    /**
+     * Sends the same message to each of the destination agents.
+     *
+     * @param destinationAgentIds The ids of the destination agents.
+     * @param message             The content of the message.
+     * @return the status for each of the destination agents, in the same order.
+     */
+    public List<StatusCodes> sendMessage(final List<String> destinationAgentIds, final String message) {
+
+        if (sessionKey == null) {
+            return new ArrayList<>(Collections.nCopies(destinationAgentIds.size(), StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN));
+        } else {
+            return messagingSystem.multicastMessage(sessionKey, id, destinationAgentIds, message);
+        }
+    }
+
     /**
      * @return the login key that the agent has
      */
@@ -1,17 +1,67 @@
 package system;
 
 import java.time.Duration;
+import java.util.Map;
 
+/**
+ * Per-agent state held by the {@link MessagingSystem}. Keys are volatile so that
+ * they can be read without locking; every read-modify-write of this object
+ * (including the message counters) is done while holding its monitor, except
+ * for the token buckets of a {@link RateLimit}, which are compare-and-set.
+ */
 class AgentInfo {
 
+    final String agentId;
     final Mailbox mailbox;
-    TemporaryKey loginKey = new TemporaryKey("", Duration.ZERO); // initially, expired key
-    TemporaryKey sessionKey = new TemporaryKey("", Duration.ZERO); // initially, expired key
+    volatile TemporaryKey loginKey = new TemporaryKey("", Duration.ZERO); // initially, expired key
+    volatile TemporaryKey sessionKey = new TemporaryKey("", Duration.ZERO); // initially, expired key
+    volatile Session session = null; // the session indexed for the session key, if any
 
     int messagesSent = 0;
     int messagesRecv = 0;
+    long lastSequence = 0; // of the messages delivered to the mailbox
+    long version = 0;      // of the changes to this agent recorded in the journal
+
+    volatile long sendBucketFullAt = 0; // token buckets of the RateLimit, if any, full from its start
+    volatile long recvBucketFullAt = 0;
 
     AgentInfo(String agentId) {
-        this.mailbox = new Mailbox(agentId);
+        this(agentId, new Mailbox(agentId));
+    }
+
+    AgentInfo(String agentId, Mailbox mailbox) {
+        this.agentId = agentId;
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Replaces the login key with one restored from the journal or a snapshot, and updates the index.
+     */
+    void restoreLoginKey(TemporaryKey key, Map<String, TemporaryKey> loginKeys) {
+        final String oldKey = loginKey.getKey();
+        if (oldKey != null) {
+            loginKeys.remove(oldKey, loginKey);
+        }
+        loginKey = key;
+        final String newKey = key.getKey();
+        if (newKey != null) {
+            loginKeys.put(newKey, key);
+        }
+    }
+
+    /**
+     * Replaces the session key with one restored from the journal or a snapshot, and updates the index.
+     */
+    void restoreSessionKey(TemporaryKey key, Map<String, Session> sessions) {
+        if (session != null) {
+            sessions.remove(session.key, session);
+            session = null;
+        }
+        sessionKey = key;
+        final String newKey = key.getKey();
+        if (newKey != null) {
+            session = new Session(agentId, newKey, this, key);
+            sessions.put(newKey, session);
+        }
     }
 }
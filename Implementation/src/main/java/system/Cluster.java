@@ -0,0 +1,450 @@
+package system;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import util.HashRing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Partitions the agents of a {@link MessagingSystem} over several nodes, each of them a messaging system in its
+ * own JVM. Agents are assigned to nodes by consistent hashing of their IDs (see {@link HashRing}); a node only
+ * registers the agents assigned to it, so every request of an agent must be served by that agent's node, except
+ * for sending a message, which the node of the sender forwards to the node of the target.
+ * <p>
+ * Nodes talk to each other over plain TCP, with a request and its reply written as a few fields of a
+ * {@link DataOutputStream} on a connection that is kept open and reused. Each node accepts connections on its own
+ * port, serving each connection on a thread of its own, and keeps a pool of connections to every other node.
+ * <p>
+ * A node joins a cluster through any node already in it, and then announces itself to every member in turn. Each
+ * member hands the agents that now belong to the new node over to it, one at a time, with their keys, sessions
+ * and mailboxes. Meanwhile, a message for an agent that is being moved is forwarded once more to wherever the
+ * agent is. Nodes are expected to join one at a time, and to stay; a node that leaves or fails takes its agents
+ * with it.
+ * <p>
+ * Connecting to another node and waiting for each of its replies are limited by a timeout, given by
+ * {@link #TIMEOUT_PROPERTY} (5 seconds by default), so that a node that has stopped responding cannot hold up
+ * this one. A request that times out is treated like any other failure to reach the node, even though the other
+ * node may yet carry it out. A node that cannot be reached is logged once, and again once it can be reached.
+ */
+public final class Cluster implements Closeable {
+
+    /**
+     * The most times that a message is forwarded from node to node, while agents are being moved.
+     */
+    static final int MAX_HOPS = 3;
+
+    /**
+     * System property holding the timeout of connecting to and waiting for another node, in milliseconds.
+     */
+    public static final String TIMEOUT_PROPERTY = "clusterTimeout";
+
+    static final byte DELIVER = 1, MEMBERS = 2, JOINED = 3, ADOPT = 4;
+    private static final byte NO_STATUS = -1;
+    private static final byte HANDED_OVER = 1, DONE = 0; // replies to JOINED
+    private static final StatusCodes[] STATUSES = StatusCodes.values();
+    private static final Logger LOG = Log.getLogger(Cluster.class);
+
+    private final ServerSocket serverSocket;
+    private final String address;
+    private final int timeoutMillis;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<Socket> served = ConcurrentHashMap.newKeySet();
+    private volatile HashRing ring;
+    private volatile HashRing joinedFrom = null; // the ring without this node, while joining
+    private MessagingSystem messagingSystem;
+
+    /**
+     * Opens the port of a node that is, for now, a cluster of its own. The node starts serving the other
+     * nodes once a {@link MessagingSystem} is built with it (see {@link MessagingSystem.Builder#cluster(Cluster)}),
+     * and may then {@link #join(String)} another cluster.
+     *
+     * @param host The host name of this node, by which the other nodes reach it.
+     * @param port The port of this node, or 0 for any free port.
+     * @throws IOException if the port cannot be opened.
+     */
+    public Cluster(String host, int port) throws IOException {
+        this(host, port, Duration.ofMillis(Long.getLong(TIMEOUT_PROPERTY, 5_000)));
+    }
+
+    /**
+     * @param host    The host name of this node, by which the other nodes reach it.
+     * @param port    The port of this node, or 0 for any free port.
+     * @param timeout How long to wait for another node to accept a connection, and then for each of its replies.
+     * @throws IOException              if the port cannot be opened.
+     * @throws IllegalArgumentException if the timeout is not positive.
+     */
+    public Cluster(String host, int port, Duration timeout) throws IOException {
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Cluster timeout must be positive.");
+        }
+        this.timeoutMillis = (int) Math.min(timeout.toMillis(), Integer.MAX_VALUE);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(host, port));
+        this.address = host + ":" + serverSocket.getLocalPort();
+        this.ring = new HashRing(Collections.singleton(address));
+    }
+
+    /**
+     * @return The address of this node, as host:port, which is also its name on the ring.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The addresses of the nodes in the cluster, as far as this node knows.
+     */
+    public SortedSet<String> getMembers() {
+        return ring.nodes();
+    }
+
+    /**
+     * @param agentId The agent ID.
+     * @return The address of the node that the agent belongs to.
+     */
+    public String ownerOf(String agentId) {
+        return ring.ownerOf(agentId);
+    }
+
+    /**
+     * Joins the cluster of the given node, which then hands this node its share of the agents. Returns once
+     * every member has done so. Handing over many agents may take longer than the timeout, but each member
+     * reports every agent that it has handed over, and must not take longer than the timeout between them.
+     *
+     * @param seed The address of any node in the cluster, as host:port.
+     * @throws IOException if a member of the cluster cannot be reached, or times out.
+     */
+    public void join(String seed) throws IOException {
+        final List<String> members = peer(seed).call((out, in) -> {
+            out.writeByte(MEMBERS);
+            out.flush();
+            final List<String> nodes = new ArrayList<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                nodes.add(in.readUTF());
+            }
+            return nodes;
+        });
+
+        joinedFrom = new HashRing(members);
+        try {
+            for (final String member : members) {
+                addMember(member);
+            }
+            for (final String member : members) {
+                if (!member.equals(address)) {
+                    peer(member).call((out, in) -> {
+                        out.writeByte(JOINED);
+                        out.writeUTF(address);
+                        out.flush();
+                        byte reply;
+                        do {
+                            reply = in.readByte();
+                        } while (reply == HANDED_OVER);
+                        return reply;
+                    });
+                }
+            }
+        } finally {
+            joinedFrom = null;
+        }
+    }
+
+    /**
+     * Stops serving the other nodes and closes all connections.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (final Socket socket : served) {
+            socket.close();
+        }
+        for (final Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Starts accepting connections from the other nodes, on behalf of the given messaging system.
+     */
+    void start(MessagingSystem messagingSystem) {
+        this.messagingSystem = messagingSystem;
+        final Thread acceptor = new Thread(this::accept, "cluster-" + address);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return true if the agent belongs to this node.
+     */
+    boolean isLocal(String agentId) {
+        return ring.ownerOf(agentId).equals(address);
+    }
+
+    /**
+     * Works out where to forward a message for an agent that is not on this node.
+     *
+     * @return The node that the agent belongs to, or, while this node is joining, the node that it belonged to
+     * before; or null if the agent does not exist.
+     */
+    String forwardTarget(String agentId) {
+        final String owner = ring.ownerOf(agentId);
+        final HashRing previous = joinedFrom;
+        if (!owner.equals(address)) {
+            return owner;
+        } else if (previous != null) {
+            return previous.ownerOf(agentId); // not handed over yet
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Asks another node to deliver a message to one of its agents, after the source agent has been checked here.
+     *
+     * @param sourceRefusal The status that the source agent's checks refuse the message with, if any, which is
+     *                      returned unless the target agent does not exist.
+     * @param sourceAtQuota Whether the source agent has reached its quota.
+     * @param hops          The number of times the message has already been forwarded.
+     * @return The status of delivering the message, or {@link StatusCodes#FAILED_TO_ADD_TO_MAILBOX}
+     * if the node cannot be reached or does not reply in time, which is counted like any other status.
+     */
+    StatusCodes deliver(String node, String sourceAgentId, String targetAgentId, byte[] encodedMessage,
+                        Instant timestamp, StatusCodes sourceRefusal, boolean sourceAtQuota, int hops) {
+        try {
+            return peer(node).call((out, in) -> {
+                out.writeByte(DELIVER);
+                out.writeUTF(sourceAgentId);
+                out.writeUTF(targetAgentId);
+                out.writeByte(sourceRefusal != null ? sourceRefusal.ordinal() : NO_STATUS);
+                out.writeBoolean(sourceAtQuota);
+                out.writeByte(hops);
+                out.writeLong(timestamp.getEpochSecond());
+                out.writeInt(timestamp.getNano());
+                out.writeInt(encodedMessage.length);
+                out.write(encodedMessage);
+                out.flush();
+                return STATUSES[in.readByte()];
+            });
+        } catch (IOException e) {
+            return StatusCodes.FAILED_TO_ADD_TO_MAILBOX; // and the peer has logged it, if it was reachable before
+        }
+    }
+
+    /**
+     * Sends an agent to the node that it now belongs to, which has it once this returns.
+     * Must be called while holding the agent's lock, which the timeout limits how long it is held for.
+     */
+    void handOver(String node, AgentInfo info) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        Snapshot.writeAgent(new DataOutputStream(record), info);
+        peer(node).call((out, in) -> {
+            out.writeByte(ADOPT);
+            out.writeInt(record.size());
+            record.writeTo(out);
+            out.flush();
+            return in.readByte();
+        });
+    }
+
+    private synchronized HashRing addMember(String node) {
+        ring = ring.with(node);
+        return ring;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                served.add(socket);
+                final Thread thread = new Thread(() -> serve(socket), "cluster-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOG.warn("Failed to accept a connection from another node", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket closing = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(closing.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(closing.getOutputStream()))) {
+            while (true) {
+                serve(in.readByte(), in, out);
+                out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            // the other node closed the connection, or this node is closing
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to serve node " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            served.remove(socket);
+        }
+    }
+
+    private void serve(byte request, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (request) {
+            case DELIVER:
+                final String sourceAgentId = in.readUTF();
+                final String targetAgentId = in.readUTF();
+                final byte refusal = in.readByte();
+                final boolean sourceAtQuota = in.readBoolean();
+                final int hops = in.readByte();
+                final Instant timestamp = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                final byte[] encodedMessage = new byte[in.readInt()];
+                in.readFully(encodedMessage);
+                final StatusCodes status = messagingSystem.deliver(sourceAgentId, targetAgentId, encodedMessage,
+                        timestamp, refusal != NO_STATUS ? STATUSES[refusal] : null, sourceAtQuota, hops);
+                out.writeByte(status.ordinal());
+                break;
+            case MEMBERS:
+                final SortedSet<String> members = ring.nodes();
+                out.writeInt(members.size());
+                for (final String member : members) {
+                    out.writeUTF(member);
+                }
+                break;
+            case JOINED:
+                final String node = in.readUTF();
+                final HashRing joined = addMember(node);
+                messagingSystem.handOver(agentId -> joined.ownerOf(agentId).equals(node), node, () -> {
+                    out.writeByte(HANDED_OVER); // so that the joining node knows that this node is still busy
+                    out.flush();
+                });
+                out.writeByte(DONE);
+                break;
+            case ADOPT:
+                final byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                messagingSystem.adopt(ByteBuffer.wrap(record));
+                out.writeByte(0);
+                break;
+            default:
+                throw new IOException("Unknown request " + request);
+        }
+    }
+
+    private Peer peer(String node) {
+        return peers.computeIfAbsent(node, name -> new Peer(name, timeoutMillis));
+    }
+
+    /**
+     * A request to another node, written to the connection together with reading the reply.
+     */
+    private interface Call<T> {
+        T call(DataOutputStream out, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Told of every agent that has been handed over to another node, after its lock is released.
+     */
+    interface HandOverListener {
+        void handedOver() throws IOException;
+    }
+
+    /**
+     * Another node, with the connections to it that are not in use, and whether the last call to it failed.
+     */
+    private static final class Peer implements Closeable {
+
+        private final String node;
+        private final InetSocketAddress socketAddress;
+        private final int timeoutMillis;
+        private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean unreachable = new AtomicBoolean();
+
+        private Peer(String node, int timeoutMillis) {
+            this.node = node;
+            final int colon = node.lastIndexOf(':');
+            this.socketAddress =
+                    new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        private <T> T call(Call<T> call) throws IOException {
+            Connection connection = idle.poll();
+            try {
+                if (connection == null) {
+                    connection = new Connection(socketAddress, timeoutMillis);
+                }
+                final T reply = call.call(connection.out, connection.in);
+                idle.offer(connection);
+                if (unreachable.get() && unreachable.compareAndSet(true, false)) {
+                    LOG.info("Reached node {} again", node);
+                }
+                return reply;
+            } catch (IOException | RuntimeException e) {
+                // including a timeout, after which the reply may still arrive and be mistaken for another
+                if (connection != null) {
+                    connection.close(); // its stream may be part way through a request
+                }
+                if (unreachable.compareAndSet(false, true)) {
+                    LOG.warn("Cannot reach node " + node + ", until further notice: " + e);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static final class Connection implements Closeable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(InetSocketAddress socketAddress, int timeoutMillis) throws IOException {
+            this.socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            try {
+                socket.connect(socketAddress, timeoutMillis);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package system;
+
+import util.WriteAheadLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Records the changes to the state of a {@link MessagingSystem} in a {@link WriteAheadLog}, so that
+ * the agents, their sessions and their undelivered messages survive a restart of the system.
+ * <p>
+ * The system records each change while it holds the locks of the agents involved, so the changes
+ * to an agent are recorded in the order in which they were made. A message consumed from a mailbox
+ * is recorded by its sequence number, which also accounts for any expired messages dropped before
+ * it. On recovery, messages that have expired in the meantime are skipped and the sessions and
+ * login keys keep their original expiry.
+ * <p>
+ * A {@link Snapshot} of the whole state replaces the records that came before it, so that recovery
+ * does not have to replay the full history. Every record carries the new {@link AgentInfo#version}
+ * of the agents it changes, and is only replayed onto an agent whose restored version is older;
+ * that way, records which ended up both in the snapshot and in the log are not applied twice.
+ */
+public final class Journal implements Closeable {
+
+    /**
+     * A journal that records nothing, for a system that is kept in memory only.
+     */
+    public static final Journal DISABLED = new Journal(null, null);
+
+    private static final byte REGISTERED = 1;
+    private static final byte LOGGED_IN = 2;
+    private static final byte LOGGED_OUT = 3;
+    private static final byte MESSAGE_ADDED = 4;
+    private static final byte MESSAGES_CONSUMED = 5;
+
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private static final Clock CLOCK = Clock.systemUTC();
+
+    private final WriteAheadLog log;
+    private final Path snapshot;
+
+    private Journal(WriteAheadLog log, Path snapshot) {
+        this.log = log;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Opens the journal kept in the given directory. The journal is recovered and started by the
+     * messaging system that it is passed to.
+     *
+     * @param directory    The directory of the journal, which is created if it does not exist.
+     * @param syncPolicy   When records are forced to disk.
+     * @param syncInterval The interval for {@link WriteAheadLog.SyncPolicy#INTERVAL}.
+     * @return The journal.
+     * @throws IOException if the directory cannot be read.
+     */
+    public static Journal open(Path directory, WriteAheadLog.SyncPolicy syncPolicy, Duration syncInterval)
+            throws IOException {
+        final WriteAheadLog log = WriteAheadLog.open(directory, syncPolicy, syncInterval,
+                WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        return new Journal(log, directory.resolve(SNAPSHOT_FILE));
+    }
+
+    /**
+     * Rebuilds the state of a system from the latest snapshot and the records that follow it, and starts
+     * recording. Must be called once, before the system is in use.
+     *
+     * @throws IOException if the snapshot or the journal cannot be read.
+     */
+    void recover(Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                 Map<String, Session> sessions) throws IOException {
+        recover(agentInfos, loginKeys, sessions, AgentInfo::new);
+    }
+
+    /**
+     * Rebuilds the state of a system as {@link #recover(Map, Map, Map)} does, creating agents with the given function.
+     *
+     * @throws IOException if the snapshot or the journal cannot be read.
+     */
+    void recover(Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                 Map<String, Session> sessions, Function<String, AgentInfo> newAgent) throws IOException {
+        if (log == null) {
+            return;
+        }
+        if (Files.exists(snapshot)) {
+            // segments left over from a crash between writing the snapshot and deleting them
+            log.deleteSegmentsBefore(Snapshot.read(snapshot, agentInfos, loginKeys, sessions, newAgent));
+        }
+        try {
+            log.replay(record -> {
+                try {
+                    apply(new DataInputStream(new ByteArrayInputStream(record)), agentInfos, loginKeys, sessions,
+                            newAgent);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        log.start();
+    }
+
+    /**
+     * Writes a snapshot of the agents while the system is in use, and deletes the records it replaces.
+     *
+     * @param agents The agents of the system, which must be safe to iterate concurrently.
+     * @throws IOException           if the snapshot cannot be written.
+     * @throws IllegalStateException if the journal is disabled.
+     */
+    synchronized void snapshot(Collection<AgentInfo> agents) throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("The journal is disabled.");
+        }
+        final long segment = log.roll(); // every change recorded before now is copied by the snapshot
+        Snapshot.write(snapshot, agents, segment);
+        log.deleteSegmentsBefore(segment);
+    }
+
+    void registered(AgentInfo info) {
+        if (log != null) {
+            final long version = ++info.version;
+            log.append(encode(REGISTERED, out -> {
+                out.writeUTF(info.agentId);
+                out.writeLong(version);
+                writeKey(out, info.loginKey);
+            }));
+        }
+    }
+
+    void loggedIn(AgentInfo info) {
+        if (log != null) {
+            final long version = ++info.version;
+            log.append(encode(LOGGED_IN, out -> {
+                out.writeUTF(info.agentId);
+                out.writeLong(version);
+                writeKey(out, info.sessionKey);
+            }));
+        }
+    }
+
+    void loggedOut(AgentInfo info) {
+        if (log != null) {
+            final long version = ++info.version;
+            log.append(encode(LOGGED_OUT, out -> {
+                out.writeUTF(info.agentId);
+                out.writeLong(version);
+            }));
+        }
+    }
+
+    void messageAdded(AgentInfo source, AgentInfo target, Message message) {
+        if (log != null) {
+            final long sourceVersion = ++source.version;
+            final long targetVersion = source == target ? sourceVersion : ++target.version;
+            log.append(encode(MESSAGE_ADDED, out -> {
+                out.writeUTF(source.agentId);
+                out.writeLong(sourceVersion);
+                out.writeUTF(target.agentId);
+                out.writeLong(targetVersion);
+                out.writeLong(message.getSequence());
+                writeInstant(out, message.getTimestamp());
+                final String text = message.getMessage();
+                out.writeUTF(text != null ? text : ""); // expired just now, so skipped on recovery
+            }));
+        }
+    }
+
+    void messagesConsumed(AgentInfo info, Message last) {
+        if (log != null) {
+            final long version = ++info.version;
+            log.append(encode(MESSAGES_CONSUMED, out -> {
+                out.writeUTF(info.agentId);
+                out.writeLong(version);
+                out.writeLong(last.getSequence());
+            }));
+        }
+    }
+
+    /**
+     * Waits until the changes recorded by the calling thread are durable, as far as the sync policy
+     * promises. Should be called once an operation is complete and its locks have been released.
+     */
+    void commit() {
+        if (log != null) {
+            log.awaitDurable();
+        }
+    }
+
+    /**
+     * Writes out any changes that are still pending and stops recording.
+     */
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private static void apply(DataInputStream in, Map<String, AgentInfo> agentInfos,
+                              Map<String, TemporaryKey> loginKeys, Map<String, Session> sessions,
+                              Function<String, AgentInfo> newAgent) throws IOException {
+        final byte type = in.readByte();
+        final AgentInfo info = agentInfos.computeIfAbsent(in.readUTF(), newAgent);
+        final long version = in.readLong();
+        final boolean newer = version > info.version; // otherwise, already in the snapshot
+
+        switch (type) {
+            case REGISTERED:
+                final TemporaryKey loginKey = readKey(in);
+                if (newer) {
+                    info.restoreLoginKey(loginKey, loginKeys);
+                }
+                break;
+
+            case LOGGED_IN:
+                final TemporaryKey sessionKey = readKey(in);
+                if (newer) {
+                    info.restoreSessionKey(sessionKey, sessions);
+                    info.messagesSent = 0;
+                    info.messagesRecv = 0;
+                }
+                break;
+
+            case LOGGED_OUT:
+                if (newer) {
+                    info.restoreSessionKey(new TemporaryKey("", Instant.EPOCH), sessions);
+                    info.messagesSent = 0;
+                    info.messagesRecv = 0;
+                }
+                break;
+
+            case MESSAGE_ADDED:
+                final AgentInfo target = agentInfos.computeIfAbsent(in.readUTF(), newAgent);
+                final long targetVersion = in.readLong();
+                final boolean targetNewer = targetVersion > target.version;
+                final long sequence = in.readLong();
+                final Instant timestamp = readInstant(in);
+                final String text = in.readUTF();
+                if (newer) {
+                    info.messagesSent++;
+                }
+                if (targetNewer) {
+                    target.messagesRecv++;
+                    target.lastSequence = Math.max(target.lastSequence, sequence);
+                    target.mailbox.addMessage(new Message(info.agentId, target.agentId, text, timestamp,
+                            CLOCK, sequence)); // unless expired
+                    target.version = targetVersion;
+                }
+                break;
+
+            case MESSAGES_CONSUMED:
+                final long through = in.readLong();
+                if (newer) {
+                    info.mailbox.removeMessagesThrough(through);
+                }
+                break;
+
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+        if (newer) {
+            info.version = version;
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, TemporaryKey key) throws IOException {
+        final String value = key.getKey();
+        final boolean live = value != null && !value.isEmpty(); // expired or placeholder keys are not kept
+        out.writeUTF(live ? value : "");
+        writeInstant(out, live ? key.getExpiry() : Instant.EPOCH);
+    }
+
+    private static TemporaryKey readKey(DataInputStream in) throws IOException {
+        return new TemporaryKey(in.readUTF(), readInstant(in));
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant instant) throws IOException {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private static byte[] encode(byte type, RecordWriter writer) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
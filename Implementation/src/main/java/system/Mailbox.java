@@ -1,28 +1,47 @@
 package system;
 
-import util.TemporaryObject;
-
 import java.time.Duration;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This class encapsulates the functionality of a mailbox that holds all container for a user.
+ * <p>
+ * Expired messages are skipped when they reach the head of the queue, so none of the
+ * operations below scan the whole mailbox. Expired messages further back in the queue
+ * are dropped in bulk by the {@link MailboxReaper}. An {@link OffHeapMailbox} keeps the
+ * messages in a {@link MessageStore} instead of the queue.
  */
 class Mailbox {
 
     static final Duration MESSAGE_TIME_LIMIT = Duration.ofMinutes(30);
 
-    private final Queue<Message> messages;
-    private final String ownerId;
+    private final BlockingQueue<Message> messages;
+    private final Set<Runnable> waiters = ConcurrentHashMap.newKeySet();
+    final String ownerId;
+    final Metrics metrics; // counts the expired messages dropped
 
     Mailbox(String ownerId) {
-        this(ownerId, new LinkedBlockingQueue<>());
+        this(ownerId, Metrics.NONE);
+    }
+
+    Mailbox(String ownerId, Metrics metrics) {
+        this(ownerId, new LinkedBlockingQueue<>(), metrics);
     }
 
-    Mailbox(String ownerId, Queue<Message> messages) {
+    Mailbox(String ownerId, BlockingQueue<Message> messages) {
+        this(ownerId, messages, Metrics.NONE);
+    }
+
+    Mailbox(String ownerId, BlockingQueue<Message> messages, Metrics metrics) {
         this.ownerId = ownerId;
         this.messages = messages;
+        this.metrics = metrics;
     }
 
     /**
@@ -31,8 +50,31 @@ class Mailbox {
      * @return A message or null if the mailbox is empty.
      */
     public Message consumeNextMessage() {
-        messages.removeIf(TemporaryObject::isExpired);
-        return messages.poll();
+        Message message;
+        int expired = -1;
+        do {
+            message = messages.poll();
+            expired++;
+        } while (message != null && message.isExpired());
+        metrics.expired(expired);
+        return message;
+    }
+
+    /**
+     * Returns up to the given number of messages from the box on a FIFO basis.
+     * Messages are taken from the queue in bulk rather than one by one.
+     *
+     * @param max The maximum number of messages to return.
+     * @return The messages, or an empty list if the mailbox is empty.
+     */
+    public List<Message> consumeNextMessages(int max) {
+        final List<Message> consumed = new ArrayList<>(Math.min(Math.max(max, 0), messages.size()));
+        while (consumed.size() < max && messages.drainTo(consumed, max - consumed.size()) > 0) {
+            final int before = consumed.size();
+            consumed.removeIf(Message::isExpired);
+            metrics.expired(before - consumed.size());
+        }
+        return consumed;
     }
 
     /**
@@ -41,8 +83,13 @@ class Mailbox {
      * @return true if there is at least one message in the mailbox.
      */
     public boolean hasMessages() {
-        messages.removeIf(TemporaryObject::isExpired);
-        return !messages.isEmpty();
+        Message head;
+        while ((head = messages.peek()) != null && head.isExpired()) {
+            if (messages.remove(head)) {
+                metrics.expired(1);
+            }
+        }
+        return head != null;
     }
 
     /**
@@ -52,9 +99,111 @@ class Mailbox {
      * @return true if successful, false otherwise.
      */
     public boolean addMessage(Message message) {
-        messages.removeIf(TemporaryObject::isExpired);
-        return message.getTargetAgentId().equals(this.ownerId)
+        if (message.getTargetAgentId().equals(this.ownerId)
                 && !message.isExpired()
-                && messages.offer(message);
+                && offer(message)) {
+            if (!waiters.isEmpty()) {
+                wakeWaiters();
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Queues a message that {@link #addMessage(Message)} has checked.
+     *
+     * @return true if successful, false otherwise.
+     */
+    boolean offer(Message message) {
+        return messages.offer(message);
+    }
+
+    /**
+     * Runs the waiter once, as soon as there is a message in the mailbox or the waiters are
+     * woken by {@link #wakeWaiters()}. The waiter runs right away if there already is a message,
+     * or otherwise on the thread that adds the next message, so it should only hand the work
+     * over to another thread.
+     *
+     * @param waiter The waiter to run.
+     */
+    void addWaiter(Runnable waiter) {
+        waiters.add(waiter);
+        if (hasMessages() && waiters.remove(waiter)) { // a message may have arrived before the waiter was added
+            waiter.run();
+        }
+    }
+
+    /**
+     * Removes a waiter that has not run yet, so that it never runs.
+     *
+     * @param waiter The waiter to remove.
+     * @return true if the waiter was removed, false if it has already run or was never added.
+     */
+    boolean removeWaiter(Runnable waiter) {
+        return waiters.remove(waiter);
+    }
+
+    /**
+     * Runs every waiter now, whether or not there is a message, so that
+     * they notice that the session they are waiting for has ended.
+     */
+    void wakeWaiters() {
+        for (final Runnable waiter : waiters) {
+            if (waiters.remove(waiter)) {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * Drops the messages at the front of the mailbox up to and including the one with
+     * the given sequence number, as they were consumed or dropped when it was consumed.
+     *
+     * @param sequence The sequence number of the consumed message.
+     */
+    void removeMessagesThrough(long sequence) {
+        Message head;
+        while ((head = messages.peek()) != null && head.getSequence() <= sequence) {
+            messages.remove(head);
+        }
+    }
+
+    /**
+     * @return the messages that have not expired, in FIFO order, without consuming them.
+     */
+    List<Message> peekMessages() {
+        final List<Message> unexpired = new ArrayList<>(messages.size());
+        for (final Message message : messages) {
+            if (!message.isExpired()) {
+                unexpired.add(message);
+            }
+        }
+        return unexpired;
+    }
+
+    /**
+     * @return the number of messages in the mailbox, including expired ones that have not been dropped yet.
+     */
+    int size() {
+        return messages.size();
+    }
+
+    /**
+     * Drops all expired messages, wherever they are in the mailbox.
+     *
+     * @return The number of messages dropped.
+     */
+    int removeExpiredMessages() {
+        int removed = 0;
+        for (final Iterator<Message> iterator = messages.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().isExpired()) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        metrics.expired(removed);
+        return removed;
     }
 }
@@ -0,0 +1,71 @@
+package system;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically drops expired messages from every mailbox of a messaging system, so that
+ * mailboxes nobody reads from do not hold on to expired messages. All reapers share one
+ * daemon thread. A reaper only holds a weak reference to the agents it sweeps and stops
+ * once they are no longer in use.
+ */
+class MailboxReaper implements Runnable {
+
+    static final Duration REAP_INTERVAL = Duration.ofMinutes(1);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "mailbox-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WeakReference<Map<String, AgentInfo>> agentInfos;
+    private volatile ScheduledFuture<?> schedule;
+
+    MailboxReaper(Map<String, AgentInfo> agentInfos) {
+        this.agentInfos = new WeakReference<>(agentInfos);
+    }
+
+    /**
+     * Starts sweeping the mailboxes of the given agents every {@link #REAP_INTERVAL}.
+     *
+     * @param agentInfos The agents, which must be safe to iterate concurrently.
+     * @return The started reaper.
+     */
+    static MailboxReaper start(Map<String, AgentInfo> agentInfos) {
+        final MailboxReaper reaper = new MailboxReaper(agentInfos);
+        final long interval = REAP_INTERVAL.toMillis();
+        reaper.schedule = SCHEDULER.scheduleWithFixedDelay(reaper, interval, interval, TimeUnit.MILLISECONDS);
+        return reaper;
+    }
+
+    /**
+     * Stops any further sweeps.
+     */
+    void stop() {
+        final ScheduledFuture<?> schedule = this.schedule;
+        if (schedule != null) {
+            schedule.cancel(false);
+        }
+    }
+
+    /**
+     * Sweeps every mailbox once.
+     */
+    @Override
+    public void run() {
+        final Map<String, AgentInfo> agentInfos = this.agentInfos.get();
+        if (agentInfos == null) {
+            stop();
+        } else {
+            for (final AgentInfo agentInfo : agentInfos.values()) {
+                agentInfo.mailbox.removeExpiredMessages();
+            }
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package system;
 
+import util.CompactText;
 import util.TemporaryObject;
 
 import java.time.Clock;
 import java.time.Instant;
 
-public class Message extends TemporaryObject<String> {
+/**
+ * A message in a mailbox. The contents are kept encoded by {@link CompactText} and decoded each
+ * time they are read, as messages spend most of their life waiting in a mailbox. The agent IDs
+ * are expected to be the ones held by the agents, so that every message shares them.
+ */
+public class Message extends TemporaryObject<byte[]> {
 
     private final String sourceAgentId; // sender
     private final String targetAgentId; // receiver
+    private final long sequence;        // order of delivery to the receiver's mailbox
 
     /**
      * Creates a new message
@@ -30,9 +37,55 @@ public class Message extends TemporaryObject<String> {
      * @param clock         Clock to use for setting the timestamp
      */
     Message(String sourceAgentId, String targetAgentId, String message, Clock clock) {
-        super(message, Instant.now(clock).plus(Mailbox.MESSAGE_TIME_LIMIT), clock);
+        this(sourceAgentId, targetAgentId, message, Instant.now(clock), clock);
+    }
+
+    /**
+     * Creates a new message with a given timestamp, so that copies of
+     * a message sent to several agents can share the same timestamp
+     *
+     * @param sourceAgentId Sender of the message
+     * @param targetAgentId Receiver of the message
+     * @param message       The message contents
+     * @param timestamp     The time at which the message was sent
+     * @param clock         Clock to use for checking expiry
+     */
+    Message(String sourceAgentId, String targetAgentId, String message, Instant timestamp, Clock clock) {
+        this(sourceAgentId, targetAgentId, message, timestamp, clock, 0);
+    }
+
+    /**
+     * Creates a new message with a given timestamp and sequence number
+     *
+     * @param sourceAgentId Sender of the message
+     * @param targetAgentId Receiver of the message
+     * @param message       The message contents
+     * @param timestamp     The time at which the message was sent
+     * @param clock         Clock to use for checking expiry
+     * @param sequence      The number of messages delivered to the receiver, including this one
+     */
+    Message(String sourceAgentId, String targetAgentId, String message, Instant timestamp, Clock clock,
+            long sequence) {
+        this(sourceAgentId, targetAgentId, CompactText.encode(message), timestamp, clock, sequence);
+    }
+
+    /**
+     * Creates a new message with contents that are already encoded, so that
+     * copies of a message sent to several agents can share the contents
+     *
+     * @param sourceAgentId  Sender of the message
+     * @param targetAgentId  Receiver of the message
+     * @param encodedMessage The message contents, encoded by {@link CompactText#encode(String)}
+     * @param timestamp      The time at which the message was sent
+     * @param clock          Clock to use for checking expiry
+     * @param sequence       The number of messages delivered to the receiver, including this one
+     */
+    Message(String sourceAgentId, String targetAgentId, byte[] encodedMessage, Instant timestamp, Clock clock,
+            long sequence) {
+        super(encodedMessage, timestamp.plus(Mailbox.MESSAGE_TIME_LIMIT), clock);
         this.sourceAgentId = sourceAgentId;
         this.targetAgentId = targetAgentId;
+        this.sequence = sequence;
     }
 
     public String getSourceAgentId() {
@@ -48,6 +101,17 @@ public class Message extends TemporaryObject<String> {
     }
 
     public String getMessage() {
+        return CompactText.decode(getTempObject());
+    }
+
+    /**
+     * @return the contents encoded by {@link CompactText#encode(String)}, or null if the message has expired
+     */
+    byte[] getEncodedMessage() {
         return getTempObject();
     }
+
+    long getSequence() {
+        return sequence;
+    }
 }
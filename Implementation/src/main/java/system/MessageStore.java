@@ -0,0 +1,156 @@
+package system;
+
+import util.SlabAllocator;
+import util.Ticker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+
+/**
+ * Keeps queued messages outside the Java heap, for a system with more messages waiting than the
+ * garbage collector copes with. Each message is encoded into a slot of a {@link SlabAllocator},
+ * and the mailboxes of the system hold only the handles of their slots. A {@link Message} is
+ * decoded again when it is consumed or looked at, and its slot is freed once it is consumed,
+ * expires or is dropped.
+ * <p>
+ * A slot holds the expiry deadline, the timestamp, the sequence number, the sender and the
+ * contents, as encoded by the message; the receiver is the owner of the mailbox. Messages that do not fit in the largest
+ * slot, or that arrive once the store is full, are not added to the mailbox.
+ */
+public final class MessageStore implements Closeable {
+
+    private static final int HEADER_SIZE = 8 + 8 + 4 + 8 + 2 + 2; // deadline, timestamp, sequence, string lengths
+
+    private final SlabAllocator slabs;
+    private final Clock clock;
+    private final Ticker ticker;
+
+    MessageStore(SlabAllocator slabs, Clock clock) {
+        this.slabs = slabs;
+        this.clock = clock;
+        this.ticker = Ticker.forClock(clock);
+    }
+
+    /**
+     * @param maxBytes The most memory to use.
+     * @return A store in direct buffers.
+     */
+    public static MessageStore direct(long maxBytes) {
+        return new MessageStore(SlabAllocator.direct(maxBytes), Clock.systemUTC());
+    }
+
+    /**
+     * @param file     The file to map, which is replaced and is deleted once the store is closed.
+     * @param maxBytes The most memory to use.
+     * @return A store in a memory-mapped file.
+     * @throws IOException if the file cannot be created.
+     */
+    public static MessageStore mapped(Path file, long maxBytes) throws IOException {
+        return new MessageStore(SlabAllocator.mapped(file, maxBytes), Clock.systemUTC());
+    }
+
+    /**
+     * @return The number of bytes taken up by the messages in the store.
+     */
+    public long usedBytes() {
+        return slabs.usedBytes();
+    }
+
+    /**
+     * @return The number of bytes reserved by the store, in use or not.
+     */
+    public long reservedBytes() {
+        return slabs.reservedBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        slabs.close();
+    }
+
+    /**
+     * @param ownerId The agent that the mailbox belongs to.
+     * @return An empty mailbox that keeps its messages in this store.
+     */
+    Mailbox newMailbox(String ownerId) {
+        return newMailbox(ownerId, Metrics.NONE);
+    }
+
+    /**
+     * @param ownerId The agent that the mailbox belongs to.
+     * @param metrics The metrics of the system that the mailbox is part of.
+     * @return An empty mailbox that keeps its messages in this store.
+     */
+    Mailbox newMailbox(String ownerId, Metrics metrics) {
+        return new OffHeapMailbox(ownerId, this, metrics);
+    }
+
+    /**
+     * Copies a message into the store.
+     *
+     * @return The handle of the message, or -1 if it has expired, does not fit or the store is full.
+     */
+    long put(Message message) {
+        final byte[] contents = message.getEncodedMessage();
+        if (contents == null) {
+            return -1;
+        }
+        final byte[] source = message.getSourceAgentId().getBytes(StandardCharsets.UTF_8);
+        final long handle = slabs.allocate(HEADER_SIZE + source.length + contents.length);
+        if (handle >= 0) {
+            final Instant timestamp = message.getTimestamp();
+            slabs.slot(handle)
+                    .putLong(ticker.toTicks(timestamp.plus(Mailbox.MESSAGE_TIME_LIMIT)))
+                    .putLong(timestamp.getEpochSecond())
+                    .putInt(timestamp.getNano())
+                    .putLong(message.getSequence())
+                    .putShort((short) source.length).put(source)
+                    .putShort((short) contents.length).put(contents);
+        }
+        return handle;
+    }
+
+    /**
+     * Decodes a message from the store.
+     *
+     * @param handle        The handle of the message.
+     * @param targetAgentId The owner of the mailbox that holds the message.
+     * @return The message.
+     */
+    Message get(long handle, String targetAgentId) {
+        final ByteBuffer slot = slabs.slot(handle);
+        slot.position(slot.position() + 8); // deadline, which the message works out from the timestamp
+        final Instant timestamp = Instant.ofEpochSecond(slot.getLong(), slot.getInt());
+        final long sequence = slot.getLong();
+        final String sourceAgentId = readString(slot);
+        return new Message(sourceAgentId, targetAgentId, readBytes(slot), timestamp, clock, sequence);
+    }
+
+    boolean isExpired(long handle) {
+        return ticker.read() >= slabs.slot(handle).getLong();
+    }
+
+    long getSequence(long handle) {
+        final ByteBuffer slot = slabs.slot(handle);
+        return slot.getLong(slot.position() + 8 + 8 + 4);
+    }
+
+    void free(long handle) {
+        slabs.free(handle);
+    }
+
+    private static String readString(ByteBuffer slot) {
+        return new String(readBytes(slot), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer slot) {
+        final byte[] bytes = new byte[slot.getShort()];
+        slot.get(bytes);
+        return bytes;
+    }
+}
@@ -1,35 +1,216 @@
 package system;
 
-import util.Utils;
-
+import util.BlockedWordFilter;
+import util.CompactText;
+import util.KeyGenerator;
+import util.RandomKeyGenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static system.StatusCodes.*;
 
+/**
+ * The messaging system is shared by every request thread of the web server.
+ * Agents are kept in a concurrent map (which is itself striped internally) and
+ * each agent's state is guarded by its own {@link AgentInfo} monitor, so that
+ * operations on different agents never contend on a common lock.
+ */
 public class MessagingSystem {
 
     private static final Duration LOGIN_KEY_TIME_LIMIT = Duration.ofMinutes(1);
     private static final Duration SESSION_KEY_TIME_LIMIT = Duration.ofMinutes(10);
 
     private static final int LOGIN_KEY_LENGTH = 10;
+    private static final int MAX_AGENT_ID_LENGTH = 255; // so that it fits the length fields of the journal and snapshot
     private static final int SESSION_KEY_LENGTH = 50;
 
     private static final int MAX_MESSAGE_LENGTH = 140;
     private static final int MAX_MESSAGES_SENT = 25;
     private static final int MAX_MESSAGES_RECV = 25;
-    private static final String BLOCKED_WORDS[] = {"recipe", "ginger", "nuclear"};
+
+    /**
+     * The words that are removed from messages unless others are given.
+     */
+    public static final List<String> DEFAULT_BLOCKED_WORDS =
+            Collections.unmodifiableList(Arrays.asList("recipe", "ginger", "nuclear"));
+
+    private static final int MIN_ADDITIONS_BETWEEN_SWEEPS = 1024;
 
     private final Map<String, AgentInfo> agentInfos;
+    private final Map<String, TemporaryKey> loginKeys; // index of issued login keys, by key
+    private final Map<String, Session> sessions;       // index of sessions, by session key
+    private final AtomicInteger registrationsSinceSweep = new AtomicInteger();
+    private final AtomicInteger loginsSinceSweep = new AtomicInteger();
+    private final BlockedWordFilter blockedWordFilter;
+    private final KeyGenerator keyGenerator;
+    private final Journal journal;
+    private final MessageStore messageStore; // of queued messages, if not kept on the heap
+    private final RateLimit rateLimit;       // instead of the quotas, if any
+    private final Clock clock;
+    private final Cluster cluster;           // that the agents are partitioned over, if any
+    private final Metrics metrics = new Metrics();
 
     public MessagingSystem() {
-        this(new HashMap<>());
+        this(new Builder(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        MailboxReaper.start(agentInfos);
     }
 
     MessagingSystem(final Map<String, AgentInfo> agentInfos) {
+        this(new Builder(), agentInfos, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    private MessagingSystem(final Builder builder, final Map<String, AgentInfo> agentInfos,
+                            final Map<String, TemporaryKey> loginKeys, final Map<String, Session> sessions) {
         this.agentInfos = agentInfos;
+        this.loginKeys = loginKeys;
+        this.sessions = sessions;
+        this.blockedWordFilter = new BlockedWordFilter(builder.blockedWords);
+        this.keyGenerator = builder.keyGenerator;
+        this.journal = builder.journal;
+        this.messageStore = builder.messageStore;
+        this.rateLimit = builder.rateLimit;
+        this.clock = builder.clock;
+        this.cluster = builder.cluster;
+    }
+
+    /**
+     * @return A builder of a system with the default blocked words and securely random keys, which keeps
+     * its state on the heap only, enforces the quotas, reads the system clock and is not part of a cluster.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Sets the options of a {@link MessagingSystem}, any of which can be left at its default.
+     */
+    public static final class Builder {
+
+        private Collection<String> blockedWords = DEFAULT_BLOCKED_WORDS;
+        private KeyGenerator keyGenerator = RandomKeyGenerator.secure();
+        private Journal journal = Journal.DISABLED;
+        private MessageStore messageStore;
+        private RateLimit rateLimit;
+        private Clock clock = Clock.systemUTC();
+        private Cluster cluster;
+        private Map<String, AgentInfo> agentInfos; // given by tests, along with the indexes of keys and sessions
+        private Map<String, TemporaryKey> loginKeys;
+        private Map<String, Session> sessions;
+
+        private Builder() {
+        }
+
+        /**
+         * @param blockedWords The words to remove from messages, instead of the default ones.
+         */
+        public Builder blockedWords(Collection<String> blockedWords) {
+            this.blockedWords = blockedWords;
+            return this;
+        }
+
+        /**
+         * @param keyGenerator The generator of session keys, and of login keys for its supervisors.
+         */
+        public Builder keyGenerator(KeyGenerator keyGenerator) {
+            this.keyGenerator = keyGenerator;
+            return this;
+        }
+
+        /**
+         * @param journal The journal, which the system is recovered from and records its changes in, and which
+         *                is then owned by the system; or {@link Journal#DISABLED}.
+         */
+        public Builder journal(Journal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * @param messageStore The store of the messages waiting in mailboxes, or null to keep them on the heap.
+         */
+        public Builder messageStore(MessageStore messageStore) {
+            this.messageStore = messageStore;
+            return this;
+        }
+
+        /**
+         * @param rateLimit The limit of how fast agents may send and receive messages, instead of logging them
+         *                  out once they reach their quotas; or null for the quotas.
+         */
+        public Builder rateLimit(RateLimit rateLimit) {
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        /**
+         * @param clock The clock that keys and messages expire by, so that tests can let them expire
+         *              without waiting for them to.
+         */
+        public Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Makes the system a node of a cluster, which only holds the agents that the cluster assigns to it and
+         * forwards messages for any other agent to the node of that agent. A node is not journaled, rate
+         * limited or given a message store.
+         *
+         * @param cluster The cluster, whose port the node starts serving the other nodes on, or null.
+         */
+        public Builder cluster(Cluster cluster) {
+            this.cluster = cluster;
+            return this;
+        }
+
+        /**
+         * Gives the system the maps of its agents and of its login keys and sessions by key, so that tests can
+         * look into them. Such a system is not recovered from its journal, reaped or started as a node.
+         */
+        Builder state(Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                      Map<String, Session> sessions) {
+            this.agentInfos = agentInfos;
+            this.loginKeys = loginKeys;
+            this.sessions = sessions;
+            return this;
+        }
+
+        /**
+         * @return The system, recovered from the journal and serving the other nodes of the cluster, if any.
+         * @throws IOException           if the journal cannot be recovered.
+         * @throws IllegalStateException if a node of a cluster is given a journal, message store or rate limit.
+         */
+        public MessagingSystem build() throws IOException {
+            if (agentInfos != null) {
+                return new MessagingSystem(this, agentInfos, loginKeys, sessions);
+            }
+            if (cluster != null && (journal != Journal.DISABLED || messageStore != null || rateLimit != null)) {
+                throw new IllegalStateException("A node of a cluster cannot be journaled, rate limited "
+                        + "or given a message store.");
+            }
+            final MessagingSystem system = new MessagingSystem(this, new ConcurrentHashMap<>(),
+                    new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+            journal.recover(system.agentInfos, system.loginKeys, system.sessions, system::newAgentInfo);
+            if (cluster != null) {
+                cluster.start(system);
+            }
+            MailboxReaper.start(system.agentInfos);
+            return system;
+        }
     }
 
     /**
@@ -37,25 +218,76 @@ public class MessagingSystem {
      * tries to login she will only be allowed access if the key also matches.
      * <p>
      * This method also checks that the login key is exactly 10 characters long
-     * and that the key is unique.
+     * and that the key is unique, and that the agent ID is at most 255 characters
+     * long. In a {@link Cluster}, agents can only be registered with the node
+     * that they belong to.
      *
      * @param agentId  The agent ID.
      * @param loginKey The login key.
      * @return true if the checks on the key succeed and the (agent,key) pair has been stored.
      */
     public boolean registerLoginKey(String agentId, String loginKey) {
-        final Stream<AgentInfo> agentInfos = this.agentInfos.values().stream();
+        final TemporaryKey newKey = new TemporaryKey(loginKey, LOGIN_KEY_TIME_LIMIT, clock);
 
         // If register is valid, obtain (or create) agent info and set login key
-        if (loginKey.length() == LOGIN_KEY_LENGTH && agentInfos.noneMatch(v -> v.loginKey.equals(loginKey))) {
-            final AgentInfo info = this.agentInfos.computeIfAbsent(agentId, AgentInfo::new);
-            info.loginKey = new TemporaryKey(loginKey, LOGIN_KEY_TIME_LIMIT);
+        if (loginKey.length() == LOGIN_KEY_LENGTH && agentId.length() <= MAX_AGENT_ID_LENGTH
+                && (cluster == null || cluster.isLocal(agentId))
+                && claimLoginKey(loginKey, newKey)) {
+            final AgentInfo info = this.agentInfos.computeIfAbsent(agentId, this::newAgentInfo);
+            synchronized (info) {
+                releaseLoginKey(info.loginKey);
+                info.loginKey = newKey;
+                journal.registered(info);
+            }
+            journal.commit();
+            sweepIfDue(registrationsSinceSweep, loginKeys, TemporaryKey::isExpired);
             return true;
         } else {
             return false;
         }
     }
 
+    private AgentInfo newAgentInfo(String agentId) {
+        return new AgentInfo(agentId, messageStore != null
+                ? messageStore.newMailbox(agentId, metrics)
+                : new Mailbox(agentId, metrics));
+    }
+
+    /**
+     * Atomically stores the key in the login key index, unless the
+     * index already holds the same key and that key has not expired.
+     *
+     * @return true if the key was stored.
+     */
+    private boolean claimLoginKey(String loginKey, TemporaryKey newKey) {
+        final TemporaryKey current = loginKeys.putIfAbsent(loginKey, newKey);
+        return current == null || (!current.equals(loginKey) && loginKeys.replace(loginKey, current, newKey));
+    }
+
+    /**
+     * Removes a login key that is being replaced from the index, so that it is free for reuse.
+     * Keys that have already expired cannot be read back and are left to the sweep.
+     */
+    private void releaseLoginKey(TemporaryKey oldKey) {
+        final String key = oldKey.getKey();
+        if (key != null) {
+            loginKeys.remove(key, oldKey);
+        }
+    }
+
+    /**
+     * Drops stale entries from an index once the number of additions since the last sweep
+     * reaches the size of the index, so that the cost of a sweep is spread over the
+     * additions that preceded it.
+     */
+    private static <V> void sweepIfDue(AtomicInteger additionsSinceSweep, Map<String, V> index, Predicate<V> stale) {
+        final int additions = additionsSinceSweep.incrementAndGet();
+        if (additions >= Math.max(MIN_ADDITIONS_BETWEEN_SWEEPS, index.size())
+                && additionsSinceSweep.compareAndSet(additions, 0)) {
+            index.values().removeIf(stale);
+        }
+    }
+
     /**
      * Logs in a user given an agent id and key.
      * Should check that the key is not older than 1 minute.
@@ -67,15 +299,38 @@ public class MessagingSystem {
      */
     public String login(String agentId, String loginKey) {
 
+        final long start = System.nanoTime();
+        try {
+            return loginAgent(agentId, loginKey);
+        } finally {
+            metrics.loginLatency.recordSince(start);
+        }
+    }
+
+    private String loginAgent(String agentId, String loginKey) {
+
         final AgentInfo info = agentInfos.get(agentId);
-        if (info != null && info.loginKey.equals(loginKey)) {
-            info.sessionKey = new TemporaryKey(Utils.getNRandomCharacters(SESSION_KEY_LENGTH), SESSION_KEY_TIME_LIMIT);
+        if (info == null) {
+            return null;
+        }
+        final String key = keyGenerator.nextKey(SESSION_KEY_LENGTH);
+        synchronized (info) {
+            if (!info.loginKey.equals(loginKey)) {
+                return null;
+            }
+            final TemporaryKey sessionKey = new TemporaryKey(key, SESSION_KEY_TIME_LIMIT, clock);
+            endSession(info);
+            info.sessionKey = sessionKey;
+            info.session = new Session(info.agentId, key, info, sessionKey);
             info.messagesSent = 0;
             info.messagesRecv = 0;
-            return info.sessionKey.getKey();
-        } else {
-            return null;
+            sessions.put(key, info.session);
+            journal.loggedIn(info);
+            info.mailbox.wakeWaiters(); // anyone waiting on the previous session
         }
+        journal.commit();
+        sweepIfDue(loginsSinceSweep, sessions, session -> !session.isActive());
+        return key;
     }
 
     /**
@@ -89,15 +344,69 @@ public class MessagingSystem {
 
         final AgentInfo info = agentInfos.get(agentId);
         if (info != null) {
-            info.sessionKey = new TemporaryKey("", Duration.ZERO);
-            info.messagesRecv = 0;
-            info.messagesSent = 0;
+            logout(info);
+            journal.commit();
             return true;
         } else {
             return false;
         }
     }
 
+    private void logout(AgentInfo info) {
+        synchronized (info) {
+            endSession(info);
+            info.sessionKey = new TemporaryKey("", Duration.ZERO, clock);
+            info.messagesRecv = 0;
+            info.messagesSent = 0;
+            journal.loggedOut(info);
+            info.mailbox.wakeWaiters();
+        }
+    }
+
+    /**
+     * Removes the agent's current session, if any, from the session index.
+     * Must be called while holding the agent's lock.
+     */
+    private void endSession(AgentInfo info) {
+        final Session session = info.session;
+        if (session != null) {
+            sessions.remove(session.key, session);
+            info.session = null;
+        }
+    }
+
+    /**
+     * Looks up the session with the given session key, in a single lookup.
+     *
+     * @param sessionKey The session key
+     * @param agentId    The id of the agent that the session should belong to
+     * @return the session if it belongs to the agent and has not expired, null otherwise
+     */
+    public Session authenticate(String sessionKey, String agentId) {
+
+        final Session session = sessionKey == null ? null : sessions.get(sessionKey);
+        if (session != null && session.agentId.equals(agentId) && session.isActive()) {
+            return session;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Works out why a session key was not accepted for an agent by {@link #authenticate(String, String)}.
+     *
+     * @param agentId The id of the agent that the session should belong to
+     * @return SOURCE_AGENT_DOES_NOT_EXIST if there is no such agent, SOURCE_AGENT_NOT_LOGGED_IN if its
+     * session has expired or it has logged out, or SESSION_KEY_UNRECOGNIZED otherwise.
+     */
+    public StatusCodes refusal(String agentId) {
+        final AgentInfo info = agentId == null ? null : agentInfos.get(agentId);
+        if (info == null) {
+            return SOURCE_AGENT_DOES_NOT_EXIST;
+        }
+        return info.sessionKey.isExpired() ? SOURCE_AGENT_NOT_LOGGED_IN : SESSION_KEY_UNRECOGNIZED;
+    }
+
     /**
      * Sends a message from the sourceAgent to the targetAgent.
      * Creates a message object and stores it in the target agent's mailbox.
@@ -105,6 +414,8 @@ public class MessagingSystem {
      * Should check that the sourceAgent is the same as the one currently logged in (by matching the session key).
      * Should check that a message does not contain any blocked words.
      * Should check that a message is not longer than 140 characters.
+     * Should check that neither agent has reached its quota, or with a {@link RateLimit},
+     * that neither agent is sending or receiving too fast.
      *
      * @param sessionKey    The session key
      * @param sourceAgentId The sender agent's id
@@ -114,59 +425,355 @@ public class MessagingSystem {
      */
     public StatusCodes sendMessage(String sessionKey, String sourceAgentId, String targetAgentId, String message) {
 
-        final AgentInfo sourceAgentInfo = agentInfos.get(sourceAgentId);
+        final long start = System.nanoTime();
+        final Session session = authenticate(sessionKey, sourceAgentId);
+        if (session != null) {
+            return sendMessage(session, targetAgentId, message);
+        }
+
+        final StatusCodes refusal = refusal(sourceAgentId);
+        final StatusCodes status;
+        if (refusal == SOURCE_AGENT_DOES_NOT_EXIST) {
+            status = SOURCE_AGENT_DOES_NOT_EXIST;
+        } else {
+            final String node = cluster != null && !agentInfos.containsKey(targetAgentId)
+                    ? cluster.forwardTarget(targetAgentId)
+                    : null;
+            if (node != null) {
+                // The node of the target agent refuses the message with the same status, if the target exists
+                status = cluster.deliver(node, sourceAgentId, targetAgentId, NO_MESSAGE, Instant.EPOCH, refusal,
+                        false, 0);
+            } else if (!agentInfos.containsKey(targetAgentId)) {
+                status = TARGET_AGENT_DOES_NOT_EXIST;
+            } else {
+                status = refusal;
+            }
+        }
+        metrics.sent(status);
+        metrics.sendLatency.recordSince(start);
+        return status;
+    }
+
+    /**
+     * Sends a message from the agent of an authenticated session to the targetAgent.
+     * Performs the same checks as {@link #sendMessage(String, String, String, String)},
+     * except that the session is not looked up or checked for expiry again.
+     *
+     * @param session       The sender agent's session
+     * @param targetAgentId The receiver agent's id
+     * @param message       The message to be sent
+     * @return "OK" if the message is sent, or an appropriate error if not.
+     */
+    public StatusCodes sendMessage(Session session, String targetAgentId, String message) {
+        final long start = System.nanoTime();
+        final StatusCodes status = sendMessage(session, targetAgentId, new Payload(message, blockedWordFilter, clock));
+        journal.commit();
+        metrics.sendLatency.recordSince(start);
+        return status;
+    }
+
+    /**
+     * Sends the same message from the sourceAgent to each of the targetAgents.
+     * <p>
+     * The result for each target agent is the same as if the message was sent to the target
+     * agents one by one using {@link #sendMessage(String, String, String, String)}, in order,
+     * and the quotas of the agents are counted in the same way. However, the session is only
+     * looked up once and the blocked words are only removed once.
+     *
+     * @param sessionKey     The session key
+     * @param sourceAgentId  The sender agent's id
+     * @param targetAgentIds The receiver agents' ids
+     * @param message        The message to be sent
+     * @return The status for each of the receiver agents, in the same order.
+     */
+    public List<StatusCodes> multicastMessage(String sessionKey, String sourceAgentId,
+                                              List<String> targetAgentIds, String message) {
+
+        final Session session = authenticate(sessionKey, sourceAgentId);
+        if (session != null) {
+            return multicastMessage(session, targetAgentIds, message);
+        }
+
+        final List<StatusCodes> statuses = new ArrayList<>(targetAgentIds.size());
+        for (final String targetAgentId : targetAgentIds) {
+            statuses.add(sendMessage(sessionKey, sourceAgentId, targetAgentId, message));
+        }
+        return statuses;
+    }
+
+    /**
+     * Sends the same message from the agent of an authenticated session to each of the targetAgents.
+     * Performs the same checks as {@link #multicastMessage(String, String, List, String)}, except
+     * that the session is not looked up or checked for expiry again.
+     *
+     * @param session        The sender agent's session
+     * @param targetAgentIds The receiver agents' ids
+     * @param message        The message to be sent
+     * @return The status for each of the receiver agents, in the same order.
+     */
+    public List<StatusCodes> multicastMessage(Session session, List<String> targetAgentIds, String message) {
+
+        final Payload payload = new Payload(message, blockedWordFilter, clock);
+        final List<StatusCodes> statuses = new ArrayList<>(targetAgentIds.size());
+        for (final String targetAgentId : targetAgentIds) {
+            statuses.add(sendMessage(session, targetAgentId, payload));
+        }
+        journal.commit();
+        return statuses;
+    }
+
+    private StatusCodes sendMessage(Session session, String targetAgentId, Payload payload) {
+
+        final AgentInfo sourceAgentInfo = session.agentInfo;
         final AgentInfo targetAgentInfo = agentInfos.get(targetAgentId);
 
-        if (sourceAgentInfo == null) {
-            return SOURCE_AGENT_DOES_NOT_EXIST;
+        final StatusCodes status;
+        if (targetAgentInfo == null) {
+            final String node = cluster != null ? cluster.forwardTarget(targetAgentId) : null;
+            status = node != null
+                    ? forwardMessage(session, node, targetAgentId, payload)
+                    : TARGET_AGENT_DOES_NOT_EXIST;
+        } else {
+            // Both agents are locked, always in agent ID order so that opposite sends cannot deadlock
+            final boolean sourceFirst = session.agentId.compareTo(targetAgentId) <= 0;
+            synchronized (sourceFirst ? sourceAgentInfo : targetAgentInfo) {
+                synchronized (sourceFirst ? targetAgentInfo : sourceAgentInfo) {
+                    status = sendMessage(session, targetAgentInfo, targetAgentId, payload);
+                }
+            }
+        }
+        metrics.sent(status);
+        return status;
+    }
 
-        } else if (targetAgentInfo == null) {
-            return TARGET_AGENT_DOES_NOT_EXIST;
+    /**
+     * Performs the checks and delivery of {@link #sendMessage(Session, String, String)}.
+     * Must be called while holding the locks of both the source and target agents.
+     */
+    private StatusCodes sendMessage(final Session session, final AgentInfo targetAgentInfo,
+                                    String targetAgentId, Payload payload) {
 
-        } else if (!agentLoggedIn(sourceAgentId)) {
-            return SOURCE_AGENT_NOT_LOGGED_IN;
+        final AgentInfo sourceAgentInfo = session.agentInfo;
 
-        } else if (!sourceAgentInfo.sessionKey.equals(sessionKey)) {
-            return SESSION_KEY_UNRECOGNIZED;
+        if (!session.isCurrent()) {
+            return SOURCE_AGENT_NOT_LOGGED_IN;
 
-        } else if (message.length() > MAX_MESSAGE_LENGTH) {
+        } else if (payload.message.length() > MAX_MESSAGE_LENGTH) {
             return MESSAGE_LENGTH_EXCEEDED;
 
         } else {
-            boolean sourceLoggedOut = false, targetLoggedOut = false;
-            if (sourceAgentInfo.messagesSent == MAX_MESSAGES_SENT) {
-                logout(sourceAgentId);
-                sourceLoggedOut = true;
-            }
-            if (targetAgentInfo.messagesRecv == MAX_MESSAGES_RECV) {
-                logout(targetAgentId);
-                targetLoggedOut = true;
-            }
-
-            if (sourceLoggedOut && targetLoggedOut) {
-                return StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED;
-            } else if (sourceLoggedOut) {
-                return StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED;
-            } else if (targetLoggedOut) {
-                return StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED;
+            final StatusCodes refused = rateLimit != null
+                    ? rateLimit.tryAcquire(sourceAgentInfo, targetAgentInfo)
+                    : enforceQuotas(sourceAgentInfo, targetAgentInfo);
+            if (refused != null) {
+                return refused;
+            }
+            final Message toSend = payload.to(sourceAgentInfo.agentId, targetAgentInfo.agentId,
+                    ++targetAgentInfo.lastSequence);
+            if (targetAgentInfo.mailbox.addMessage(toSend)) {
+                sourceAgentInfo.messagesSent++;
+                targetAgentInfo.messagesRecv++;
+                journal.messageAdded(sourceAgentInfo, targetAgentInfo, toSend);
+                return StatusCodes.OK;
             } else {
-                // Remove blocked words
-                for (final String word : BLOCKED_WORDS) {
-                    message = message.replaceAll("(?i)" + word + "\\s?", "");
+                return StatusCodes.FAILED_TO_ADD_TO_MAILBOX;
+            }
+        }
+    }
+
+    /**
+     * The message forwarded for a send that the source agent's checks have refused, which only
+     * finds out from the node of the target agent whether that agent exists.
+     */
+    private static final byte[] NO_MESSAGE = new byte[0];
+
+    /**
+     * Sends a message to an agent on another node of the cluster, which checks the target agent
+     * and delivers the message. The source agent is not held while the other node is waited on,
+     * so that opposite sends between two nodes cannot deadlock; instead, the message is counted
+     * towards the source agent's quota up front, and given back unless it is delivered.
+     */
+    private StatusCodes forwardMessage(Session session, String node, String targetAgentId, Payload payload) {
+
+        final AgentInfo sourceAgentInfo = session.agentInfo;
+        final StatusCodes refusal;
+        final boolean sourceAtQuota;
+        synchronized (sourceAgentInfo) {
+            if (!session.isCurrent()) {
+                refusal = SOURCE_AGENT_NOT_LOGGED_IN;
+            } else if (payload.message.length() > MAX_MESSAGE_LENGTH) {
+                refusal = MESSAGE_LENGTH_EXCEEDED;
+            } else {
+                refusal = null;
+            }
+            sourceAtQuota = refusal == null && sourceAgentInfo.messagesSent == MAX_MESSAGES_SENT;
+            if (refusal == null && !sourceAtQuota) {
+                sourceAgentInfo.messagesSent++;
+            }
+        }
+
+        final byte[] encodedMessage = payload.filtered();
+        final StatusCodes status = cluster.deliver(node, session.agentId, targetAgentId, encodedMessage,
+                payload.timestamp, refusal, sourceAtQuota, 0);
+        if (refusal == null && status != StatusCodes.OK) {
+            synchronized (sourceAgentInfo) {
+                if (!session.isCurrent()) {
+                    // logged out (or in again) meanwhile, which has reset the count
+                } else if (status == SOURCE_AGENT_QUOTA_EXCEEDED || status == BOTH_AGENT_QUOTAS_EXCEEDED) {
+                    logout(sourceAgentInfo);
+                } else if (!sourceAtQuota) {
+                    sourceAgentInfo.messagesSent--;
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Delivers a message that another node of the cluster forwarded to an agent on this node, or forwards
+     * it again if the agent is being moved to or from this node. The source agent has been checked by its
+     * own node, which passes on the outcome.
+     *
+     * @param sourceRefusal The status that the source agent's checks refused the message with, if any.
+     * @param sourceAtQuota Whether the source agent has reached its quota.
+     * @param hops          The number of times the message has already been forwarded.
+     * @return The status of sending the message, as {@link #sendMessage(Session, String, String)} would return it.
+     */
+    StatusCodes deliver(String sourceAgentId, String targetAgentId, byte[] encodedMessage, Instant timestamp,
+                        StatusCodes sourceRefusal, boolean sourceAtQuota, int hops) {
+
+        final AgentInfo targetAgentInfo = agentInfos.get(targetAgentId);
+        if (targetAgentInfo == null) {
+            final String node = hops < Cluster.MAX_HOPS ? cluster.forwardTarget(targetAgentId) : null;
+            return node != null
+                    ? cluster.deliver(node, sourceAgentId, targetAgentId, encodedMessage, timestamp,
+                    sourceRefusal, sourceAtQuota, hops + 1)
+                    : TARGET_AGENT_DOES_NOT_EXIST;
+        } else if (sourceRefusal != null) {
+            return sourceRefusal;
+        }
+
+        synchronized (targetAgentInfo) {
+            if (agentInfos.get(targetAgentId) == targetAgentInfo) {
+                return deliver(sourceAgentId, targetAgentInfo, encodedMessage, timestamp, sourceAtQuota);
+            }
+        }
+        // Handed over to another node while waiting for the lock
+        return deliver(sourceAgentId, targetAgentId, encodedMessage, timestamp, null, sourceAtQuota, hops);
+    }
+
+    /**
+     * Performs the checks on the target agent and the delivery of {@link #deliver(String, String, byte[],
+     * Instant, StatusCodes, boolean, int)}. Must be called while holding the lock of the target agent.
+     */
+    private StatusCodes deliver(String sourceAgentId, AgentInfo targetAgentInfo, byte[] encodedMessage,
+                                Instant timestamp, boolean sourceAtQuota) {
+        final boolean targetAtQuota = targetAgentInfo.messagesRecv == MAX_MESSAGES_RECV;
+        if (targetAtQuota) {
+            logout(targetAgentInfo);
+        }
+        if (sourceAtQuota && targetAtQuota) {
+            return StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED;
+        } else if (sourceAtQuota) {
+            return StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED;
+        } else if (targetAtQuota) {
+            return StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED;
+        }
+        final Message toSend = new Message(sourceAgentId, targetAgentInfo.agentId, encodedMessage, timestamp,
+                clock, ++targetAgentInfo.lastSequence);
+        if (targetAgentInfo.mailbox.addMessage(toSend)) {
+            targetAgentInfo.messagesRecv++;
+            return StatusCodes.OK;
+        } else {
+            return StatusCodes.FAILED_TO_ADD_TO_MAILBOX;
+        }
+    }
+
+    /**
+     * Hands the agents that now belong to another node of the cluster over to it. Each agent is moved under
+     * its lock, so that nothing happens to the agent while it is being moved, and is then removed from this
+     * node. Sessions of a moved agent end on this node, but its session key is valid on the other node.
+     *
+     * @param moving     Whether an agent ID now belongs to the other node.
+     * @param node       The other node.
+     * @param handedOver Told of each agent once it has been moved.
+     * @throws IOException if the other node cannot be reached or times out, in which case the agents that have
+     *                     not been moved yet stay on this node.
+     */
+    void handOver(Predicate<String> moving, String node, Cluster.HandOverListener handedOver) throws IOException {
+        for (final AgentInfo info : agentInfos.values()) {
+            if (moving.test(info.agentId)) {
+                synchronized (info) {
+                    if (agentInfos.get(info.agentId) != info) {
+                        continue;
+                    }
+                    cluster.handOver(node, info);
+                    agentInfos.remove(info.agentId, info);
+                    retire(info);
                 }
+                handedOver.handedOver();
+            }
+        }
+    }
 
-                final Message toSend = new Message(sourceAgentId, targetAgentId, message);
-                if (targetAgentInfo.mailbox.addMessage(toSend)) {
-                    sourceAgentInfo.messagesSent++;
-                    targetAgentInfo.messagesRecv++;
-                    return StatusCodes.OK;
-                } else {
-                    return StatusCodes.FAILED_TO_ADD_TO_MAILBOX;
+    /**
+     * Takes over an agent that another node of the cluster has handed over, in place of any
+     * agent of the same ID that was registered here meanwhile.
+     *
+     * @param record The agent, as written by {@link Snapshot#writeAgent(java.io.DataOutputStream, AgentInfo)}.
+     */
+    void adopt(ByteBuffer record) {
+        final Map<String, AgentInfo> adopted = new HashMap<>(1);
+        Snapshot.readAgent(record, adopted, loginKeys, sessions, this::newAgentInfo);
+        for (final AgentInfo info : adopted.values()) {
+            final AgentInfo replaced = agentInfos.put(info.agentId, info);
+            if (replaced != null) {
+                synchronized (replaced) {
+                    retire(replaced);
                 }
             }
         }
     }
 
+    /**
+     * Ends the keys and session of an agent that is no longer held by this system, so that anyone still
+     * holding on to its session finds it logged out. Must be called while holding the agent's lock.
+     */
+    private void retire(AgentInfo info) {
+        releaseLoginKey(info.loginKey);
+        endSession(info);
+        info.sessionKey = new TemporaryKey("", Duration.ZERO, clock);
+        info.mailbox.wakeWaiters();
+    }
+
+    /**
+     * Logs out the source and target agents if they have reached their quotas.
+     * Must be called while holding the locks of both agents.
+     *
+     * @return null if neither agent has reached its quota, or the status to refuse the message with otherwise.
+     */
+    private StatusCodes enforceQuotas(AgentInfo sourceAgentInfo, AgentInfo targetAgentInfo) {
+        boolean sourceLoggedOut = false, targetLoggedOut = false;
+        if (sourceAgentInfo.messagesSent == MAX_MESSAGES_SENT) {
+            logout(sourceAgentInfo);
+            sourceLoggedOut = true;
+        }
+        if (targetAgentInfo.messagesRecv == MAX_MESSAGES_RECV) {
+            logout(targetAgentInfo);
+            targetLoggedOut = true;
+        }
+
+        if (sourceLoggedOut && targetLoggedOut) {
+            return StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED;
+        } else if (sourceLoggedOut) {
+            return StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED;
+        } else if (targetLoggedOut) {
+            return StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED;
+        } else {
+            return null;
+        }
+    }
+
     /**
      * @return true if the agent has messages
      */
@@ -177,6 +784,35 @@ public class MessagingSystem {
 
     }
 
+    /**
+     * Runs the waiter once, as soon as the session's agent has a message to consume or the session
+     * ends through a logout or another login. The waiter may run on the thread that sends the
+     * message, while it holds the locks of the agents involved, so it should only hand the work
+     * over to another thread.
+     *
+     * @param session The session of the agent to wait for.
+     * @param waiter  The waiter to run.
+     * @return false if the session is no longer active, in which case the waiter is not added.
+     */
+    public boolean awaitMessage(Session session, Runnable waiter) {
+        if (!session.isActive()) {
+            return false;
+        }
+        session.agentInfo.mailbox.addWaiter(waiter);
+        return true;
+    }
+
+    /**
+     * Stops waiting for a message, if the waiter has not run yet.
+     *
+     * @param session The session that was passed to {@link #awaitMessage}.
+     * @param waiter  The waiter that was passed to {@link #awaitMessage}.
+     * @return true if the waiter will no longer run, false if it has already run.
+     */
+    public boolean cancelAwait(Session session, Runnable waiter) {
+        return session.agentInfo.mailbox.removeWaiter(waiter);
+    }
+
     /**
      * Consumes the next message from the agent's mailbox
      *
@@ -185,14 +821,69 @@ public class MessagingSystem {
      */
     public Message getNextMessage(String sessionKey, String agentId) {
 
-        final AgentInfo agentInfo = agentInfos.get(agentId);
-        if (agentInfo != null
-                && agentLoggedIn(agentId)
-                && agentInfo.sessionKey.equals(sessionKey)) {
-            return agentInfo.mailbox.consumeNextMessage();
-        } else {
-            return null;
+        final Session session = authenticate(sessionKey, agentId);
+        return session != null ? getNextMessage(session) : null;
+    }
+
+    /**
+     * Consumes the next message from the mailbox of an authenticated session's agent
+     *
+     * @return the next message if the agent is still logged in and has
+     * messages, null otherwise
+     */
+    public Message getNextMessage(Session session) {
+
+        final long start = System.nanoTime();
+        final Message message;
+        synchronized (session.agentInfo) {
+            message = session.isCurrent() ? session.agentInfo.mailbox.consumeNextMessage() : null;
+            if (message != null) {
+                journal.messagesConsumed(session.agentInfo, message);
+            }
+        }
+        if (message != null) {
+            journal.commit();
+        }
+        metrics.consumeLatency.recordSince(start);
+        return message;
+    }
+
+    /**
+     * Consumes up to the given number of messages from the agent's mailbox, in FIFO order
+     *
+     * @param max The maximum number of messages to consume
+     * @return the next messages if the agent is logged in, or an empty
+     * list if the agent is not logged in or has no messages
+     */
+    public List<Message> getNextMessages(String sessionKey, String agentId, int max) {
+
+        final Session session = authenticate(sessionKey, agentId);
+        return session != null ? getNextMessages(session, max) : Collections.emptyList();
+    }
+
+    /**
+     * Consumes up to the given number of messages from the mailbox of an
+     * authenticated session's agent, in FIFO order
+     *
+     * @param max The maximum number of messages to consume
+     * @return the next messages if the agent is still logged in, or an empty
+     * list if the agent has logged out since or has no messages
+     */
+    public List<Message> getNextMessages(Session session, int max) {
+
+        final long start = System.nanoTime();
+        final List<Message> messages;
+        synchronized (session.agentInfo) {
+            messages = session.isCurrent() ? session.agentInfo.mailbox.consumeNextMessages(max) : Collections.emptyList();
+            if (!messages.isEmpty()) {
+                journal.messagesConsumed(session.agentInfo, messages.get(messages.size() - 1));
+            }
+        }
+        if (!messages.isEmpty()) {
+            journal.commit();
         }
+        metrics.consumeLatency.recordSince(start);
+        return messages;
     }
 
     /**
@@ -204,4 +895,97 @@ public class MessagingSystem {
         final AgentInfo agentInfo = agentInfos.get(agentId);
         return agentInfo != null && !agentInfo.sessionKey.isExpired();
     }
+
+    /**
+     * @return The generator of session keys, which supervisors of this system generate login keys with too.
+     */
+    KeyGenerator getKeyGenerator() {
+        return keyGenerator;
+    }
+
+    /**
+     * Writes a snapshot of the whole system to its journal, so that a restart only has to replay the
+     * changes made since. The system stays in use meanwhile; each agent is held only while it is copied.
+     *
+     * @throws IOException           if the snapshot cannot be written.
+     * @throws IllegalStateException if the system has no journal.
+     */
+    public void snapshot() throws IOException {
+        journal.snapshot(agentInfos.values());
+    }
+
+    /**
+     * Writes the metrics of the system in the Prometheus text format: the outcomes of sending
+     * messages, the latencies of logging in, sending and consuming, the expired messages dropped,
+     * and the agents, active sessions and queued messages as they are now. Working out the
+     * latter visits every agent and session, without locking any of them.
+     *
+     * @param out Where to write the metrics.
+     * @throws IOException if the metrics cannot be written.
+     */
+    public void writeMetrics(Appendable out) throws IOException {
+        metrics.write(out);
+
+        long queued = 0, deepest = 0;
+        for (final AgentInfo agentInfo : agentInfos.values()) {
+            final int depth = agentInfo.mailbox.size();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        long activeSessions = 0;
+        for (final Session session : sessions.values()) {
+            if (session.isActive()) {
+                activeSessions++;
+            }
+        }
+        Metrics.writeGauge(out, "messaging_agents", "Agents that have registered.", agentInfos.size());
+        Metrics.writeGauge(out, "messaging_sessions_active", "Sessions that are logged in and have not expired.",
+                activeSessions);
+        Metrics.writeGauge(out, "messaging_mailbox_messages",
+                "Messages waiting in all mailboxes, including expired ones not dropped yet.", queued);
+        Metrics.writeGauge(out, "messaging_mailbox_messages_max",
+                "Messages waiting in the fullest mailbox.", deepest);
+        if (messageStore != null) {
+            Metrics.writeGauge(out, "messaging_message_store_used_bytes",
+                    "Bytes taken up by messages in the message store.", messageStore.usedBytes());
+            Metrics.writeGauge(out, "messaging_message_store_reserved_bytes",
+                    "Bytes reserved by the message store.", messageStore.reservedBytes());
+        }
+    }
+
+    /**
+     * The contents of a message being sent to one or more agents. The blocked words are
+     * removed when the first copy of the message is delivered, and all the copies share
+     * the filtered contents and the timestamp.
+     */
+    private static final class Payload {
+
+        private final String message;
+        private final BlockedWordFilter blockedWordFilter;
+        private final Clock clock;
+        private byte[] filtered = null;
+        private Instant timestamp = null;
+
+        private Payload(String message, BlockedWordFilter blockedWordFilter, Clock clock) {
+            this.message = message;
+            this.blockedWordFilter = blockedWordFilter;
+            this.clock = clock;
+        }
+
+        private Message to(String sourceAgentId, String targetAgentId, long sequence) {
+            return new Message(sourceAgentId, targetAgentId, filtered(), timestamp, clock, sequence);
+        }
+
+        /**
+         * @return the filtered contents, encoded by {@link CompactText#encode(String)}, after which
+         * the timestamp is set too
+         */
+        private byte[] filtered() {
+            if (filtered == null) {
+                filtered = CompactText.encode(blockedWordFilter.filter(message));
+                timestamp = Instant.now(clock);
+            }
+            return filtered;
+        }
+    }
 }
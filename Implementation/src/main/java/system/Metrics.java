@@ -0,0 +1,99 @@
+package system;
+
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a {@link MessagingSystem}, written out in the Prometheus
+ * text format by {@link MessagingSystem#writeMetrics(Appendable)}. Everything recorded here is
+ * recorded on the paths of requests, so recording is lock-free and allocates nothing; the
+ * gauges, such as the depth of the mailboxes, are instead worked out when the metrics are written.
+ */
+final class Metrics {
+
+    private static final StatusCodes[] STATUSES = StatusCodes.values();
+
+    /**
+     * Metrics that nobody reads, for mailboxes that are not part of a messaging system.
+     */
+    static final Metrics NONE = new Metrics();
+
+    final LatencyHistogram loginLatency = new LatencyHistogram();
+    final LatencyHistogram sendLatency = new LatencyHistogram();
+    final LatencyHistogram consumeLatency = new LatencyHistogram();
+    private final LongAdder[] sent = new LongAdder[STATUSES.length];
+    private final LongAdder expiredMessages = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts the outcome of sending a message to one agent.
+     */
+    void sent(StatusCodes status) {
+        sent[status.ordinal()].increment();
+    }
+
+    /**
+     * Counts messages that were dropped from a mailbox because they expired before being consumed.
+     */
+    void expired(int count) {
+        if (count > 0) {
+            expiredMessages.add(count);
+        }
+    }
+
+    /**
+     * Writes the counters and histograms.
+     */
+    void write(Appendable out) throws IOException {
+        writeHeader(out, "messaging_messages_sent_total", "counter",
+                "Messages sent to an agent, by the status returned.");
+        for (final StatusCodes status : STATUSES) {
+            out.append("messaging_messages_sent_total{status=\"").append(status.name()).append("\"} ")
+                    .append(Long.toString(sent[status.ordinal()].sum())).append('\n');
+        }
+        writeCounter(out, "messaging_messages_expired_total",
+                "Messages dropped from mailboxes because they expired before being consumed.", expiredMessages.sum());
+        writeHistogram(out, "messaging_login_duration_seconds", "Time taken to log in.", loginLatency);
+        writeHistogram(out, "messaging_send_duration_seconds", "Time taken to send a message.", sendLatency);
+        writeHistogram(out, "messaging_consume_duration_seconds",
+                "Time taken to consume messages from a mailbox.", consumeLatency);
+    }
+
+    private static void writeCounter(Appendable out, String name, String help, long value) throws IOException {
+        writeHeader(out, name, "counter", help);
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    static void writeGauge(Appendable out, String name, String help, long value) throws IOException {
+        writeHeader(out, name, "gauge", help);
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void writeHistogram(Appendable out, String name, String help, LatencyHistogram histogram)
+            throws IOException {
+        writeHeader(out, name, "histogram", help);
+        long cumulative = 0;
+        for (int bucket = 0; bucket < histogram.buckets(); bucket++) {
+            cumulative += histogram.count(bucket);
+            final String bound = bucket < LatencyHistogram.BOUNDED_BUCKETS
+                    ? Double.toString(LatencyHistogram.upperBoundNanos(bucket) / 1e9)
+                    : "+Inf";
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+        out.append(name).append("_sum ").append(Double.toString(histogram.totalNanos() / 1e9)).append('\n');
+        out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+    }
+
+    private static void writeHeader(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
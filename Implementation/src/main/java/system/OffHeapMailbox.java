@@ -0,0 +1,132 @@
+package system;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A mailbox that keeps its messages in a {@link MessageStore}. The mailbox itself holds only a
+ * ring of the handles of its messages, in FIFO order, guarded by the mailbox's monitor; every
+ * message is decoded and freed while that monitor is held, so a slot is never read once freed.
+ */
+final class OffHeapMailbox extends Mailbox {
+
+    private final MessageStore store;
+    private long[] handles = new long[4];
+    private int head = 0;
+    private int size = 0;
+
+    OffHeapMailbox(String ownerId, MessageStore store, Metrics metrics) {
+        super(ownerId, null, metrics);
+        this.store = store;
+    }
+
+    @Override
+    public synchronized Message consumeNextMessage() {
+        while (size > 0) {
+            final long handle = removeFirst();
+            final Message message = store.isExpired(handle) ? null : store.get(handle, ownerId);
+            store.free(handle);
+            if (message != null) {
+                return message;
+            }
+            metrics.expired(1);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized List<Message> consumeNextMessages(int max) {
+        if (max <= 0 || size == 0) {
+            return Collections.emptyList();
+        }
+        final List<Message> consumed = new ArrayList<>(Math.min(max, size));
+        while (consumed.size() < max && size > 0) {
+            final long handle = removeFirst();
+            if (!store.isExpired(handle)) {
+                consumed.add(store.get(handle, ownerId));
+            } else {
+                metrics.expired(1);
+            }
+            store.free(handle);
+        }
+        return consumed;
+    }
+
+    @Override
+    public synchronized boolean hasMessages() {
+        while (size > 0 && store.isExpired(handles[head])) {
+            store.free(removeFirst());
+            metrics.expired(1);
+        }
+        return size > 0;
+    }
+
+    @Override
+    boolean offer(Message message) {
+        final long handle = store.put(message);
+        if (handle < 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (size == handles.length) {
+                final long[] grown = new long[handles.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = handles[(head + i) % handles.length];
+                }
+                handles = grown;
+                head = 0;
+            }
+            handles[(head + size++) % handles.length] = handle;
+        }
+        return true;
+    }
+
+    @Override
+    synchronized void removeMessagesThrough(long sequence) {
+        while (size > 0 && store.getSequence(handles[head]) <= sequence) {
+            store.free(removeFirst());
+        }
+    }
+
+    @Override
+    synchronized List<Message> peekMessages() {
+        final List<Message> unexpired = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final long handle = handles[(head + i) % handles.length];
+            if (!store.isExpired(handle)) {
+                unexpired.add(store.get(handle, ownerId));
+            }
+        }
+        return unexpired;
+    }
+
+    @Override
+    synchronized int removeExpiredMessages() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            final long handle = handles[(head + i) % handles.length];
+            if (store.isExpired(handle)) {
+                store.free(handle);
+            } else {
+                handles[(head + kept++) % handles.length] = handle;
+            }
+        }
+        final int removed = size - kept;
+        size = kept;
+        metrics.expired(removed);
+        return removed;
+    }
+
+    @Override
+    synchronized int size() {
+        return size;
+    }
+
+    private long removeFirst() {
+        final long handle = handles[head];
+        head = (head + 1) % handles.length;
+        size--;
+        return handle;
+    }
+}
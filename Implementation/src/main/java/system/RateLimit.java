@@ -0,0 +1,81 @@
+package system;
+
+import util.Ticker;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Limits how fast each agent may send and receive messages, as an alternative to the quotas
+ * that log an agent out after 25 messages. Every agent has a token bucket for sending and
+ * another for receiving, each holding up to the burst and refilled at the rate; a message
+ * that finds either bucket empty is refused with a status saying which agent is sending or
+ * receiving too fast, and nobody is logged out.
+ * <p>
+ * A bucket is kept as the single time at which it will be full again, in the agent itself,
+ * and is taken from by compare-and-set, so checking the limit takes no locks and allocates
+ * nothing. Times are measured from when the rate limit was created, whatever the origin of its
+ * clock, so that a new agent's buckets, full at time 0, are full. The buckets are not journaled;
+ * after a restart every bucket is full.
+ */
+public final class RateLimit {
+
+    private static final AtomicLongFieldUpdater<AgentInfo> SEND =
+            AtomicLongFieldUpdater.newUpdater(AgentInfo.class, "sendBucketFullAt");
+    private static final AtomicLongFieldUpdater<AgentInfo> RECV =
+            AtomicLongFieldUpdater.newUpdater(AgentInfo.class, "recvBucketFullAt");
+
+    private final long intervalNanos; // to refill one token
+    private final long capacityNanos; // to refill the whole bucket
+    private final Ticker ticker;
+    private final long startMillis; // of the ticker, from which times are measured
+
+    /**
+     * @param messagesPerSecond The rate at which each agent may keep sending, and keep receiving, messages.
+     * @param burst             The number of messages each agent may send, or receive, at once.
+     * @throws IllegalArgumentException if the rate or the burst is not positive.
+     */
+    public RateLimit(double messagesPerSecond, int burst) {
+        this(messagesPerSecond, burst, Clock.systemUTC());
+    }
+
+    RateLimit(double messagesPerSecond, int burst, Clock clock) {
+        if (!(messagesPerSecond > 0) || burst <= 0) {
+            throw new IllegalArgumentException("Rate limit and burst must be positive.");
+        }
+        this.intervalNanos = Math.max(1, (long) (1e9 / messagesPerSecond));
+        this.capacityNanos = intervalNanos * burst;
+        this.ticker = Ticker.forClock(clock);
+        this.startMillis = ticker.read();
+    }
+
+    /**
+     * Takes a token from the source's sending bucket and one from the target's receiving bucket,
+     * or neither of them.
+     *
+     * @return null if the message may be sent, or the status to refuse it with otherwise.
+     */
+    StatusCodes tryAcquire(AgentInfo source, AgentInfo target) {
+        final long now = (ticker.read() - startMillis) * 1_000_000;
+        if (!tryTake(SEND, source, now)) {
+            return StatusCodes.SOURCE_AGENT_RATE_LIMITED;
+        } else if (!tryTake(RECV, target, now)) {
+            SEND.getAndAdd(source, -intervalNanos); // give the token back
+            return StatusCodes.TARGET_AGENT_RATE_LIMITED;
+        } else {
+            return null;
+        }
+    }
+
+    private boolean tryTake(AtomicLongFieldUpdater<AgentInfo> bucket, AgentInfo agentInfo, long now) {
+        long fullAt, taken;
+        do {
+            fullAt = bucket.get(agentInfo);
+            taken = Math.max(fullAt, now) + intervalNanos;
+            if (taken - now > capacityNanos) {
+                return false;
+            }
+        } while (!bucket.compareAndSet(agentInfo, fullAt, taken));
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+package system;
+
+/**
+ * The session of a logged in agent, as returned by {@link MessagingSystem#authenticate(String, String)}.
+ * <p>
+ * A session is looked up and checked for expiry once, when it is authenticated. It can then be
+ * passed to the messaging system for the rest of the request instead of the session key and agent
+ * ID, in which case the system only checks that the agent has not logged out (or in again) since.
+ */
+public final class Session {
+
+    final String agentId;
+    final String key;
+    final AgentInfo agentInfo;
+    final TemporaryKey sessionKey;
+
+    Session(String agentId, String key, AgentInfo agentInfo, TemporaryKey sessionKey) {
+        this.agentId = agentId;
+        this.key = key;
+        this.agentInfo = agentInfo;
+        this.sessionKey = sessionKey;
+    }
+
+    /**
+     * @return the id of the agent that owns the session
+     */
+    public String getAgentId() {
+        return agentId;
+    }
+
+    /**
+     * @return true if this is still the agent's session, i.e. the agent has not logged out since
+     */
+    boolean isCurrent() {
+        return agentInfo.sessionKey == sessionKey;
+    }
+
+    /**
+     * @return true if this is still the agent's session and it has not expired, which
+     * those holding on to a session for longer than a request should check now and then
+     */
+    public boolean isActive() {
+        return isCurrent() && !sessionKey.isExpired();
+    }
+}
@@ -0,0 +1,241 @@
+package system;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact binary copy of the state of every agent: keys with their deadlines, counters and the
+ * messages in the mailbox. A snapshot is taken while the system is in use, one agent at a time under
+ * that agent's lock, so each agent is consistent but agents may be copied at different points in time.
+ * The journal makes up for that by numbering the changes to each agent (see {@link AgentInfo#version}).
+ * <p>
+ * A snapshot is written to a temporary file that replaces the previous snapshot once it is complete,
+ * and ends with a CRC32 of its contents. It is read back through a memory-mapped buffer.
+ */
+final class Snapshot {
+
+    private static final int MAGIC = 0x534e5031; // "SNP1"
+    private static final byte AGENT = 1, END = 0;
+
+    private static final Clock CLOCK = Clock.systemUTC();
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the agents.
+     *
+     * @param file       The snapshot file, which is replaced once the snapshot is complete.
+     * @param agents     The agents, which must be safe to iterate concurrently.
+     * @param logSegment The first segment of the log that holds changes which may not be in the snapshot.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    static void write(Path file, Collection<AgentInfo> agents, long logSegment) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final OutputStream raw = Channels.newOutputStream(channel);
+            final CheckedOutputStream checked = new CheckedOutputStream(raw, new CRC32());
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 64 << 10));
+
+            out.writeInt(MAGIC);
+            out.writeLong(logSegment);
+            for (final AgentInfo info : agents) {
+                out.writeByte(AGENT);
+                writeAgent(out, info);
+            }
+            out.writeByte(END);
+            out.flush();
+            new DataOutputStream(raw).writeInt((int) checked.getChecksum().getValue());
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true); // so that the new snapshot is found after a crash, where supported
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the state of one agent, copied under the agent's lock.
+     */
+    static void writeAgent(DataOutputStream out, AgentInfo info) throws IOException {
+        final TemporaryKey loginKey, sessionKey;
+        final int messagesSent, messagesRecv;
+        final long lastSequence, version;
+        final List<Message> messages;
+        synchronized (info) {
+            loginKey = info.loginKey;
+            sessionKey = info.sessionKey;
+            messagesSent = info.messagesSent;
+            messagesRecv = info.messagesRecv;
+            lastSequence = info.lastSequence;
+            version = info.version;
+            messages = info.mailbox.peekMessages();
+        }
+
+        writeString(out, info.agentId);
+        out.writeLong(version);
+        writeKey(out, loginKey);
+        writeKey(out, sessionKey);
+        out.writeInt(messagesSent);
+        out.writeInt(messagesRecv);
+        out.writeLong(lastSequence);
+        out.writeInt(messages.size());
+        for (final Message message : messages) {
+            final String text = message.getMessage();
+            writeString(out, message.getSourceAgentId());
+            out.writeLong(message.getSequence());
+            writeInstant(out, message.getTimestamp());
+            writeString(out, text != null ? text : ""); // expired just now, so skipped when read
+        }
+    }
+
+    /**
+     * Restores the agents from a snapshot. Messages, login keys and sessions that have expired since are left out.
+     *
+     * @param file     The snapshot file.
+     * @param newAgent Creates the agents that are not in the map yet.
+     * @return The first segment of the log that holds changes which may not be in the snapshot.
+     * @throws IOException if the snapshot cannot be read or is damaged.
+     */
+    static long read(Path file, Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                     Map<String, Session> sessions, Function<String, AgentInfo> newAgent) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + file);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            final CRC32 crc = new CRC32();
+            final ByteBuffer contents = buffer.duplicate();
+            contents.limit(buffer.limit() - 4);
+            crc.update(contents);
+            if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Damaged snapshot: " + file);
+            }
+            buffer.limit(buffer.limit() - 4);
+            buffer.position(4);
+            return read(buffer, agentInfos, loginKeys, sessions, newAgent);
+        }
+    }
+
+    private static long read(ByteBuffer in, Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                             Map<String, Session> sessions, Function<String, AgentInfo> newAgent) {
+        final Reader reader = new Reader(in);
+        final long logSegment = in.getLong();
+
+        while (in.get() == AGENT) {
+            readAgent(in, reader, agentInfos, loginKeys, sessions, newAgent);
+        }
+        return logSegment;
+    }
+
+    /**
+     * Restores one agent written by {@link #writeAgent(DataOutputStream, AgentInfo)}, leaving out
+     * messages and keys that have expired since.
+     */
+    static void readAgent(ByteBuffer in, Map<String, AgentInfo> agentInfos, Map<String, TemporaryKey> loginKeys,
+                          Map<String, Session> sessions, Function<String, AgentInfo> newAgent) {
+        readAgent(in, new Reader(in), agentInfos, loginKeys, sessions, newAgent);
+    }
+
+    private static void readAgent(ByteBuffer in, Reader reader, Map<String, AgentInfo> agentInfos,
+                                  Map<String, TemporaryKey> loginKeys, Map<String, Session> sessions,
+                                  Function<String, AgentInfo> newAgent) {
+        final AgentInfo info = agentInfos.computeIfAbsent(reader.readId(), newAgent);
+        info.version = in.getLong();
+        info.restoreLoginKey(reader.readKey(), loginKeys);
+        info.restoreSessionKey(reader.readKey(), sessions);
+        info.messagesSent = in.getInt();
+        info.messagesRecv = in.getInt();
+        info.lastSequence = in.getLong();
+
+        for (int count = in.getInt(); count > 0; count--) {
+            final String sourceAgentId = reader.readId();
+            final long sequence = in.getLong();
+            final Instant timestamp = reader.readInstant();
+            final Message message = new Message(sourceAgentId, info.agentId, reader.readString(), timestamp,
+                    CLOCK, sequence);
+            info.mailbox.addMessage(message); // unless expired
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IOException("String too long for a snapshot: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeKey(DataOutputStream out, TemporaryKey key) throws IOException {
+        final String value = key.getKey();
+        final boolean live = value != null && !value.isEmpty(); // expired or placeholder keys are not kept
+        writeString(out, live ? value : "");
+        writeInstant(out, live ? key.getExpiry() : Instant.EPOCH);
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant instant) throws IOException {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    /**
+     * Decodes the fields of a snapshot. Agent IDs are shared between the agents
+     * and the messages they sent, rather than decoded into a string each time.
+     */
+    private static final class Reader {
+
+        private final ByteBuffer in;
+        private final byte[] scratch = new byte[0xffff];
+        private final Map<String, String> ids = new HashMap<>();
+
+        private Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        private String readString() {
+            final int length = in.getShort() & 0xffff;
+            in.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private String readId() {
+            final String id = readString();
+            final String shared = ids.putIfAbsent(id, id);
+            return shared != null ? shared : id;
+        }
+
+        private TemporaryKey readKey() {
+            return new TemporaryKey(readString(), readInstant());
+        }
+
+        private Instant readInstant() {
+            return Instant.ofEpochSecond(in.getLong(), in.getInt());
+        }
+    }
+}
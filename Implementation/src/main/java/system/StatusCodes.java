@@ -11,5 +11,7 @@ public enum StatusCodes {
     SOURCE_AGENT_NOT_LOGGED_IN,     // caused by system error (causes logout)
     SESSION_KEY_UNRECOGNIZED,       // caused by system error (causes logout)
     FAILED_TO_ADD_TO_MAILBOX,       // caused by system error (causes logout)
+    SOURCE_AGENT_RATE_LIMITED,      // caused by exceeded rate limit (no logout, try again later)
+    TARGET_AGENT_RATE_LIMITED,      // caused by exceeded rate limit (no logout, try again later)
     GENERIC_ERROR                   // represents an error
 }
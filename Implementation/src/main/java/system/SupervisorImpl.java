@@ -1,15 +1,29 @@
 package system;
 
-import util.Utils;
+import util.KeyGenerator;
 
 public class SupervisorImpl implements Supervisor {
 
     private static final int LOGIN_KEY_LENGTH = 10;
 
     private final MessagingSystem messagingSystem;
+    private final KeyGenerator keyGenerator;
 
+    /**
+     * @param messagingSystem The messaging system to register login keys with, whose generator of
+     *                        session keys generates the login keys too.
+     */
     public SupervisorImpl(MessagingSystem messagingSystem) {
+        this(messagingSystem, messagingSystem.getKeyGenerator());
+    }
+
+    /**
+     * @param messagingSystem The messaging system to register login keys with.
+     * @param keyGenerator    The generator of login keys.
+     */
+    public SupervisorImpl(MessagingSystem messagingSystem, KeyGenerator keyGenerator) {
         this.messagingSystem = messagingSystem;
+        this.keyGenerator = keyGenerator;
     }
 
     /**
@@ -25,7 +39,7 @@ public class SupervisorImpl implements Supervisor {
         if (agentId.startsWith("spy-")) {
             return null;
         } else {
-            final String loginKey = Utils.getNRandomCharacters(LOGIN_KEY_LENGTH);
+            final String loginKey = keyGenerator.nextKey(LOGIN_KEY_LENGTH);
             messagingSystem.registerLoginKey(agentId, loginKey);
             return loginKey;
         }
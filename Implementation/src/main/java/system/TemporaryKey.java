@@ -9,7 +9,19 @@ import java.time.Instant;
 class TemporaryKey extends TemporaryObject<String> {
 
     TemporaryKey(String key, Duration timeLimit) {
-        super(key, Instant.now().plus(timeLimit), Clock.systemUTC());
+        this(key, timeLimit, Clock.systemUTC());
+    }
+
+    TemporaryKey(String key, Duration timeLimit, Clock clock) {
+        super(key, Instant.now(clock).plus(timeLimit), clock);
+    }
+
+    TemporaryKey(String key, Instant timeout) {
+        super(key, timeout, Clock.systemUTC());
+    }
+
+    Instant getExpiry() {
+        return getTimeout();
     }
 
     public String getKey() {
@@ -24,6 +36,7 @@ class TemporaryKey extends TemporaryObject<String> {
      * @return True if key is not expired and strings match.
      */
     public boolean equals(String anotherKey) {
-        return !this.isExpired() && getTempObject().equals(anotherKey);
+        final String key = getTempObject(); // null if expired, read once since it may expire at any time
+        return key != null && key.equals(anotherKey);
     }
 }
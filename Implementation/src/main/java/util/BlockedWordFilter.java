@@ -0,0 +1,238 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Removes blocked words from text. Each occurrence of a blocked word is removed, ignoring
+ * (ASCII) case, together with a single whitespace character directly following it.
+ * <p>
+ * The result is identical to applying {@code text.replaceAll("(?i)" + word + "\\s?", "")}
+ * for every word in list order, with each word taken literally. Rather than compiling a
+ * regular expression per word, all words are compiled once into an Aho-Corasick automaton.
+ * A message without blocked words is checked in a single pass and returned as is; each
+ * blocked word that is found costs one more pass to remove it. Removing a word may join
+ * the surrounding text into another blocked word, in which case that word is removed in
+ * turn, exactly as the sequence of {@code replaceAll} calls would.
+ */
+public class BlockedWordFilter {
+
+    private final String[] words; // lower case, in list order
+    private final Node root = new Node();
+
+    /**
+     * Compiles the given blocked words.
+     *
+     * @param blockedWords The words to remove, in the order in which they are to be applied.
+     * @throws IllegalArgumentException if any of the words is null or empty.
+     */
+    public BlockedWordFilter(Collection<String> blockedWords) {
+        this.words = new String[blockedWords.size()];
+
+        int index = 0;
+        for (final String word : blockedWords) {
+            if (word == null || word.isEmpty()) {
+                throw new IllegalArgumentException("Blocked words cannot be null or empty.");
+            }
+            words[index] = toLowerCase(word);
+            root.insert(words[index], index);
+            index++;
+        }
+        root.build();
+    }
+
+    /**
+     * @return the blocked words, in list order
+     */
+    public List<String> getBlockedWords() {
+        return Arrays.asList(words.clone());
+    }
+
+    /**
+     * Removes all the blocked words from the text.
+     *
+     * @param text The text to filter.
+     * @return The filtered text, or the same instance if it contains no blocked words.
+     */
+    public String filter(String text) {
+        int word = firstWordAfter(text, -1);
+        while (word != -1) {
+            text = remove(text, words[word]);
+            word = firstWordAfter(text, word);
+        }
+        return text;
+    }
+
+    /**
+     * Scans the text once and returns the lowest index of a word that occurs in
+     * it and comes after the given index in the list, or -1 if there is none.
+     */
+    private int firstWordAfter(String text, int after) {
+        int first = -1;
+        Node state = root;
+
+        for (int i = 0; i < text.length(); i++) {
+            state = state.next(toLowerCase(text.charAt(i)));
+            for (Node match = state.output; match != null; match = match.nextOutput) {
+                for (final int index : match.wordIndices) {
+                    if (index > after && (first == -1 || index < first)) {
+                        first = index;
+                    }
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Removes every leftmost, non-overlapping occurrence of the
+     * word and one whitespace character that directly follows it.
+     */
+    private static String remove(String text, String word) {
+        final StringBuilder filtered = new StringBuilder(text.length());
+
+        int copyFrom = 0;
+        int i = 0;
+        while (i <= text.length() - word.length()) {
+            if (matchesAt(text, i, word)) {
+                filtered.append(text, copyFrom, i);
+                i += word.length();
+                if (i < text.length() && isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+                copyFrom = i;
+            } else {
+                i++;
+            }
+        }
+        return filtered.append(text, copyFrom, text.length()).toString();
+    }
+
+    private static boolean matchesAt(String text, int offset, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (toLowerCase(text.charAt(offset + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same characters as {@code \s} in {@link java.util.regex.Pattern}.
+     */
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * Same case folding as {@code (?i)} in {@link java.util.regex.Pattern}, which only applies to US-ASCII.
+     */
+    private static char toLowerCase(char ch) {
+        return ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch;
+    }
+
+    private static String toLowerCase(String string) {
+        final char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A state of the automaton. Transitions are kept in a sorted array so that
+     * large word lists stay compact once the automaton has been built.
+     */
+    private static class Node {
+
+        private static final int[] NO_WORDS = new int[0];
+
+        private Map<Character, Node> building = new HashMap<>(); // transitions until build() is called
+        private char[] labels;
+        private Node[] children;
+
+        private Node failure;
+        private Node output;     // this node or the nearest failure ancestor at which a word ends
+        private Node nextOutput; // the next node at which a word ends along the failure chain
+        private int[] wordIndices = NO_WORDS;
+
+        private void insert(String word, int index) {
+            Node node = this;
+            for (int i = 0; i < word.length(); i++) {
+                node = node.building.computeIfAbsent(word.charAt(i), ch -> new Node());
+            }
+            node.wordIndices = Arrays.copyOf(node.wordIndices, node.wordIndices.length + 1);
+            node.wordIndices[node.wordIndices.length - 1] = index;
+        }
+
+        /**
+         * Freezes the transitions and computes the failure and output links, breadth first from the root.
+         */
+        private void build() {
+            final Queue<Node> queue = new LinkedList<>();
+            failure = this;
+            freeze();
+            output = wordIndices.length > 0 ? this : null;
+
+            for (final Node child : children) {
+                child.failure = this;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                final Node node = queue.remove();
+                node.freeze();
+                node.output = node.wordIndices.length > 0 ? node : node.failure.output;
+                node.nextOutput = node.output == node ? node.failure.output : null;
+
+                for (int i = 0; i < node.labels.length; i++) {
+                    final Node child = node.children[i];
+                    Node fallback = node.failure;
+                    while (fallback != this && fallback.child(node.labels[i]) == null) {
+                        fallback = fallback.failure;
+                    }
+                    final Node target = fallback.child(node.labels[i]);
+                    child.failure = target != null && target != child ? target : this;
+                    queue.add(child);
+                }
+            }
+        }
+
+        private void freeze() {
+            if (building == null) {
+                return;
+            }
+            final List<Character> keys = new ArrayList<>(building.keySet());
+            keys.sort(null);
+            labels = new char[keys.size()];
+            children = new Node[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                labels[i] = keys.get(i);
+                children[i] = building.get(keys.get(i));
+            }
+            building = null;
+        }
+
+        private Node child(char ch) {
+            if (building != null) {
+                return building.get(ch);
+            }
+            final int i = Arrays.binarySearch(labels, ch);
+            return i >= 0 ? children[i] : null;
+        }
+
+        private Node next(char ch) {
+            Node node = this;
+            Node child;
+            while ((child = node.child(ch)) == null && node.failure != node) {
+                node = node.failure;
+            }
+            return child != null ? child : node;
+        }
+    }
+}
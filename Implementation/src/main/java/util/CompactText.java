@@ -0,0 +1,89 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes short texts into byte arrays, which take up about half the memory of a {@link String}
+ * on this JVM, where every character takes two bytes and the string is an object of its own.
+ * <p>
+ * The first byte of an encoded text says how the rest is encoded: one byte per character if
+ * every character is Latin-1, UTF-8 otherwise, or two bytes per character for the rare text
+ * with an unpaired surrogate, which UTF-8 cannot hold. Decoding gives back an equal string.
+ */
+public final class CompactText {
+
+    private static final byte LATIN_1 = 0, UTF_8 = 1, UTF_16 = 2;
+
+    private CompactText() {
+    }
+
+    /**
+     * @param text The text to encode, or null.
+     * @return The encoded text, or null if the text is null.
+     */
+    public static byte[] encode(String text) {
+        if (text == null) {
+            return null;
+        }
+        final int length = text.length();
+        boolean latin1 = true, wellFormed = true;
+        for (int i = 0; i < length && wellFormed; i++) {
+            final char c = text.charAt(i);
+            if (c > 0xff) {
+                latin1 = false;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    wellFormed = false;
+                }
+            }
+        }
+
+        final byte[] encoded;
+        if (latin1) {
+            encoded = new byte[1 + length];
+            encoded[0] = LATIN_1;
+            for (int i = 0; i < length; i++) {
+                encoded[1 + i] = (byte) text.charAt(i);
+            }
+        } else if (wellFormed) {
+            final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            encoded = new byte[1 + utf8.length];
+            encoded[0] = UTF_8;
+            System.arraycopy(utf8, 0, encoded, 1, utf8.length);
+        } else {
+            encoded = new byte[1 + 2 * length];
+            encoded[0] = UTF_16;
+            for (int i = 0; i < length; i++) {
+                final char c = text.charAt(i);
+                encoded[1 + 2 * i] = (byte) (c >> 8);
+                encoded[2 + 2 * i] = (byte) c;
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * @param encoded A text encoded by {@link #encode(String)}, or null.
+     * @return The text, or null if the encoded text is null.
+     */
+    public static String decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        switch (encoded[0]) {
+            case LATIN_1:
+                return new String(encoded, 1, encoded.length - 1, StandardCharsets.ISO_8859_1);
+            case UTF_8:
+                return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+            case UTF_16:
+                final char[] chars = new char[(encoded.length - 1) / 2];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) ((encoded[1 + 2 * i] & 0xff) << 8 | encoded[2 + 2 * i] & 0xff);
+                }
+                return new String(chars);
+            default:
+                throw new IllegalArgumentException("Unknown encoding " + encoded[0]);
+        }
+    }
+}
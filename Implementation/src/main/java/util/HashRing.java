@@ -0,0 +1,98 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns keys to nodes by consistent hashing. Every node is placed on a ring of 64-bit hashes
+ * at a number of points (virtual nodes), and a key belongs to the node at the first point at or
+ * after the hash of the key, so that adding a node only takes keys away from the other nodes,
+ * in roughly equal shares, and never moves keys between them.
+ * <p>
+ * A ring is immutable; {@link #with(String)} returns a new ring, so a ring can be shared
+ * between threads and swapped for another one as a whole.
+ */
+public final class HashRing {
+
+    /**
+     * The number of points on the ring for each node, enough for each of a handful
+     * of nodes to own within a few percent of its share of the keys.
+     */
+    public static final int POINTS_PER_NODE = 160;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final SortedSet<String> nodes;
+    private final NavigableMap<Long, String> points;
+
+    /**
+     * @param nodes The nodes on the ring, each given by a name that is the same on every member of the cluster.
+     */
+    public HashRing(Collection<String> nodes) {
+        this.nodes = Collections.unmodifiableSortedSet(new TreeSet<>(nodes));
+        this.points = new TreeMap<>();
+        for (final String node : this.nodes) {
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                // Nodes that collide on a point take turns in name order, on every member alike
+                points.putIfAbsent(hash(node + "#" + point), node);
+            }
+        }
+    }
+
+    /**
+     * @return A ring with the given node added, which is this ring if the node is already on it.
+     */
+    public HashRing with(String node) {
+        if (nodes.contains(node)) {
+            return this;
+        }
+        final TreeSet<String> added = new TreeSet<>(nodes);
+        added.add(node);
+        return new HashRing(added);
+    }
+
+    /**
+     * @return The nodes on the ring, in name order.
+     */
+    public SortedSet<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @param key The key, such as an agent ID.
+     * @return The node that the key belongs to.
+     * @throws IllegalStateException if the ring has no nodes.
+     */
+    public String ownerOf(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("The ring has no nodes.");
+        }
+        final Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a string with 64-bit FNV-1a, followed by the finalizer of
+     * MurmurHash3 so that strings differing only in their last characters, such as
+     * numbered agent IDs, are spread around the whole ring.
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
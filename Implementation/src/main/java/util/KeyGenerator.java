@@ -0,0 +1,15 @@
+package util;
+
+/**
+ * Generates the random keys handed out to agents.
+ */
+public interface KeyGenerator {
+
+    /**
+     * Generates a key of printable characters.
+     *
+     * @param length The number of characters in the key.
+     * @return A new random key of the given length.
+     */
+    String nextKey(int length);
+}
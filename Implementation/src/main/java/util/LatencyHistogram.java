@@ -0,0 +1,76 @@
+package util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies into buckets whose upper bounds double from 1 microsecond up to about
+ * 8 seconds, with a last bucket for anything longer. Recording a latency is lock-free and,
+ * once the counters have adapted to the number of threads recording, allocates nothing.
+ * The counts are read without stopping the recording, so a reading taken while latencies
+ * are being recorded may be off by the latencies in flight.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets with an upper bound; {@link #buckets()} adds one more for the rest.
+     */
+    public static final int BOUNDED_BUCKETS = 24;
+
+    private final LongAdder[] counts = new LongAdder[BOUNDED_BUCKETS + 1];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time from the given start until now.
+     *
+     * @param startNanos The start, as read from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param nanos The latency to record, in nanoseconds.
+     */
+    public void record(long nanos) {
+        final long micros = (Math.max(nanos, 0) + 999) / 1000; // rounded up
+        final int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        counts[Math.min(bucket, BOUNDED_BUCKETS)].increment();
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * @return The number of buckets, including the last one that has no upper bound.
+     */
+    public int buckets() {
+        return counts.length;
+    }
+
+    /**
+     * @param bucket The bucket, which must be below {@link #BOUNDED_BUCKETS}.
+     * @return The largest latency counted in the bucket, in nanoseconds.
+     */
+    public static long upperBoundNanos(int bucket) {
+        return 1000L << bucket;
+    }
+
+    /**
+     * @param bucket The bucket.
+     * @return The number of latencies counted in the bucket alone.
+     */
+    public long count(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    /**
+     * @return The sum of all the latencies recorded, in nanoseconds.
+     */
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out keys that another generator has made ahead of time, so that a burst of requests
+ * is served from the pool rather than waiting on the generator. There is a pool for every key
+ * length that has been asked for, each kept full by its own daemon thread. Once a pool runs
+ * dry, keys are generated on the spot until the thread catches up.
+ */
+public class PooledKeyGenerator implements KeyGenerator {
+
+    private final KeyGenerator generator;
+    private final int capacity;
+    private final Map<Integer, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * @param generator The generator that makes the keys.
+     * @param capacity  The number of keys to keep ready for each length.
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public PooledKeyGenerator(KeyGenerator generator, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pool capacity must be positive.");
+        }
+        this.generator = generator;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public String nextKey(int length) {
+        final String key = pools.computeIfAbsent(length, Pool::new).keys.poll();
+        return key != null ? key : generator.nextKey(length);
+    }
+
+    /**
+     * Stops refilling the pools. Keys left in the pools are still handed out.
+     */
+    public void stop() {
+        for (final Pool pool : pools.values()) {
+            pool.thread.interrupt();
+        }
+    }
+
+    private final class Pool implements Runnable {
+
+        private final int length;
+        private final BlockingQueue<String> keys = new ArrayBlockingQueue<>(capacity);
+        private final Thread thread = new Thread(this, "key-pool");
+
+        private Pool(int length) {
+            this.length = length;
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    keys.put(generator.nextKey(length));
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package util;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Generates keys from random bytes that are drawn in bulk. Each thread draws from its own
+ * random number generator into its own buffer, so threads never contend with each other
+ * and the cost of each draw is shared by the many keys that the buffer yields.
+ * <p>
+ * Every character of a key is picked uniformly from the printable characters in {@link Utils}.
+ */
+public class RandomKeyGenerator implements KeyGenerator {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final char[] CHARACTERS = Utils.ALLCHARS.toCharArray();
+
+    // Bytes at or above this limit are skipped, so that every character is equally likely.
+    private static final int LIMIT = 256 - 256 % CHARACTERS.length;
+
+    private static final RandomKeyGenerator SECURE = new RandomKeyGenerator(SecureRandom::new);
+
+    private final ThreadLocal<Buffer> buffers;
+
+    /**
+     * @param randoms Creates the random number generator of each thread that generates keys.
+     */
+    public RandomKeyGenerator(Supplier<? extends Random> randoms) {
+        this.buffers = ThreadLocal.withInitial(() -> new Buffer(randoms.get()));
+    }
+
+    /**
+     * @return A shared generator that draws from {@link SecureRandom}.
+     */
+    public static RandomKeyGenerator secure() {
+        return SECURE;
+    }
+
+    @Override
+    public String nextKey(int length) {
+        final Buffer buffer = buffers.get();
+        final char[] key = new char[length];
+        for (int i = 0; i < length; i++) {
+            int next;
+            do {
+                next = buffer.nextByte();
+            } while (next >= LIMIT);
+            key[i] = CHARACTERS[next % CHARACTERS.length];
+        }
+        return new String(key);
+    }
+
+    private static final class Buffer {
+
+        private final Random random;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+
+        private Buffer(Random random) {
+            this.random = random;
+        }
+
+        private int nextByte() {
+            if (position == BUFFER_SIZE) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            return bytes[position++] & 0xFF;
+        }
+    }
+}
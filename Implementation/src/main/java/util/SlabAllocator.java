@@ -0,0 +1,271 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Hands out slots of memory outside the Java heap, so that large numbers of small records add
+ * nothing for the garbage collector to trace. Memory is reserved in slabs of {@link #SLAB_SIZE}
+ * bytes, either direct buffers or regions of a memory-mapped file, and each slab is cut into
+ * slots of one size. A record gets the smallest slot size that fits it; freed slots are kept
+ * per slab and handed out again before any other slab is used. A slab whose slots have all been
+ * freed goes back to a shared pool, from which it can be taken for any slot size, so memory
+ * freed by records of one size can be used for records of another. Slabs are never unmapped.
+ * <p>
+ * A slot is identified by a handle, a {@code long} holding the slab and the offset of the slot
+ * in it. The allocator is safe to use from several threads, but the contents of a slot are not
+ * guarded: a slot must be written before its handle is shared and must not be read once freed.
+ */
+public final class SlabAllocator implements Closeable {
+
+    public static final int SLAB_SIZE = 1 << 20;
+
+    private static final int[] SLOT_SIZES = {32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048};
+
+    /**
+     * The largest record that fits in a slot.
+     */
+    public static final int MAX_SLOT_SIZE = SLOT_SIZES[SLOT_SIZES.length - 1];
+
+    private final FileChannel file; // that the slabs are mapped from, or null for direct buffers
+    private final int maxSlabs;
+    private final SizeClass[] sizeClasses = new SizeClass[SLOT_SIZES.length];
+    private volatile Slab[] slabs = new Slab[16]; // grown under the allocator's lock
+    private int slabCount = 0;
+    private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<>(); // guarded by the allocator's lock
+
+    private SlabAllocator(FileChannel file, long maxBytes) {
+        this.file = file;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / SLAB_SIZE));
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            sizeClasses[i] = new SizeClass(SLOT_SIZES[i]);
+        }
+    }
+
+    /**
+     * @param maxBytes The most memory to reserve, which is rounded down to whole slabs (at least one).
+     * @return An allocator of direct buffers.
+     */
+    public static SlabAllocator direct(long maxBytes) {
+        return new SlabAllocator(null, maxBytes);
+    }
+
+    /**
+     * @param file     The file to map the slabs from, which is replaced and is deleted once the allocator is closed.
+     * @param maxBytes The most memory to reserve, which is rounded down to whole slabs (at least one).
+     * @return An allocator of memory-mapped buffers.
+     * @throws IOException if the file cannot be created.
+     */
+    public static SlabAllocator mapped(Path file, long maxBytes) throws IOException {
+        return new SlabAllocator(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE), maxBytes);
+    }
+
+    /**
+     * Allocates a slot of at least the given size.
+     *
+     * @param size The size of the record, in bytes.
+     * @return The handle of the slot, or -1 if the record is larger than {@link #MAX_SLOT_SIZE}
+     * or every slab that may be reserved is in use.
+     * @throws UncheckedIOException if a slab cannot be mapped from the file.
+     */
+    public long allocate(int size) {
+        for (final SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.slotSize) {
+                return sizeClass.allocate();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Frees a slot, so that it can be allocated again.
+     *
+     * @param handle The handle of the slot, which must not be used afterwards.
+     */
+    public void free(long handle) {
+        final Slab slab = slab(handle);
+        slab.sizeClass.free(slab, (int) handle);
+    }
+
+    /**
+     * @param handle The handle of an allocated slot.
+     * @return A buffer over the slot, positioned at its start and limited to its end, for the calling thread only.
+     */
+    public ByteBuffer slot(long handle) {
+        final Slab slab = slab(handle);
+        final int offset = (int) handle;
+        final ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.limit(offset + slab.sizeClass.slotSize).position(offset);
+        return buffer;
+    }
+
+    /**
+     * @return The number of bytes in allocated slots.
+     */
+    public long usedBytes() {
+        long used = 0;
+        for (final SizeClass sizeClass : sizeClasses) {
+            used += sizeClass.usedBytes();
+        }
+        return used;
+    }
+
+    /**
+     * @return The number of bytes reserved in slabs, including empty slabs that are kept for reuse.
+     */
+    public synchronized long reservedBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * Closes the file that the slabs are mapped from, if any. Slabs already mapped stay usable until
+     * they are garbage collected, so the allocator must no longer be used by then.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private Slab slab(long handle) {
+        return slabs[(int) (handle >>> 32)];
+    }
+
+    /**
+     * Takes an empty slab for the given size class: one given back by any size class, or else a new one.
+     *
+     * @return The slab, or null if no more slabs may be reserved.
+     */
+    private synchronized Slab acquire(SizeClass sizeClass) {
+        Slab slab = emptySlabs.poll();
+        if (slab == null) {
+            if (slabCount == maxSlabs) {
+                return null;
+            }
+            final ByteBuffer buffer;
+            try {
+                buffer = file != null
+                        ? file.map(FileChannel.MapMode.READ_WRITE, (long) slabCount * SLAB_SIZE, SLAB_SIZE)
+                        : ByteBuffer.allocateDirect(SLAB_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (OutOfMemoryError e) {
+                return null; // beyond the limit of direct memory set for the JVM
+            }
+            Slab[] slabs = this.slabs;
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            }
+            slab = new Slab(slabCount, buffer);
+            slabs[slabCount++] = slab;
+            this.slabs = slabs; // publishes the slab, if the array was not replaced
+        }
+        slab.sizeClass = sizeClass;
+        return slab;
+    }
+
+    /**
+     * Gives back a slab whose slots have all been freed, for any size class to take.
+     */
+    private synchronized void release(Slab slab) {
+        slab.sizeClass = null;
+        emptySlabs.push(slab);
+    }
+
+    /**
+     * A slab, and the slots freed in it while it belongs to a size class. Apart from the size class,
+     * which only changes while the slab is empty, it is guarded by the lock of its size class.
+     */
+    private static final class Slab {
+
+        private final int index;
+        private final ByteBuffer buffer;
+        private volatile SizeClass sizeClass;
+        private int[] freeOffsets = new int[16];
+        private int freeCount = 0;
+        private int live = 0; // slots allocated and not freed
+
+        private Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The slabs of one slot size: slabs with freed slots are kept on a list, and new slots are cut
+     * from the end of the latest slab until it is full. Slabs are given back once they are empty.
+     */
+    private final class SizeClass {
+
+        private final int slotSize;
+        private final ArrayDeque<Slab> partialSlabs = new ArrayDeque<>(); // the slabs with freed slots
+        private Slab current; // that new slots are cut from
+        private int nextOffset = SLAB_SIZE; // in the current slab, which is full until there is one
+        private long used = 0;
+
+        private SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+        private synchronized long allocate() {
+            Slab slab = partialSlabs.peekLast();
+            final int offset;
+            if (slab != null) {
+                offset = slab.freeOffsets[--slab.freeCount];
+                if (slab.freeCount == 0) {
+                    partialSlabs.pollLast();
+                }
+            } else {
+                if (nextOffset + slotSize > SLAB_SIZE) {
+                    final Slab acquired = acquire(this);
+                    if (acquired == null) {
+                        return -1;
+                    }
+                    current = acquired;
+                    nextOffset = 0;
+                }
+                slab = current;
+                offset = nextOffset;
+                nextOffset += slotSize;
+            }
+            slab.live++;
+            used += slotSize;
+            return (long) slab.index << 32 | offset;
+        }
+
+        private synchronized void free(Slab slab, int offset) {
+            used -= slotSize;
+            if (--slab.live == 0) {
+                if (slab.freeCount > 0) {
+                    partialSlabs.remove(slab);
+                    slab.freeCount = 0;
+                }
+                if (slab == current) {
+                    current = null;
+                    nextOffset = SLAB_SIZE;
+                }
+                release(slab);
+                return;
+            }
+            if (slab.freeCount == 0) {
+                partialSlabs.addLast(slab);
+            } else if (slab.freeCount == slab.freeOffsets.length) {
+                slab.freeOffsets = Arrays.copyOf(slab.freeOffsets, slab.freeOffsets.length * 2);
+            }
+            slab.freeOffsets[slab.freeCount++] = offset;
+        }
+
+        private synchronized long usedBytes() {
+            return used;
+        }
+    }
+}
@@ -5,27 +5,34 @@ import java.time.Instant;
 
 /**
  * An object that would timeout must extend this class.
- * It provides functionality for timing objects out
+ * It provides functionality for timing objects out.
+ * The timeout is kept as a deadline of the clock's {@link Ticker}
+ * so that checking for expiry is cheap and allocates nothing, and as
+ * plain fields rather than an {@link Instant}, to save an object for
+ * each of the many messages and keys held at a time.
  */
 public abstract class TemporaryObject<T> {
 
-    private final Instant timeout;
-    private final Clock clock;
+    private final long timeoutSeconds;
+    private final int timeoutNanos;
+    private final Ticker ticker;
+    private final long deadline;
     private T tempObject;
 
     protected TemporaryObject(T tempObject, Instant timeout, Clock clock) {
         this.tempObject = tempObject;
-        this.timeout = timeout;
-        this.clock = clock;
+        this.timeoutSeconds = timeout.getEpochSecond();
+        this.timeoutNanos = timeout.getNano();
+        this.ticker = Ticker.forClock(clock);
+        this.deadline = ticker.toTicks(timeout);
     }
 
     public boolean isExpired() {
-        final Instant now = Instant.now(clock);
-        return now.equals(timeout) || now.isAfter(timeout);
+        return ticker.read() >= deadline;
     }
 
     protected Instant getTimeout() {
-        return timeout;
+        return Instant.ofEpochSecond(timeoutSeconds, timeoutNanos);
     }
 
     protected T getTempObject() {
@@ -0,0 +1,142 @@
+package util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A source of time in milliseconds, used for deadlines that are checked far more often than
+ * they are set. Reading the time and comparing it to a deadline allocates nothing.
+ * <p>
+ * Deadlines based on the system clock use a shared monotonic ticker, which is updated by a
+ * daemon thread at the resolution given by {@link #RESOLUTION_PROPERTY} (1 millisecond by
+ * default). A deadline may therefore be noticed up to one resolution late, but never early.
+ * With a resolution of 0, every read goes to {@link System#nanoTime()} instead. Deadlines based
+ * on any other clock read that clock, so that tests using their own clock stay deterministic.
+ */
+public abstract class Ticker {
+
+    /**
+     * System property holding the resolution of the shared ticker in milliseconds.
+     */
+    public static final String RESOLUTION_PROPERTY = "tickerResolution";
+
+    private static final Ticker SYSTEM = systemTicker(Long.getLong(RESOLUTION_PROPERTY, 1));
+
+    /**
+     * @param clock The clock that deadlines are given in.
+     * @return The shared monotonic ticker if the clock is a system clock, or a ticker that reads the clock otherwise.
+     */
+    public static Ticker forClock(Clock clock) {
+        return Clock.systemUTC().withZone(clock.getZone()).equals(clock) ? SYSTEM : new ClockTicker(clock);
+    }
+
+    /**
+     * @return The current time in milliseconds, which never decreases.
+     */
+    public abstract long read();
+
+    /**
+     * Converts an instant to this ticker's time, rounding up so that the
+     * deadline is never reached before the instant itself.
+     *
+     * @param instant The instant to convert.
+     * @return The time at which this ticker reaches the instant.
+     */
+    public abstract long toTicks(Instant instant);
+
+    static Ticker systemTicker(long resolutionMillis) {
+        if (resolutionMillis < 0) {
+            throw new IllegalArgumentException("Ticker resolution cannot be negative.");
+        }
+        return resolutionMillis == 0 ? new NanoTimeTicker() : new CachedTicker(resolutionMillis);
+    }
+
+    private static long ceilMillis(long seconds, int nanos) {
+        return seconds * 1000 + (nanos + 999_999) / 1_000_000;
+    }
+
+    private static final class ClockTicker extends Ticker {
+
+        private final Clock clock;
+
+        private ClockTicker(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public long read() {
+            return clock.millis();
+        }
+
+        @Override
+        public long toTicks(Instant instant) {
+            return ceilMillis(instant.getEpochSecond(), instant.getNano());
+        }
+    }
+
+    /**
+     * Reads {@link System#nanoTime()} on every call.
+     */
+    private static class NanoTimeTicker extends Ticker {
+
+        private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+        @Override
+        public long read() {
+            return Math.floorDiv(System.nanoTime(), NANOS_PER_MILLI);
+        }
+
+        /**
+         * Adds the time remaining to a fresh reading of {@link System#nanoTime()}, rather than to
+         * {@link #read()}, which lags behind in a {@link CachedTicker}. The part of a millisecond that
+         * the reading is past {@link #read()} is rounded up along with the time remaining. An instant
+         * that has already passed is reached at once.
+         */
+        @Override
+        public long toTicks(Instant instant) {
+            final long nanoTime = System.nanoTime();
+            Duration remaining = Duration.between(Instant.now(), instant);
+            if (remaining.isNegative() || remaining.isZero()) {
+                return read();
+            }
+            final long millis = Math.floorDiv(nanoTime, NANOS_PER_MILLI);
+            remaining = remaining.plusNanos(nanoTime - millis * NANOS_PER_MILLI);
+            return millis + ceilMillis(remaining.getSeconds(), remaining.getNano());
+        }
+    }
+
+    /**
+     * Reads a field that a daemon thread refreshes from {@link System#nanoTime()} at a fixed resolution.
+     * Deadlines are still converted from a fresh reading, so that they are only ever noticed late.
+     */
+    private static final class CachedTicker extends NanoTimeTicker implements Runnable {
+
+        private final long resolutionNanos;
+        private volatile long now;
+
+        private CachedTicker(long resolutionMillis) {
+            this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos(resolutionMillis);
+            this.now = super.read();
+
+            final Thread thread = new Thread(this, "ticker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public long read() {
+            return now;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                LockSupport.parkNanos(resolutionNanos);
+                now = super.read();
+            }
+        }
+    }
+}
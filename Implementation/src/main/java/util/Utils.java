@@ -1,7 +1,6 @@
 package util;
 
 import java.util.Locale;
-import java.util.Random;
 
 public class Utils {
 
@@ -9,7 +8,7 @@ public class Utils {
     private static final String LOWER = UPPER.toLowerCase(Locale.ROOT);
     private static final String DIGITS = "0123456789";
     private static final String SYMBOLS = "!%^&*()";
-    private static final String ALLCHARS = UPPER + LOWER + DIGITS + SYMBOLS;
+    static final String ALLCHARS = UPPER + LOWER + DIGITS + SYMBOLS;
 
     /**
      * Gets a number of random printable characters
@@ -18,14 +17,7 @@ public class Utils {
      * @return A string with the specified amount of random characters
      */
     public static String getNRandomCharacters(int characterCount) {
-
-        final StringBuilder randString = new StringBuilder();
-        final Random rand = new Random();
-
-        for (int i = 0; i < characterCount; i++) {
-            randString.append(ALLCHARS.charAt(rand.nextInt(ALLCHARS.length())));
-        }
-        return randString.toString();
+        return RandomKeyGenerator.secure().nextKey(characterCount);
     }
 
     /**
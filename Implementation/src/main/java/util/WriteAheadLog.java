@@ -0,0 +1,478 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, kept in a directory as a sequence of segment files.
+ * <p>
+ * Appending a record only copies it to a buffer in memory. A single writer thread takes
+ * everything appended since its last write and writes it out in one go, so that concurrent
+ * appends share a write and, depending on the {@link SyncPolicy}, a force to disk (group commit).
+ * <p>
+ * Each record is framed by its length and CRC32 checksum. A record that was only partly written
+ * before a crash is cut off the end of the log when it is replayed. Segments are kept until they
+ * are deleted with {@link #deleteSegmentsBefore}, for example once the state that their records
+ * describe has been saved elsewhere. {@link #roll()} marks the point up to which that is.
+ */
+public final class WriteAheadLog implements Closeable {
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * After every write. {@link #awaitDurable()} waits until the records appended by the
+         * calling thread have been forced, together with those of any other waiting threads.
+         */
+        ALWAYS,
+        /**
+         * At most once per sync interval, so a crash of the machine loses at most the records
+         * of the last interval. A crash of the process alone loses nothing that was written.
+         */
+        INTERVAL,
+        /**
+         * Only when a segment is complete or the log is closed, leaving the rest to the operating system.
+         */
+        NEVER
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final int MAGIC = 0x57414c31; // "WAL1"
+    private static final int HEADER_SIZE = 5;    // magic and flags
+    private static final int FRAME_SIZE = 8;     // length and checksum of a record
+    private static final String SUFFIX = ".wal";
+
+    private final Path directory;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalNanos;
+    private final long segmentSize;
+    private final List<Path> segments; // segments to replay, oldest first
+    private long nextSegment;
+
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final Object lock = new Object();
+    private byte[] pending = new byte[8192]; // records appended but not yet taken by the writer
+    private int pendingSize = 0;
+    private long appended = 0; // end of the last record appended, counting from the start
+    private long synced = 0;   // end of the last record that is durable under the policy
+    private IOException failure = null;
+    private boolean closed = false;
+
+    private boolean rollRequested = false;
+    private long currentSegment = -1;
+
+    private FileChannel channel; // only used by the writer thread once started
+    private Thread writer;
+
+    private WriteAheadLog(Path directory, SyncPolicy syncPolicy, Duration syncInterval, long segmentSize,
+                          List<Path> segments, long nextSegment) {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = syncInterval.toNanos();
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.nextSegment = nextSegment;
+    }
+
+    /**
+     * Opens the log in the given directory, which is created if it does not exist.
+     *
+     * @param directory    The directory that holds the segments.
+     * @param syncPolicy   When records are forced to disk.
+     * @param syncInterval The interval for {@link SyncPolicy#INTERVAL}.
+     * @param segmentSize  The size after which a new segment is started.
+     * @return The log, ready to be replayed and then started.
+     * @throws IOException if the directory cannot be read.
+     */
+    public static WriteAheadLog open(Path directory, SyncPolicy syncPolicy, Duration syncInterval,
+                                     long segmentSize) throws IOException {
+        Files.createDirectories(directory);
+
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                if (file.getFileName().toString().endsWith(SUFFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments);
+
+        final long nextSegment = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        return new WriteAheadLog(directory, syncPolicy, syncInterval, segmentSize, segments, nextSegment);
+    }
+
+    /**
+     * Passes every record in the log to the consumer, oldest first. Must be called before the log is
+     * started. A record that is cut short at the end of the last segment is removed, since it was
+     * still being written when the process stopped.
+     *
+     * @param consumer The consumer of the records.
+     * @throws IOException if a record is damaged anywhere else.
+     */
+    public void replay(Consumer<byte[]> consumer) throws IOException {
+        for (int i = 0; i < segments.size(); i++) {
+            final Path segment = segments.get(i);
+            final boolean last = i == segments.size() - 1;
+            final long end;
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+                end = replay(segment, file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()), consumer);
+                if (end == file.size()) {
+                    continue;
+                }
+            }
+            if (!last) {
+                throw new IOException("Damaged record at " + end + " in " + segment);
+            } else if (end < HEADER_SIZE) {
+                Files.delete(segment);
+            } else {
+                try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    file.truncate(end);
+                    file.force(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The end of the last whole record in the segment.
+     */
+    private static long replay(Path segment, MappedByteBuffer buffer, Consumer<byte[]> consumer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return 0;
+        } else if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a log segment: " + segment);
+        }
+        buffer.get(); // flags
+
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= FRAME_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return start;
+            }
+            final byte[] record = new byte[length];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            consumer.accept(record);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Starts taking appends, in a new segment.
+     *
+     * @throws IOException if the segment cannot be created.
+     */
+    public void start() throws IOException {
+        synchronized (lock) {
+            channel = newSegment(nextSegment);
+            currentSegment = nextSegment++;
+            writer = new Thread(this::write, "write-ahead-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Continues the log in a new segment. Every record appended before this call is in an older segment.
+     *
+     * @return The number of the new segment.
+     * @throws IllegalStateException if the log has not been started or has been closed.
+     * @throws UncheckedIOException  if the log can no longer be written to.
+     */
+    public long roll() {
+        synchronized (lock) {
+            if (writer == null || closed) {
+                throw new IllegalStateException("The log is not open for appending.");
+            }
+            rollRequested = true;
+            lock.notifyAll();
+            while (rollRequested) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException());
+                }
+            }
+            return currentSegment;
+        }
+    }
+
+    /**
+     * Deletes the segments that precede the given one, which are no longer needed.
+     *
+     * @param segment The number of the first segment to keep, as returned by {@link #roll()}.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    public void deleteSegmentsBefore(long segment) throws IOException {
+        final List<Path> obsolete = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                if (segmentNumber(file) < segment) {
+                    obsolete.add(file);
+                }
+            }
+        }
+        for (final Path file : obsolete) {
+            Files.deleteIfExists(file);
+        }
+        synchronized (lock) {
+            segments.removeAll(obsolete);
+        }
+    }
+
+    /**
+     * Appends a record. The record is written to the log by the writer thread shortly after.
+     *
+     * @param record The record, which must not be changed afterwards.
+     * @throws IllegalStateException if the log has not been started or has been closed.
+     * @throws UncheckedIOException  if the log can no longer be written to.
+     */
+    public void append(byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+
+        final long end;
+        synchronized (lock) {
+            if (writer == null || closed) {
+                throw new IllegalStateException("The log is not open for appending.");
+            } else if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+            final int size = FRAME_SIZE + record.length;
+            if (pendingSize + size > pending.length) {
+                final byte[] grown = new byte[Math.max(pending.length * 2, pendingSize + size)];
+                System.arraycopy(pending, 0, grown, 0, pendingSize);
+                pending = grown;
+            }
+            putInt(pending, pendingSize, record.length);
+            putInt(pending, pendingSize + 4, (int) crc.getValue());
+            System.arraycopy(record, 0, pending, pendingSize + FRAME_SIZE, record.length);
+            if (pendingSize == 0) {
+                lock.notifyAll(); // the writer may be waiting for records
+            }
+            pendingSize += size;
+            appended += size;
+            end = appended;
+        }
+        lastAppended.get()[0] = end;
+    }
+
+    /**
+     * Waits until the records appended by the calling thread are durable. This only waits with
+     * {@link SyncPolicy#ALWAYS}, since the other policies do not promise when that will be.
+     *
+     * @throws UncheckedIOException if the records could not be written or the thread was interrupted.
+     */
+    public void awaitDurable() {
+        if (syncPolicy != SyncPolicy.ALWAYS) {
+            return;
+        }
+        final long end = lastAppended.get()[0];
+        synchronized (lock) {
+            while (synced < end) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out and forces every record appended so far, then stops the writer thread.
+     *
+     * @throws IOException if the records could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        final Thread writer;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            writer = this.writer;
+        }
+        if (writer != null) {
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Runs on the writer thread until the log is closed.
+     */
+    private void write() {
+        byte[] batch = new byte[pending.length];
+        long written = 0;
+        long lastSync = System.nanoTime();
+        try {
+            while (true) {
+                final int size;
+                final boolean closing;
+                final boolean rolling;
+                synchronized (lock) {
+                    while (pendingSize == 0 && !closed && !rollRequested && !isSyncDue(written, lastSync)) {
+                        if (syncPolicy == SyncPolicy.INTERVAL && synced < written) {
+                            final long remaining = syncIntervalNanos - (System.nanoTime() - lastSync);
+                            lock.wait(Math.max(1, remaining / 1_000_000));
+                        } else {
+                            lock.wait();
+                        }
+                    }
+                    final byte[] taken = pending;
+                    pending = batch.length >= pending.length ? batch : new byte[pending.length];
+                    batch = taken;
+                    size = pendingSize;
+                    pendingSize = 0;
+                    closing = closed && size == 0;
+                    rolling = rollRequested;
+                }
+
+                writeFully(channel, ByteBuffer.wrap(batch, 0, size));
+                written += size;
+                final boolean sync = closing || syncPolicy == SyncPolicy.ALWAYS || isSyncDue(written, lastSync);
+                if (sync) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                }
+                final boolean rolled = rolling || channel.position() >= segmentSize;
+                if (rolled) {
+                    rollOver();
+                }
+
+                synchronized (lock) {
+                    if (sync || syncPolicy == SyncPolicy.NEVER) {
+                        synced = written;
+                    }
+                    if (rolled) {
+                        currentSegment = nextSegment - 1;
+                        rollRequested = rollRequested && !rolling;
+                    }
+                    lock.notifyAll();
+                    if (closing) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException());
+        }
+    }
+
+    private boolean isSyncDue(long written, long lastSync) {
+        return syncPolicy == SyncPolicy.INTERVAL && written > synced && System.nanoTime() - lastSync >= syncIntervalNanos;
+    }
+
+    /**
+     * Completes the current segment and continues in a new one.
+     */
+    private void rollOver() throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = newSegment(nextSegment++);
+    }
+
+    private FileChannel newSegment(long number) throws IOException {
+        final FileChannel segment = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writeFully(segment, header());
+        segment.force(false);
+        forceDirectory();
+        return segment;
+    }
+
+    private void fail(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Forces the directory entries of new segments to disk, which is not supported on every platform.
+     */
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%019d%s", number, SUFFIX));
+    }
+
+    private static long segmentNumber(Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static ByteBuffer header() {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) 0).flip(); // no flags yet
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
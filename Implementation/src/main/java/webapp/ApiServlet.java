@@ -0,0 +1,282 @@
+package webapp;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import system.Agent;
+import system.Message;
+import system.MessagingSystem;
+import system.Session;
+import system.StatusCodes;
+import system.SupervisorImpl;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JSON API for programs, which does in one request what the HTML pages do with a form and a
+ * redirect. Requests and responses are JSON objects, and every response has a "status" field
+ * holding a {@link StatusCodes} name. Requests that need a session identify it with the
+ * {@value #AGENT_ID_HEADER} and {@value #SESSION_KEY_HEADER} headers.
+ * <ul>
+ * <li>{@code POST /api/v1/register {"agentId"}} returns the {@code "loginKey"}.</li>
+ * <li>{@code POST /api/v1/login {"agentId", "loginKey"}} returns the {@code "sessionKey"}.</li>
+ * <li>{@code POST /api/v1/messages {"to", "message"}} sends a message.</li>
+ * <li>{@code POST /api/v1/messages/batch {"messages": [{"to", "message"}, ...]}} sends up to
+ * {@value #MAX_MESSAGES_PER_REQUEST} messages and returns the status of each in {@code "statuses"}.</li>
+ * <li>{@code GET /api/v1/messages?max=n} consumes up to n messages (1 by default, and at most
+ * {@value #MAX_MESSAGES_PER_REQUEST}) and returns them in {@code "messages"}.</li>
+ * <li>{@code POST /api/v1/logout} logs out.</li>
+ * </ul>
+ */
+@WebServlet("/api/v1/*")
+class ApiServlet extends HttpServlet {
+
+    static final String AGENT_ID_HEADER = "X-Agent-Id";
+    static final String SESSION_KEY_HEADER = "X-Session-Key";
+
+    static final int MAX_MESSAGES_PER_REQUEST = 25;
+
+    private final MessagingSystem messagingSystem;
+
+    ApiServlet(MessagingSystem messagingSystem) {
+        this.messagingSystem = messagingSystem;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if ("/messages".equals(request.getPathInfo())) {
+            consume(request, response);
+        } else {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown resource.");
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        final Map<?, ?> body;
+        try {
+            final Object json = request.getContentLength() == 0 ? null : JSON.parse(request.getReader());
+            if (json == null) {
+                body = new LinkedHashMap<>();
+            } else if (json instanceof Map) {
+                body = (Map<?, ?>) json;
+            } else {
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The body must be a JSON object.");
+                return;
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The body is not valid JSON.");
+            return;
+        }
+
+        final String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        switch (path) {
+            case "/register":
+                register(body, response);
+                break;
+            case "/login":
+                login(body, response);
+                break;
+            case "/messages":
+                send(request, body, response);
+                break;
+            case "/messages/batch":
+                sendBatch(request, body, response);
+                break;
+            case "/logout":
+                logout(request, response);
+                break;
+            default:
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown resource.");
+        }
+    }
+
+    private void register(Map<?, ?> body, HttpServletResponse response) throws IOException {
+        final String agentId = getString(body, "agentId");
+        if (agentId == null) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing agentId.");
+            return;
+        }
+
+        final Agent agent = new Agent(agentId, new SupervisorImpl(messagingSystem), messagingSystem);
+        if (agent.register()) {
+            final Map<String, Object> result = status(StatusCodes.OK);
+            result.put("loginKey", agent.getLoginKey());
+            send(response, HttpServletResponse.SC_OK, result);
+        } else {
+            sendError(response, HttpServletResponse.SC_FORBIDDEN, "Access denied by your supervisor.");
+        }
+    }
+
+    private void login(Map<?, ?> body, HttpServletResponse response) throws IOException {
+        final String agentId = getString(body, "agentId");
+        final String loginKey = getString(body, "loginKey");
+        if (agentId == null || loginKey == null) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing agentId or loginKey.");
+            return;
+        }
+
+        final String sessionKey = messagingSystem.login(agentId, loginKey);
+        if (sessionKey != null) {
+            final Map<String, Object> result = status(StatusCodes.OK);
+            result.put("sessionKey", sessionKey);
+            send(response, HttpServletResponse.SC_OK, result);
+        } else {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "Incorrect or expired login key.");
+        }
+    }
+
+    private void send(HttpServletRequest request, Map<?, ?> body, HttpServletResponse response) throws IOException {
+        final Session session = authenticate(request, response);
+        if (session == null) {
+            return;
+        }
+        final String to = getString(body, "to");
+        final String message = getString(body, "message");
+        if (to == null || message == null) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing to or message.");
+            return;
+        }
+
+        final StatusCodes status = messagingSystem.sendMessage(session, to, message);
+        send(response, toHttpStatus(status), status(status));
+    }
+
+    private void sendBatch(HttpServletRequest request, Map<?, ?> body, HttpServletResponse response) throws IOException {
+        final Session session = authenticate(request, response);
+        if (session == null) {
+            return;
+        }
+        final Object messages = body.get("messages");
+        if (!(messages instanceof Object[])) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing messages.");
+            return;
+        }
+
+        if (((Object[]) messages).length > MAX_MESSAGES_PER_REQUEST) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+                    "At most " + MAX_MESSAGES_PER_REQUEST + " messages can be sent at once.");
+            return;
+        }
+
+        final List<String> statuses = new ArrayList<>();
+        for (final Object item : (Object[]) messages) {
+            final String to = item instanceof Map ? getString((Map<?, ?>) item, "to") : null;
+            final String message = item instanceof Map ? getString((Map<?, ?>) item, "message") : null;
+            statuses.add(to == null || message == null
+                    ? StatusCodes.GENERIC_ERROR.name()
+                    : messagingSystem.sendMessage(session, to, message).name());
+        }
+        final Map<String, Object> result = status(StatusCodes.OK);
+        result.put("statuses", statuses);
+        send(response, HttpServletResponse.SC_OK, result);
+    }
+
+    private void consume(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final Session session = authenticate(request, response);
+        if (session == null) {
+            return;
+        }
+        int max;
+        try {
+            final String maxParameter = request.getParameter("max");
+            max = maxParameter == null ? 1 : Integer.parseInt(maxParameter);
+        } catch (NumberFormatException e) {
+            max = 0;
+        }
+        if (max <= 0) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "max must be a positive number.");
+            return;
+        }
+        max = Math.min(max, MAX_MESSAGES_PER_REQUEST);
+
+        final List<Map<String, Object>> messages = new ArrayList<>();
+        for (final Message message : messagingSystem.getNextMessages(session, max)) {
+            messages.add(Utils.toJsonObject(message));
+        }
+        final Map<String, Object> result = status(StatusCodes.OK);
+        result.put("messages", messages);
+        send(response, HttpServletResponse.SC_OK, result);
+    }
+
+    private void logout(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final Session session = authenticate(request, response);
+        if (session != null) {
+            messagingSystem.logout(session.getAgentId());
+            send(response, HttpServletResponse.SC_OK, status(StatusCodes.OK));
+        }
+    }
+
+    /**
+     * Authenticates the request from its headers, responding with the reason if that fails, as
+     * {@link MessagingSystem#sendMessage(String, String, String, String)} would.
+     *
+     * @return The session, or null if a response has already been sent.
+     */
+    private Session authenticate(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String agentId = request.getHeader(AGENT_ID_HEADER);
+        final String sessionKey = request.getHeader(SESSION_KEY_HEADER);
+        final Session session = agentId == null || sessionKey == null
+                ? null : messagingSystem.authenticate(sessionKey, agentId);
+
+        if (session == null) {
+            final StatusCodes status = messagingSystem.refusal(agentId);
+            send(response, toHttpStatus(status), status(status));
+        }
+        return session;
+    }
+
+    private static int toHttpStatus(StatusCodes status) {
+        switch (status) {
+            case OK:
+                return HttpServletResponse.SC_OK;
+            case TARGET_AGENT_DOES_NOT_EXIST:
+                return HttpServletResponse.SC_NOT_FOUND;
+            case MESSAGE_LENGTH_EXCEEDED:
+                return HttpServletResponse.SC_BAD_REQUEST;
+            case BOTH_AGENT_QUOTAS_EXCEEDED:
+            case SOURCE_AGENT_QUOTA_EXCEEDED:
+            case TARGET_AGENT_QUOTA_EXCEEDED:
+            case SOURCE_AGENT_RATE_LIMITED:
+            case TARGET_AGENT_RATE_LIMITED:
+                return 429; // Too Many Requests
+            case SOURCE_AGENT_DOES_NOT_EXIST:
+            case SOURCE_AGENT_NOT_LOGGED_IN:
+            case SESSION_KEY_UNRECOGNIZED:
+                return HttpServletResponse.SC_UNAUTHORIZED;
+            default:
+                return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+    }
+
+    private static String getString(Map<?, ?> object, String field) {
+        final Object value = object.get(field);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static Map<String, Object> status(StatusCodes status) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("status", status.name());
+        return result;
+    }
+
+    private static void sendError(HttpServletResponse response, int httpStatus, String error) throws IOException {
+        final Map<String, Object> result = status(StatusCodes.GENERIC_ERROR);
+        result.put("error", error);
+        send(response, httpStatus, result);
+    }
+
+    private static void send(HttpServletResponse response, int httpStatus, Map<String, Object> result) throws IOException {
+        response.setStatus(httpStatus);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print(JSON.toString(result));
+    }
+}
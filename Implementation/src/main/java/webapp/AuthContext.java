@@ -0,0 +1,109 @@
+package webapp;
+
+import system.Session;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cookies of a request and the session they authenticate, as resolved once by
+ * {@link AuthFilter} and attached to the request for the servlets behind it.
+ */
+final class AuthContext {
+
+    private static final String ATTRIBUTE = AuthContext.class.getName();
+
+    private static final Map<String, CookieNames> NAMES = new HashMap<>();
+
+    static {
+        for (final CookieNames name : CookieNames.values()) {
+            NAMES.put(name.name(), name);
+        }
+    }
+
+    private final Map<CookieNames, Cookie> cookies;
+    private final Session session;
+
+    private AuthContext(Map<CookieNames, Cookie> cookies, Session session) {
+        this.cookies = cookies;
+        this.session = session;
+    }
+
+    /**
+     * Picks out the cookies of the application in a single pass over the cookies
+     *
+     * @param cookies The cookies of the request, which may be null
+     * @return The first cookie with each of the names in {@link CookieNames}
+     */
+    static Map<CookieNames, Cookie> parseCookies(Cookie[] cookies) {
+        final Map<CookieNames, Cookie> parsed = new EnumMap<>(CookieNames.class);
+        if (cookies != null) {
+            for (final Cookie cookie : cookies) {
+                final CookieNames name = NAMES.get(cookie.getName());
+                if (name != null) {
+                    parsed.putIfAbsent(name, cookie);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Attaches a context to the request
+     *
+     * @param request The request
+     * @param cookies The cookies of the request, as returned by {@link #parseCookies}
+     * @param session The session that the cookies authenticate, null if none
+     * @return The attached context
+     */
+    static AuthContext attach(ServletRequest request, Map<CookieNames, Cookie> cookies, Session session) {
+        final AuthContext context = new AuthContext(cookies, session);
+        request.setAttribute(ATTRIBUTE, context);
+        return context;
+    }
+
+    /**
+     * @return the context attached to the request by {@link AuthFilter}
+     * @throws IllegalStateException if the request did not pass through the filter
+     */
+    static AuthContext of(ServletRequest request) {
+        final AuthContext context = (AuthContext) request.getAttribute(ATTRIBUTE);
+        if (context == null) {
+            throw new IllegalStateException("Request was not authenticated by " + AuthFilter.class.getSimpleName());
+        }
+        return context;
+    }
+
+    /**
+     * @return the cookie with the given name, null if the request has none
+     */
+    Cookie getCookie(CookieNames name) {
+        return cookies.get(name);
+    }
+
+    /**
+     * @return true if the request has both an agent ID and a session key cookie
+     */
+    boolean hasSessionCookies() {
+        return cookies.containsKey(CookieNames.AGENT_ID) && cookies.containsKey(CookieNames.SESSION_KEY);
+    }
+
+    /**
+     * @return the session authenticated by the cookies, null if they do not authenticate one
+     */
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * Deletes the agent ID and session key cookies, if the request has them
+     */
+    void deleteSessionCookies(HttpServletResponse response) {
+        Utils.deleteCookie(cookies.get(CookieNames.AGENT_ID), response);
+        Utils.deleteCookie(cookies.get(CookieNames.SESSION_KEY), response);
+    }
+}
@@ -0,0 +1,82 @@
+package webapp;
+
+import system.MessagingSystem;
+import system.Session;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Parses the cookies of a request and authenticates its session once, then attaches both to
+ * the request as an {@link AuthContext} for the servlets behind the filter to use.
+ * <p>
+ * If a session is required, a request without one does not reach the servlet. It is redirected
+ * to the registration page instead, and if it had session cookies they are deleted and the agent
+ * is told that they were logged out. Otherwise, it is up to the servlet to handle the missing session.
+ * <p>
+ * Only requests are filtered, not their dispatches. The context stays attached when a suspended
+ * request is dispatched again, so a servlet that suspends requests has to check that the session is
+ * still active when it is dispatched again, and call {@link #sendLoggedOut} if it is not.
+ */
+class AuthFilter implements Filter {
+
+    private final MessagingSystem messagingSystem;
+    private final boolean sessionRequired;
+
+    AuthFilter(MessagingSystem messagingSystem, boolean sessionRequired) {
+        this.messagingSystem = messagingSystem;
+        this.sessionRequired = sessionRequired;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+
+        final HttpServletRequest request = (HttpServletRequest) servletRequest;
+        final HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        final Map<CookieNames, Cookie> cookies = AuthContext.parseCookies(request.getCookies());
+        final Cookie idCookie = cookies.get(CookieNames.AGENT_ID);
+        final Cookie skCookie = cookies.get(CookieNames.SESSION_KEY);
+
+        final Session session = idCookie == null || skCookie == null
+                ? null : messagingSystem.authenticate(skCookie.getValue(), idCookie.getValue());
+        final AuthContext context = AuthContext.attach(request, cookies, session);
+
+        if (session != null || !sessionRequired) {
+            chain.doFilter(request, response);
+        } else if (!context.hasSessionCookies()) {
+            response.sendRedirect("/register");
+        } else {
+            sendLoggedOut(context, response);
+        }
+    }
+
+    /**
+     * Deletes the session cookies, tells the agent that they were logged out and redirects them to the
+     * registration page. Servlets that hold on to a request across dispatches use it too, once they find
+     * that its session is no longer active.
+     */
+    static void sendLoggedOut(AuthContext context, HttpServletResponse response) throws IOException {
+        context.deleteSessionCookies(response);
+        response.addCookie(new Cookie(CookieNames.LOGGED_OUT_STATUS.name(), "You_were_logged_out_of_the_system."));
+        response.sendRedirect("/register");
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,303 @@
+package webapp;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import system.Message;
+import system.MessagingSystem;
+import system.Session;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the messages of a logged in agent as server-sent events. Each message is consumed
+ * from the mailbox as it is sent on the stream, so it is not returned by /readmessage too.
+ * Messages are therefore delivered at most once: up to {@link #MAX_MESSAGES_PER_WRITE} messages
+ * are consumed before they are written, and if the client has gone away by then, or goes away
+ * before the stream reaches it, those messages are lost rather than kept in the mailbox.
+ * <p>
+ * A stream does not hold on to a thread while it is idle, nor while it waits for a slow client.
+ * Messages are written by a server thread once they are delivered, and a shared thread sends a
+ * heartbeat every {@link #HEARTBEAT_INTERVAL}, which also closes the stream with a {@code logout}
+ * event once the session has expired or the agent has logged out. Everything is written without
+ * blocking: output that the client is not ready for waits until it is, and meanwhile no more
+ * messages are consumed and heartbeats are skipped, so a client that stops reading only holds
+ * up its own stream, until the connector's idle timeout closes it.
+ */
+@WebServlet(value = "/events", asyncSupported = true)
+class EventsServlet extends HttpServlet {
+
+    static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(15);
+
+    private static final int MAX_MESSAGES_PER_WRITE = 25;
+
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "events-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MessagingSystem messagingSystem;
+
+    EventsServlet(MessagingSystem messagingSystem) {
+        this.messagingSystem = messagingSystem;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        final Session session = AuthContext.of(request).getSession();
+
+        if (session == null) {
+            // an event stream cannot follow a redirect to an HTML page
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        } else {
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+
+            final AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(0); // the stream is closed by the heartbeat instead
+            final ServletOutputStream out = response.getOutputStream();
+            final Stream stream = new Stream(asyncContext, session, out);
+            asyncContext.addListener(stream);
+            out.setWriteListener(stream);
+            stream.open();
+        }
+    }
+
+    /**
+     * @return The message as a server-sent event
+     */
+    private static String toEvent(Message message) {
+        return "event: message\ndata: " + JSON.toString(Utils.toJsonObject(message)) + "\n\n";
+    }
+
+    /**
+     * The event stream of one request. It waits on the agent's mailbox and, whenever the
+     * wait is over, writes out every message in the mailbox before waiting again.
+     * <p>
+     * Output goes through a queue that is written out whenever the client is ready for it, either
+     * right away or when the container calls {@link #onWritePossible()}. The queue and the state of
+     * the output are guarded by the stream's monitor, which is never held while blocking.
+     */
+    private final class Stream implements Runnable, AsyncListener, WriteListener {
+
+        private final AsyncContext asyncContext;
+        private final Session session;
+        private final ServletOutputStream out;
+        private final Queue<byte[]> pending = new ArrayDeque<>();
+        private boolean flushNeeded = false;       // after writing, until the client is ready for the flush
+        private boolean resumeWhenWritten = false; // whether writing messages waits for the pending output
+        private boolean closing = false;           // once the logout event is queued
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile ScheduledFuture<?> heartbeat;
+
+        private Stream(AsyncContext asyncContext, Session session, ServletOutputStream out) {
+            this.asyncContext = asyncContext;
+            this.session = session;
+            this.out = out;
+        }
+
+        private void open() {
+            final long interval = HEARTBEAT_INTERVAL.toMillis();
+            heartbeat = HEARTBEATS.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+            write(": connected\n\n");
+            await();
+        }
+
+        private void await() {
+            if (!messagingSystem.awaitMessage(session, this)) {
+                close(true);
+            }
+        }
+
+        /**
+         * Runs on the thread that delivered a message, so the messages are written out by a server thread instead.
+         */
+        @Override
+        public void run() {
+            resume();
+        }
+
+        private void resume() {
+            try {
+                asyncContext.start(this::writeMessages);
+            } catch (IllegalStateException e) { // completed in the meantime
+                release();
+            }
+        }
+
+        /**
+         * Consumes and writes out the messages in the mailbox, as long as the client keeps up with them.
+         * Otherwise the rest of the messages stay in the mailbox until the client has read what was written
+         * so far. Messages consumed for a write that fails are dropped along with the stream.
+         */
+        private void writeMessages() {
+            List<Message> messages;
+            do {
+                synchronized (this) {
+                    if (closed.get() || closing) {
+                        return;
+                    } else if (!pending.isEmpty() || flushNeeded) {
+                        resumeWhenWritten = true;
+                        return;
+                    }
+                }
+                messages = messagingSystem.getNextMessages(session, MAX_MESSAGES_PER_WRITE);
+                final StringBuilder events = new StringBuilder();
+                for (final Message message : messages) {
+                    events.append(toEvent(message));
+                }
+                write(events.toString());
+            } while (!messages.isEmpty());
+            await();
+        }
+
+        private void heartbeat() {
+            if (!session.isActive()) {
+                close(true);
+            } else {
+                synchronized (this) {
+                    if (!pending.isEmpty() || flushNeeded) {
+                        return; // the client has not read the last output yet, which keeps the connection busy anyway
+                    }
+                }
+                write(": heartbeat\n\n");
+            }
+        }
+
+        /**
+         * Queues events to be written, and writes out as much as the client is ready for.
+         */
+        private void write(String events) {
+            if (events.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (closed.get() || closing) {
+                    return;
+                }
+                pending.add(events.getBytes(StandardCharsets.UTF_8));
+            }
+            onWritePossible();
+        }
+
+        /**
+         * Writes out the pending output while the client is ready for it. Once it has all been written,
+         * carries on writing messages if that was waiting for it, or completes the stream if it is closing.
+         */
+        @Override
+        public void onWritePossible() {
+            boolean resume = false, complete = false;
+            try {
+                synchronized (this) {
+                    while (!closed.get() && out.isReady()) {
+                        final byte[] next = pending.poll();
+                        if (next != null) {
+                            out.write(next);
+                            flushNeeded = true;
+                        } else if (flushNeeded) {
+                            out.flush();
+                            flushNeeded = false;
+                        } else {
+                            resume = resumeWhenWritten;
+                            resumeWhenWritten = false;
+                            complete = closing;
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) { // the client has gone away
+                close(false);
+                return;
+            }
+            if (complete) {
+                close(false);
+            } else if (resume) {
+                resume();
+            }
+        }
+
+        /**
+         * Closes the stream, after writing out a {@code logout} event if the agent was logged out.
+         */
+        private void close(boolean loggedOut) {
+            if (loggedOut) {
+                synchronized (this) {
+                    if (closed.get() || closing) {
+                        return;
+                    }
+                    pending.add("event: logout\ndata: \n\n".getBytes(StandardCharsets.UTF_8));
+                    closing = true;
+                }
+                stopWaiting();
+                onWritePossible(); // completes the stream once the event is written
+            } else if (release()) {
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * Stops waiting for messages and sending heartbeats, after which no pending output is written.
+         *
+         * @return false if the stream had already been released.
+         */
+        private boolean release() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            stopWaiting();
+            return true;
+        }
+
+        private void stopWaiting() {
+            messagingSystem.cancelAwait(session, this);
+            final ScheduledFuture<?> heartbeat = this.heartbeat;
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) { // of writing
+            close(false);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close(false);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close(false);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
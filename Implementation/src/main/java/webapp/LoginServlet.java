@@ -15,6 +15,19 @@ import java.io.IOException;
 @WebServlet("/login")
 class LoginServlet extends HttpServlet {
 
+    private static final Template PAGE = Template.compile("" +
+            "<h1>Login Screen</h1>" +
+            "<hr>" +
+            "<p class=\"notification\">" + Utils.getSpan("notif", "{{notif}}") + "</p>" +
+            Utils.getPostForm("loginForm", "/login") +
+            "<p>" +
+            "    <b>Agent ID</b>:  " + Utils.getSpan("id", "{{id}}") + "<br>" +
+            "    <b>Login key</b>: " + Utils.getSpan("lKey", "{{lKey}}") + "<br>" +
+            "</p>" +
+            Utils.getInputField("lKeyInput", "Confirm login key", true) + "<br>" +
+            Utils.getSubmitButton("submit", "Login")
+    );
+
     private final MessagingSystem messagingSystem;
 
     LoginServlet(final MessagingSystem messagingSystem) {
@@ -36,19 +49,7 @@ class LoginServlet extends HttpServlet {
         if (idCookie == null || lKeyCookie == null) {
             response.sendRedirect("/register");
         } else {
-            response.setContentType("text/html");
-            response.getWriter().println("" +
-                    "<h1>Login Screen</h1>" +
-                    "<hr>" +
-                    "<p class=\"notification\">" + Utils.getSpan("notif", loginDeniedStatusText) + "</p>" +
-                    Utils.getPostForm("loginForm", "/login") +
-                    "<p>" +
-                    "    <b>Agent ID</b>:  " + Utils.getSpan("id", idCookie.getValue()) + "<br>" +
-                    "    <b>Login key</b>: " + Utils.getSpan("lKey", lKeyCookie.getValue()) + "<br>" +
-                    "</p>" +
-                    Utils.getInputField("lKeyInput", "Confirm login key", true) + "<br>" +
-                    Utils.getSubmitButton("submit", "Login")
-            );
+            PAGE.render(response, loginDeniedStatusText, idCookie.getValue(), lKeyCookie.getValue());
         }
     }
 
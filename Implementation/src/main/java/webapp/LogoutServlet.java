@@ -9,6 +9,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+/**
+ * Logs the agent out, behind an {@link AuthFilter} that does not require a session.
+ */
 @WebServlet("/logout")
 class LogoutServlet extends HttpServlet {
 
@@ -20,13 +23,11 @@ class LogoutServlet extends HttpServlet {
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
-        final Cookie idCookie = Utils.findCookie(request.getCookies(), CookieNames.AGENT_ID.name());
-        final Cookie sKeyCookie = Utils.findCookie(request.getCookies(), CookieNames.SESSION_KEY.name());
+        final AuthContext context = AuthContext.of(request);
 
-        if (idCookie != null && sKeyCookie != null) {
-            messagingSystem.logout(idCookie.getValue());
-            Utils.deleteCookie(idCookie, response);
-            Utils.deleteCookie(sKeyCookie, response);
+        if (context.hasSessionCookies()) {
+            messagingSystem.logout(context.getCookie(CookieNames.AGENT_ID).getValue());
+            context.deleteSessionCookies(response);
         }
 
         response.addCookie(new Cookie(CookieNames.LOGGED_OUT_STATUS.name(), "Successfully_logged_out."));
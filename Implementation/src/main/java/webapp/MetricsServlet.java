@@ -0,0 +1,29 @@
+package webapp;
+
+import system.MessagingSystem;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the metrics of the messaging system in the Prometheus text format, for scraping.
+ * No session is needed.
+ */
+@WebServlet("/metrics")
+class MetricsServlet extends HttpServlet {
+
+    private final MessagingSystem messagingSystem;
+
+    MetricsServlet(final MessagingSystem messagingSystem) {
+        this.messagingSystem = messagingSystem;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        messagingSystem.writeMetrics(response.getWriter());
+    }
+}
@@ -2,17 +2,62 @@ package webapp;
 
 import system.Message;
 import system.MessagingSystem;
+import system.Session;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.annotation.WebServlet;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-@WebServlet("/readmessage")
+/**
+ * Consumes the next message. If the mailbox is empty and the request asks to wait (for
+ * example {@code /readmessage?wait=30}), the request is suspended until a message arrives
+ * or the wait is over, without holding on to a thread in the meantime.
+ * <p>
+ * The servlet is behind an {@link AuthFilter} that requires a session. The filter does not see the
+ * request again when it is dispatched again, so the servlet checks that the session is still active
+ * itself, and treats the agent as logged out like the filter does if it is not.
+ */
+@WebServlet(value = "/readmessage", asyncSupported = true)
 class ReadMessageServlet extends HttpServlet {
 
+    /**
+     * Query parameter holding the number of seconds to wait for a message if there is none.
+     */
+    static final String WAIT_PARAMETER = "wait";
+    static final int MAX_WAIT_SECONDS = 60;
+
+    private static final String DEADLINE_ATTRIBUTE = ReadMessageServlet.class.getName() + ".deadline";
+
+    private static final Template MESSAGE_PAGE = Template.compile("" +
+            "<h1>Latest Message</h1>" +
+            "<hr>" +
+            "<p id=\"messageContainer\">" +
+            "    <b>From</b>: Agent " + Utils.getSpan("from", "{{from}}") + "<br>" +
+            "    <b>To</b>: Agent " + Utils.getSpan("to", "{{to}}") + "<br>" +
+            "    <b>Timestamp</b>: " + Utils.getSpan("timestamp", "{{timestamp}}") + "<br>" +
+            "    <b>Message</b>: " + Utils.getSpan("message", "{{message}}") + "<br>" +
+            "</p>" +
+            Utils.getHrefButton("/readmessage", "consume", "Consume another message") + "<br>" +
+            Utils.getHrefButton("/loggedin", "backToMailbox", "Go back")
+    );
+
+    private static final Template NO_MESSAGE_PAGE = Template.compile("" +
+            "<h1>Latest Message</h1>" +
+            "<hr>" +
+            "<p id=\"messageContainer\">You have no new messages.</p>" +
+            Utils.getHrefButton("/readmessage", "consume", "Try again") + "<br>" +
+            Utils.getHrefButton("/readmessage?" + WAIT_PARAMETER + "=" + MAX_WAIT_SECONDS,
+                    "waitForMessage", "Wait for a message") + "<br>" +
+            Utils.getHrefButton("/loggedin", "backToMailbox", "Go back")
+    );
+
     private final MessagingSystem messagingSystem;
 
     ReadMessageServlet(MessagingSystem messagingSystem) {
@@ -21,45 +66,104 @@ class ReadMessageServlet extends HttpServlet {
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
-        response.setContentType("text/html");
-
-        final Cookie idCookie = Utils.findCookie(request.getCookies(), CookieNames.AGENT_ID.name());
-        final Cookie skCookie = Utils.findCookie(request.getCookies(), CookieNames.SESSION_KEY.name());
+        final AuthContext context = AuthContext.of(request);
+        final Session session = context.getSession();
+        if (!session.isActive()) { // logged out or expired while waiting
+            AuthFilter.sendLoggedOut(context, response);
+            return;
+        }
+        final Message message = messagingSystem.getNextMessage(session);
 
-        if (idCookie == null || skCookie == null) {
-            response.sendRedirect("/register");
-        } else if (!messagingSystem.agentLoggedIn(idCookie.getValue())) {
-            Utils.deleteCookie(idCookie, response);
-            Utils.deleteCookie(skCookie, response);
-            response.addCookie(new Cookie(CookieNames.LOGGED_OUT_STATUS.name(), "You_were_logged_out_of_the_system."));
-            response.sendRedirect("/register");
+        if (message == null && awaitMessage(request, response, context)) {
+            return; // the request is dispatched again once there is a message or the wait is over
+        } else if (message != null) {
+            MESSAGE_PAGE.render(response, message.getSourceAgentId(), message.getTargetAgentId(),
+                    message.getTimestamp().toString(), message.getMessage());
         } else {
-            final String id = idCookie.getValue();
-            final String sessionKey = skCookie.getValue();
-
-            if (messagingSystem.agentHasMessages(id)) {
-                final Message message = messagingSystem.getNextMessage(sessionKey, id);
-                response.getWriter().println("" +
-                        "<h1>Latest Message</h1>" +
-                        "<hr>" +
-                        "<p id=\"messageContainer\">" +
-                        "    <b>From</b>: Agent " + Utils.getSpan("from", message.getSourceAgentId()) + "<br>" +
-                        "    <b>To</b>: Agent " + Utils.getSpan("to", message.getTargetAgentId()) + "<br>" +
-                        "    <b>Timestamp</b>: " + Utils.getSpan("timestamp", "" + message.getTimestamp()) + "<br>" +
-                        "    <b>Message</b>: " + Utils.getSpan("message", message.getMessage()) + "<br>" +
-                        "</p>" +
-                        Utils.getHrefButton("/readmessage", "consume", "Consume another message") + "<br>" +
-                        Utils.getHrefButton("/loggedin", "backToMailbox", "Go back")
-                );
-            } else {
-                response.getWriter().println("" +
-                        "<h1>Latest Message</h1>" +
-                        "<hr>" +
-                        "<p id=\"messageContainer\">You have no new messages.</p>" +
-                        Utils.getHrefButton("/readmessage", "consume", "Try again") + "<br>" +
-                        Utils.getHrefButton("/loggedin", "backToMailbox", "Go back")
-                );
+            NO_MESSAGE_PAGE.render(response);
+        }
+    }
+
+    /**
+     * Suspends the request until the agent has a message or the wait asked for is over. If the agent
+     * has been logged out in the meantime, responds as for a logged out agent instead.
+     *
+     * @return false if the request did not ask to wait or the wait is already over, in which case
+     * no response has been sent.
+     */
+    private boolean awaitMessage(HttpServletRequest request, HttpServletResponse response, AuthContext context)
+            throws IOException {
+        final Session session = context.getSession();
+        Long deadline = (Long) request.getAttribute(DEADLINE_ATTRIBUTE);
+        if (deadline == null) { // not dispatched again after waiting
+            deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(parseWait(request));
+            request.setAttribute(DEADLINE_ATTRIBUTE, deadline);
+        }
+
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(remaining);
+        final Waiter waiter = new Waiter(asyncContext, session);
+        asyncContext.addListener(waiter);
+        if (!messagingSystem.awaitMessage(session, waiter)) { // logged out in the meantime
+            AuthFilter.sendLoggedOut(context, response);
+            asyncContext.complete();
+        }
+        return true;
+    }
+
+    private static int parseWait(HttpServletRequest request) {
+        try {
+            final String wait = request.getParameter(WAIT_PARAMETER);
+            return wait == null ? 0 : Math.min(Integer.parseInt(wait), MAX_WAIT_SECONDS);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Dispatches a suspended request again, once, when a message arrives or the wait is over.
+     */
+    private final class Waiter implements Runnable, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final Session session;
+        private final AtomicBoolean dispatched = new AtomicBoolean();
+
+        private Waiter(AsyncContext asyncContext, Session session) {
+            this.asyncContext = asyncContext;
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            if (dispatched.compareAndSet(false, true)) {
+                asyncContext.dispatch();
             }
         }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            messagingSystem.cancelAwait(session, this);
+            asyncContext.getRequest().setAttribute(DEADLINE_ATTRIBUTE, 0L);
+            run();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            messagingSystem.cancelAwait(session, this);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            messagingSystem.cancelAwait(session, this);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
     }
 }
@@ -15,6 +15,15 @@ import java.io.IOException;
 @WebServlet("/register")
 class RegisterServlet extends HttpServlet {
 
+    private static final Template PAGE = Template.compile("" +
+            "<h1>Register Screen</h1>" +
+            "<hr>" +
+            "<p class=\"notification\">" + Utils.getSpan("notif", "{{notif}}") + "</p>" +
+            Utils.getPostForm("registerForm", "/register") +
+            Utils.getInputField("idInput", "Agent ID", true) + "<br>" +
+            Utils.getSubmitButton("submit", "Register")
+    );
+
     private final MessagingSystem messagingSystem;
 
     RegisterServlet(final MessagingSystem messagingSystem) {
@@ -30,15 +39,7 @@ class RegisterServlet extends HttpServlet {
             Utils.deleteCookie(loggedOutCookie, response);
         }
 
-        response.setContentType("text/html");
-        response.getWriter().println("" +
-                "<h1>Register Screen</h1>" +
-                "<hr>" +
-                "<p class=\"notification\">" + Utils.getSpan("notif", loggedOutStatusText) + "</p>" +
-                Utils.getPostForm("registerForm", "/register") +
-                Utils.getInputField("idInput", "Agent ID", true) + "<br>" +
-                Utils.getSubmitButton("submit", "Register")
-        );
+        PAGE.render(response, loggedOutStatusText);
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -0,0 +1,193 @@
+package webapp;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The settings of the embedded web server. Each setting is named {@code server.<setting>} and
+ * is read from the system property of that name, or else from the properties file named by
+ * the {@value #CONFIG_FILE_PROPERTY} system property, or else takes its default value.
+ * <p>
+ * Times are in milliseconds. An acceptor or selector count of -1 leaves the choice to Jetty,
+ * which bases it on the number of processors, and an accept queue size of 0 leaves it to the
+ * operating system.
+ */
+final class ServerConfig {
+
+    /**
+     * System property holding the path of a properties file with server settings.
+     */
+    static final String CONFIG_FILE_PROPERTY = "serverConfig";
+
+    static final String PREFIX = "server.";
+
+    final int port;
+    final int minThreads;
+    final int maxThreads;
+    final int threadIdleTimeout;
+    final int acceptors;
+    final int selectors;
+    final long idleTimeout;
+    final int acceptQueueSize;
+    final boolean keepAlive;
+    final boolean gzip;
+    final int gzipMinSize;
+    final boolean h2c;
+
+    /**
+     * @param properties The settings, including the prefix in their names.
+     * @throws IllegalArgumentException if a setting is not valid.
+     */
+    ServerConfig(Properties properties) {
+        this.port = getInt(properties, "port", StartJettyHandler.PORT_NUMBER, 0);
+        this.minThreads = getInt(properties, "minThreads", 8, 1);
+        this.maxThreads = getInt(properties, "maxThreads", 200, 1);
+        this.threadIdleTimeout = getInt(properties, "threadIdleTimeout", 60_000, 0);
+        this.acceptors = getInt(properties, "acceptors", -1, -1);
+        this.selectors = getInt(properties, "selectors", -1, -1);
+        this.idleTimeout = getInt(properties, "idleTimeout", 30_000, 0);
+        this.acceptQueueSize = getInt(properties, "acceptQueueSize", 0, 0);
+        this.keepAlive = getBoolean(properties, "keepAlive", true);
+        this.gzip = getBoolean(properties, "gzip", false);
+        this.gzipMinSize = getInt(properties, "gzipMinSize", 256, 0);
+        this.h2c = getBoolean(properties, "h2c", false);
+
+        if (minThreads > maxThreads) {
+            throw new IllegalArgumentException(PREFIX + "minThreads cannot be more than " + PREFIX + "maxThreads.");
+        }
+    }
+
+    /**
+     * Reads the settings from the system properties and the configuration file, if any.
+     *
+     * @return The settings.
+     * @throws IOException              if the configuration file cannot be read.
+     * @throws IllegalArgumentException if a setting is not valid.
+     */
+    static ServerConfig load() throws IOException {
+        final Properties properties = new Properties();
+
+        final String file = System.getProperty(CONFIG_FILE_PROPERTY);
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        for (final String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Creates a server with these settings, which serves the given handler.
+     *
+     * @param handler The handler of all requests.
+     * @return The server, not yet started.
+     */
+    Server createServer(Handler handler) {
+        final QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, threadIdleTimeout);
+        threadPool.setName("server");
+        final Server server = new Server(threadPool);
+
+        final HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setPersistentConnectionsEnabled(keepAlive);
+        final List<ConnectionFactory> connectionFactories = new ArrayList<>();
+        connectionFactories.add(new HttpConnectionFactory(httpConfiguration));
+        if (h2c) {
+            connectionFactories.add(new HTTP2CServerConnectionFactory(httpConfiguration));
+        }
+
+        final ServerConnector connector = new ServerConnector(server, acceptors, selectors,
+                connectionFactories.toArray(new ConnectionFactory[0]));
+        connector.setPort(port);
+        connector.setIdleTimeout(idleTimeout);
+        connector.setAcceptQueueSize(acceptQueueSize);
+        server.addConnector(connector);
+
+        if (gzip) {
+            final GzipHandler gzipHandler = new GzipHandler();
+            gzipHandler.setMinGzipSize(gzipMinSize);
+            gzipHandler.addExcludedMimeTypes("text/event-stream"); // events must not wait for a compressed block
+            gzipHandler.setHandler(handler);
+            server.setHandler(gzipHandler);
+        } else {
+            server.setHandler(handler);
+        }
+        return server;
+    }
+
+    /**
+     * Describes the settings that a server is actually using, which includes the
+     * choices that Jetty made for the settings that were left to it.
+     *
+     * @param server A server created by {@link #createServer}, preferably started.
+     * @return A one-line description of the settings.
+     */
+    static String describe(Server server) {
+        final QueuedThreadPool threadPool = (QueuedThreadPool) server.getThreadPool();
+        final ServerConnector connector = (ServerConnector) server.getConnectors()[0];
+        final HttpConfiguration httpConfiguration =
+                connector.getConnectionFactory(HttpConnectionFactory.class).getHttpConfiguration();
+        final GzipHandler gzipHandler = server.getChildHandlerByClass(GzipHandler.class);
+
+        return "port=" + connector.getLocalPort() +
+                ", threads=" + threadPool.getMinThreads() + ".." + threadPool.getMaxThreads() +
+                ", threadIdleTimeout=" + threadPool.getIdleTimeout() +
+                ", acceptors=" + connector.getAcceptors() +
+                ", selectors=" + connector.getSelectorManager().getSelectorCount() +
+                ", idleTimeout=" + connector.getIdleTimeout() +
+                ", acceptQueueSize=" + connector.getAcceptQueueSize() +
+                ", keepAlive=" + httpConfiguration.isPersistentConnectionsEnabled() +
+                ", gzip=" + (gzipHandler == null ? "off" : "minSize " + gzipHandler.getMinGzipSize()) +
+                ", protocols=" + connector.getProtocols();
+    }
+
+    private static int getInt(Properties properties, String setting, int defaultValue, int minValue) {
+        final String value = properties.getProperty(PREFIX + setting);
+        if (value == null) {
+            return defaultValue;
+        }
+        final int parsed;
+        try {
+            parsed = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(PREFIX + setting + " must be a number, not \"" + value + "\".");
+        }
+        if (parsed < minValue) {
+            throw new IllegalArgumentException(PREFIX + setting + " cannot be less than " + minValue + ".");
+        }
+        return parsed;
+    }
+
+    private static boolean getBoolean(Properties properties, String setting, boolean defaultValue) {
+        final String value = properties.getProperty(PREFIX + setting);
+        if (value == null) {
+            return defaultValue;
+        } else if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.trim().equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException(PREFIX + setting + " must be true or false, not \"" + value + "\".");
+        }
+    }
+}
@@ -1,36 +1,98 @@
 package webapp;
 
-import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.log.Log;
+import system.Journal;
+import system.MessageStore;
 import system.MessagingSystem;
+import system.RateLimit;
+import util.KeyGenerator;
+import util.PooledKeyGenerator;
+import util.RandomKeyGenerator;
+import util.WriteAheadLog;
+
+import javax.servlet.DispatcherType;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class StartJettyHandler {
 
     public static final int PORT_NUMBER = 8080;
 
-    public static void main(String[] args) {
+    /**
+     * System property holding a comma-separated list of blocked words that replaces the default list.
+     */
+    public static final String BLOCKED_WORDS_PROPERTY = "blockedWords";
 
-        final MessagingSystem messagingSystem = new MessagingSystem();
-        final Runnable runnable = () -> {
-            final Server server = new Server(PORT_NUMBER);
-            try {
-                server.getConnectors()[0].getConnectionFactory(HttpConnectionFactory.class);
+    /**
+     * System property holding the number of login and session keys to generate ahead of time, if any.
+     */
+    public static final String KEY_POOL_SIZE_PROPERTY = "keyPoolSize";
+
+    /**
+     * System property holding the directory of the journal, if the state of the system is to survive a restart.
+     */
+    public static final String JOURNAL_PROPERTY = "journal";
+
+    /**
+     * System property holding when the journal is forced to disk: always, interval (the default) or never.
+     */
+    public static final String JOURNAL_SYNC_PROPERTY = "journalSync";
+
+    /**
+     * System property holding the number of milliseconds between forces of the journal, for the interval policy.
+     */
+    public static final String JOURNAL_SYNC_INTERVAL_PROPERTY = "journalSyncInterval";
+
+    /**
+     * System property holding the number of seconds between snapshots of the journal (300 by default), or 0 for none.
+     */
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "snapshotInterval";
+
+    /**
+     * System property holding where queued messages are kept: heap (the default), direct for direct
+     * buffers, or the path of a file to map.
+     */
+    public static final String MESSAGE_STORE_PROPERTY = "messageStore";
 
-                ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
-                context.setContextPath("/");
-                server.setHandler(context);
+    /**
+     * System property holding the most megabytes that queued messages may take up outside the heap (1024 by default).
+     */
+    public static final String MESSAGE_STORE_SIZE_PROPERTY = "messageStoreSize";
 
-                context.addServlet(new ServletHolder(new DefaultServlet()), "/");
-                context.addServlet(new ServletHolder(new RegisterServlet(messagingSystem)), "/register/*");
-                context.addServlet(new ServletHolder(new LoginServlet(messagingSystem)), "/login/*");
-                context.addServlet(new ServletHolder(new LoggedInServlet(messagingSystem)), "/loggedin/*");
-                context.addServlet(new ServletHolder(new SendMessageServlet(messagingSystem)), "/sendmessage/*");
-                context.addServlet(new ServletHolder(new ReadMessageServlet(messagingSystem)), "/readmessage/*");
-                context.addServlet(new ServletHolder(new LogoutServlet(messagingSystem)), "/logout/*");
+    /**
+     * System property holding the number of messages per second that each agent may send and receive,
+     * if agents are to be rate limited instead of being logged out once they reach their quotas.
+     */
+    public static final String RATE_LIMIT_PROPERTY = "rateLimit";
 
+    /**
+     * System property holding the number of messages that a rate limited agent may send or receive at once (25 by default).
+     */
+    public static final String RATE_LIMIT_BURST_PROPERTY = "rateLimitBurst";
+
+    /**
+     * Starts the web server, with the settings described in {@link ServerConfig}.
+     */
+    public static void main(String[] args) throws IOException {
+
+        final ServerConfig config = ServerConfig.load();
+        final MessagingSystem messagingSystem = createMessagingSystem();
+        final Runnable runnable = () -> {
+            final Server server = createServer(config, messagingSystem);
+            try {
                 server.start();
+                Log.getLogger(StartJettyHandler.class).info("Server configuration: " + ServerConfig.describe(server));
                 server.join();
             } catch (Exception e) {
                 e.printStackTrace();
@@ -38,4 +100,146 @@ public class StartJettyHandler {
         };
         new Thread(runnable).start();
     }
+
+    /**
+     * Creates the messaging system described by the system properties above. A system with a
+     * journal takes snapshots in the background and is snapshotted and closed on shutdown.
+     *
+     * @return The messaging system, recovered from its journal if it has one.
+     * @throws IOException if the message store cannot be created or the journal cannot be recovered.
+     */
+    static MessagingSystem createMessagingSystem() throws IOException {
+        final String blockedWords = System.getProperty(BLOCKED_WORDS_PROPERTY);
+        final int keyPoolSize = Integer.getInteger(KEY_POOL_SIZE_PROPERTY, 0);
+        final KeyGenerator keyGenerator = keyPoolSize > 0
+                ? new PooledKeyGenerator(RandomKeyGenerator.secure(), keyPoolSize)
+                : RandomKeyGenerator.secure();
+        final List<String> blockedWordList =
+                blockedWords == null ? MessagingSystem.DEFAULT_BLOCKED_WORDS : parseList(blockedWords);
+        final MessageStore messageStore = openMessageStore();
+        final String rate = System.getProperty(RATE_LIMIT_PROPERTY);
+        final RateLimit rateLimit = rate == null
+                ? null
+                : new RateLimit(Double.parseDouble(rate), Integer.getInteger(RATE_LIMIT_BURST_PROPERTY, 25));
+        final MessagingSystem.Builder builder = MessagingSystem.builder()
+                .blockedWords(blockedWordList)
+                .keyGenerator(keyGenerator)
+                .messageStore(messageStore)
+                .rateLimit(rateLimit);
+        final String journalDirectory = System.getProperty(JOURNAL_PROPERTY);
+        if (journalDirectory == null) {
+            return builder.build();
+        }
+        final Journal journal = Journal.open(Paths.get(journalDirectory),
+                WriteAheadLog.SyncPolicy.valueOf(System.getProperty(JOURNAL_SYNC_PROPERTY, "interval").toUpperCase()),
+                Duration.ofMillis(Long.getLong(JOURNAL_SYNC_INTERVAL_PROPERTY, 100)));
+        final MessagingSystem messagingSystem = builder.journal(journal).build();
+        final long snapshotInterval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 300);
+        if (snapshotInterval > 0) {
+            final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(() -> {
+                try {
+                    messagingSystem.snapshot();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace(); // the journal still holds every change, so try again next time
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                messagingSystem.snapshot(); // so that the next start does not replay the journal
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "journal-shutdown"));
+        return messagingSystem;
+    }
+
+    /**
+     * Creates the web server, with every page and endpoint of the web application.
+     *
+     * @param config          The settings of the server.
+     * @param messagingSystem The messaging system that the web application serves.
+     * @return The server, not yet started.
+     */
+    static Server createServer(ServerConfig config, MessagingSystem messagingSystem) {
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        final Server server = config.createServer(context);
+
+        context.addServlet(new ServletHolder(new DefaultServlet()), "/");
+        context.addServlet(new ServletHolder(new RegisterServlet(messagingSystem)), "/register/*");
+        context.addServlet(new ServletHolder(new LoginServlet(messagingSystem)), "/login/*");
+        final FilterHolder sessionRequired = new FilterHolder(new AuthFilter(messagingSystem, true));
+        final FilterHolder sessionOptional = new FilterHolder(new AuthFilter(messagingSystem, false));
+        final EnumSet<DispatcherType> requests = EnumSet.of(DispatcherType.REQUEST);
+        context.addFilter(sessionRequired, "/loggedin/*", requests);
+        context.addFilter(sessionRequired, "/sendmessage/*", requests);
+        context.addFilter(sessionRequired, "/readmessage/*", requests);
+        context.addFilter(sessionOptional, "/events/*", requests);
+        context.addFilter(sessionOptional, "/logout/*", requests);
+
+        context.addServlet(new ServletHolder(new LoggedInServlet()), "/loggedin/*");
+        context.addServlet(new ServletHolder(new SendMessageServlet(messagingSystem)), "/sendmessage/*");
+        final ServletHolder readMessageHolder = new ServletHolder(new ReadMessageServlet(messagingSystem));
+        readMessageHolder.setAsyncSupported(true);
+        context.addServlet(readMessageHolder, "/readmessage/*");
+        final ServletHolder eventsHolder = new ServletHolder(new EventsServlet(messagingSystem));
+        eventsHolder.setAsyncSupported(true);
+        context.addServlet(eventsHolder, "/events/*");
+        context.addServlet(new ServletHolder(new ApiServlet(messagingSystem)), "/api/v1/*");
+        context.addServlet(new ServletHolder(new LogoutServlet(messagingSystem)), "/logout/*");
+        context.addServlet(new ServletHolder(new MetricsServlet(messagingSystem)), "/metrics");
+        return server;
+    }
+
+    /**
+     * Opens the store of queued messages given by {@link #MESSAGE_STORE_PROPERTY}, if any.
+     *
+     * @return The store, or null to keep queued messages on the heap.
+     */
+    private static MessageStore openMessageStore() throws IOException {
+        final String store = System.getProperty(MESSAGE_STORE_PROPERTY, "heap");
+        final long maxBytes = Long.getLong(MESSAGE_STORE_SIZE_PROPERTY, 1024) << 20;
+        if (store.equals("heap")) {
+            return null;
+        } else if (store.equals("direct")) {
+            return MessageStore.direct(maxBytes);
+        } else {
+            final MessageStore mapped = MessageStore.mapped(Paths.get(store), maxBytes);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    mapped.close(); // deletes the file
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "message-store-shutdown"));
+            return mapped;
+        }
+    }
+
+    /**
+     * Splits a comma-separated list, ignoring blank entries
+     *
+     * @param list The comma-separated list
+     * @return The trimmed entries of the list
+     */
+    private static List<String> parseList(String list) {
+        final List<String> entries = new ArrayList<>();
+        for (final String entry : list.split(",")) {
+            if (!entry.trim().isEmpty()) {
+                entries.add(entry.trim());
+            }
+        }
+        return entries;
+    }
 }
\ No newline at end of file
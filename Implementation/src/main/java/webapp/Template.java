@@ -0,0 +1,128 @@
+package webapp;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An HTML page with placeholders for dynamic values, written as {@code {{name}}}.
+ * <p>
+ * The static parts of the page are encoded to UTF-8 once, when the template is compiled.
+ * Rendering the page only escapes and encodes the values, and writes the bytes straight to
+ * the response with the right Content-Length.
+ */
+final class Template {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{(\\w+)}}");
+
+    private final byte[][] fragments; // the static parts, around the placeholders
+    private final String[] names;     // the placeholders, in order
+    private final int staticLength;
+
+    private Template(byte[][] fragments, String[] names) {
+        this.fragments = fragments;
+        this.names = names;
+
+        int length = 0;
+        for (final byte[] fragment : fragments) {
+            length += fragment.length;
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * Compiles a page.
+     *
+     * @param html The HTML of the page, with {@code {{name}}} in place of each dynamic value.
+     * @return The compiled page.
+     */
+    static Template compile(String html) {
+        final List<byte[]> fragments = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+
+        final Matcher matcher = PLACEHOLDER.matcher(html);
+        int end = 0;
+        while (matcher.find()) {
+            fragments.add(html.substring(end, matcher.start()).getBytes(StandardCharsets.UTF_8));
+            names.add(matcher.group(1));
+            end = matcher.end();
+        }
+        fragments.add(html.substring(end).getBytes(StandardCharsets.UTF_8));
+
+        return new Template(fragments.toArray(new byte[0][]), names.toArray(new String[0]));
+    }
+
+    /**
+     * Writes the page as the response, with each placeholder replaced by its value.
+     *
+     * @param response The response to write the page to.
+     * @param values   The values of the placeholders, in the order in which they appear
+     *                 in the page. Values are HTML-escaped, and null values are left out.
+     * @throws IllegalArgumentException if the number of values does not match the placeholders.
+     */
+    void render(HttpServletResponse response, String... values) throws IOException {
+        if (values.length != names.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " values, got " + values.length + ".");
+        }
+
+        final byte[][] encoded = new byte[values.length][];
+        int length = staticLength;
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = values[i] == null ? new byte[0] : escape(values[i]).getBytes(StandardCharsets.UTF_8);
+            length += encoded[i].length;
+        }
+
+        response.setContentType("text/html;charset=UTF-8");
+        response.setContentLength(length);
+        final ServletOutputStream out = response.getOutputStream();
+        out.write(fragments[0]);
+        for (int i = 0; i < encoded.length; i++) {
+            out.write(encoded[i]);
+            out.write(fragments[i + 1]);
+        }
+    }
+
+    /**
+     * Escapes the characters that have a meaning in HTML text and attribute values.
+     *
+     * @param text The text to escape.
+     * @return The escaped text, or the same instance if there is nothing to escape.
+     */
+    static String escape(String text) {
+        StringBuilder escaped = null;
+        int copyFrom = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&#39;";
+                    break;
+                default:
+                    continue;
+            }
+            if (escaped == null) {
+                escaped = new StringBuilder(text.length() + 16);
+            }
+            escaped.append(text, copyFrom, i).append(entity);
+            copyFrom = i + 1;
+        }
+        return escaped == null ? text : escaped.append(text, copyFrom, text.length()).toString();
+    }
+}
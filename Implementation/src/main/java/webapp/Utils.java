@@ -1,7 +1,11 @@
 package webapp;
 
+import system.Message;
+
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 class Utils {
 
@@ -59,4 +63,19 @@ class Utils {
     static String getSpan(String id, String content) {
         return "<span id=\"" + id + "\">" + content + "</span>";
     }
+
+    /**
+     * Converts a message to the object that represents it in JSON
+     *
+     * @param message The message to convert
+     * @return The fields of the message, in order
+     */
+    static Map<String, Object> toJsonObject(Message message) {
+        final Map<String, Object> json = new LinkedHashMap<>();
+        json.put("from", message.getSourceAgentId());
+        json.put("to", message.getTargetAgentId());
+        json.put("timestamp", message.getTimestamp().toString());
+        json.put("message", message.getMessage());
+        return json;
+    }
 }
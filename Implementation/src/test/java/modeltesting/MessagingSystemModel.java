@@ -0,0 +1,469 @@
+package modeltesting;
+
+import nz.ac.waikato.modeljunit.Action;
+import nz.ac.waikato.modeljunit.FsmModel;
+import org.junit.Assert;
+import system.Message;
+import system.MessagingSystem;
+import system.MutableClock;
+import system.StatusCodes;
+import system.Supervisor;
+import util.Utils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * Models one agent of a {@link MessagingSystem} that is driven directly rather than through a browser,
+ * as {@link SystemModel} is. Many of these models may drive the same system at once, each from its own
+ * thread, and share a {@link MutableClock} that any of them may move forward.
+ * <p>
+ * Since another model may move the clock during a call, every call is bracketed by two readings of
+ * the clock, and every expiry the model expects is kept as the earliest and latest time it can be at.
+ * A key or message is only expected to have expired if it had certainly done so before the call,
+ * and only expected to be valid if it certainly still was after the call; in between, either outcome
+ * is accepted and the model follows whichever the system chose.
+ */
+public class MessagingSystemModel implements FsmModel {
+
+    private static final int MAX_MESSAGE_LENGTH = 140;
+    private static final int MAX_MESSAGES_SENT = 25;
+    private static final int MAX_MESSAGE_RECEIVED = 25;
+    private static final long LOGIN_KEY_TIME_LIMIT = Duration.ofMinutes(1).toMillis();
+    private static final long SESSION_KEY_TIME_LIMIT = Duration.ofMinutes(10).toMillis();
+    private static final long MESSAGE_TIME_LIMIT = Duration.ofMinutes(30).toMillis();
+
+    private final MessagingSystem messagingSystem;
+    private final Supervisor supervisor;
+    private final MutableClock clock;
+    private final String hubId;
+    private final String name;
+    private final Random random;
+    private final long maxTimeStepMillis;
+
+    private SystemModelState currentState = SystemModelState.UNREGISTERED;
+
+    private String agentId;
+    private String loginKey;
+    private Expiry loginKeyExpiry;
+    private String sessionKey;
+    private Expiry sessionKeyExpiry;
+    private int messagesSentInThisSession;
+    private int messagesRecvInThisSession;
+    private final Deque<ExpectedMessage> mailbox = new ArrayDeque<>();
+
+    private boolean agentRegisteredInSystem;
+
+    private long uniqueness = 0;
+    private long before;
+    private long after;
+
+    /**
+     * @param messagingSystem   The system under test, which must read the time from the clock.
+     * @param supervisor        The supervisor that hands out login keys for the system.
+     * @param clock             The clock of the system, shared by every model that drives it.
+     * @param hubId             An agent that every model sends messages to, which must already exist.
+     * @param name              A name unique to this model, that the ids of its agents start with.
+     * @param random            The source of the time steps.
+     * @param maxTimeStep       The most that a single step of the clock moves it forward.
+     */
+    public MessagingSystemModel(MessagingSystem messagingSystem, Supervisor supervisor, MutableClock clock,
+                                String hubId, String name, Random random, Duration maxTimeStep) {
+        this.messagingSystem = messagingSystem;
+        this.supervisor = supervisor;
+        this.clock = clock;
+        this.hubId = hubId;
+        this.name = name;
+        this.random = random;
+        this.maxTimeStepMillis = maxTimeStep.toMillis();
+    }
+
+    @Action
+    public void normalRegister() {
+        startCall();
+        final String key = supervisor.getLoginKey(agentId);
+        endCall();
+
+        Assert.assertNotNull(key);
+        loginKey = key;
+        loginKeyExpiry = expiryIn(LOGIN_KEY_TIME_LIMIT);
+        agentRegisteredInSystem = true;
+        currentState = SystemModelState.REGISTERED;
+    }
+
+    public boolean normalRegisterGuard() {
+        return currentState != SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void spyRegister() {
+        final String spyId = "spy-" + name + "_" + (uniqueness++);
+        Assert.assertNull(supervisor.getLoginKey(spyId));
+        Assert.assertFalse(messagingSystem.agentLoggedIn(spyId));
+        Assert.assertNull(messagingSystem.login(spyId, "0123456789"));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_DOES_NOT_EXIST,
+                messagingSystem.sendMessage("0123456789", spyId, agentId, "Msg"));
+    }
+
+    public boolean spyRegisterGuard() {
+        return currentState == SystemModelState.UNREGISTERED;
+    }
+
+    @Action
+    public void validLoginKeyLogin() {
+        startCall();
+        final String key = messagingSystem.login(agentId, loginKey);
+        endCall();
+
+        if (hasExpired(loginKeyExpiry)) {
+            Assert.assertNull(key);
+        } else if (isValid(loginKeyExpiry)) {
+            Assert.assertNotNull(key);
+        }
+        if (key != null) {
+            sessionKey = key;
+            sessionKeyExpiry = expiryIn(SESSION_KEY_TIME_LIMIT);
+            messagesSentInThisSession = 0;
+            messagesRecvInThisSession = 0;
+            currentState = SystemModelState.LOGGED_IN;
+        }
+    }
+
+    public boolean validLoginKeyLoginGuard() {
+        return currentState == SystemModelState.REGISTERED;
+    }
+
+    @Action
+    public void invalidLoginKeyLogin() {
+        Assert.assertNull(messagingSystem.login(agentId, "invalidKey"));
+    }
+
+    public boolean invalidLoginKeyLoginGuard() {
+        return currentState == SystemModelState.REGISTERED;
+    }
+
+    @Action
+    public void sendNormalMessage() {
+        final String token = nextToken();
+        sendToSelf(token + " Msg", token + " Msg");
+    }
+
+    public boolean sendNormalMessageGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void sendMessageWithBlockedWords() {
+        final String token = nextToken();
+        sendToSelf(token + " Get the nuclEAR REcipe with GinGer", token + " Get the with ");
+    }
+
+    public boolean sendMessageWithBlockedWordsGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void sendLongMessage() {
+        startCall();
+        final StatusCodes status = messagingSystem.sendMessage(sessionKey, agentId, agentId,
+                Utils.getNCharacters(MAX_MESSAGE_LENGTH + 1, nextToken()));
+        endCall();
+
+        if (!checkLoggedIn(status)) {
+            Assert.assertEquals(StatusCodes.MESSAGE_LENGTH_EXCEEDED, status);
+        }
+    }
+
+    public boolean sendLongMessageGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void sendMessageToNonExistentTarget() {
+        // "AGENT_2" prefix so that it doesn't clash with any model's agents
+        Assert.assertEquals(StatusCodes.TARGET_AGENT_DOES_NOT_EXIST,
+                messagingSystem.sendMessage(sessionKey, agentId, "AGENT_2_" + nextToken(), "Msg"));
+    }
+
+    public boolean sendMessageToNonExistentTargetGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void sendMessageToHub() {
+        startCall();
+        final StatusCodes status = messagingSystem.sendMessage(sessionKey, agentId, hubId, nextToken() + " Msg");
+        endCall();
+
+        if (checkLoggedIn(status) || checkExpiredOnTheWay(status)) {
+            return;
+        }
+        // The hub's quota is shared with every other model, so it may be reached at any time
+        if (messagesSentInThisSession == MAX_MESSAGES_SENT) {
+            Assert.assertTrue(status.toString(), status == StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED
+                    || status == StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED);
+            autoLoggedOut();
+        } else if (status == StatusCodes.OK) {
+            messagesSentInThisSession++;
+        } else {
+            Assert.assertEquals(StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED, status);
+        }
+    }
+
+    public boolean sendMessageToHubGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void consumeMessage() {
+        startCall();
+        final Message message = messagingSystem.getNextMessage(sessionKey, agentId);
+        final String text = message != null ? message.getMessage() : null; // null once it has expired
+        endCall();
+
+        if (message == null && !isValid(sessionKeyExpiry)) {
+            // The session may have expired, in which case the mailbox was not looked at
+            currentState = SystemModelState.REGISTERED;
+            return;
+        }
+        Assert.assertFalse("consumed a message after the session expired",
+                message != null && hasExpired(sessionKeyExpiry));
+
+        if (message != null && text == null) {
+            // Expired since it was consumed, so it cannot be told apart, but the oldest expected one expires no later
+            Assert.assertFalse("consumed a message that was never sent", mailbox.isEmpty());
+            Assert.assertFalse("a message expired before its time", isValid(mailbox.removeFirst().expiry));
+            return;
+        }
+
+        // Messages ahead of the consumed one may only have been skipped if they may have expired
+        while (!mailbox.isEmpty()) {
+            final ExpectedMessage expected = mailbox.removeFirst();
+            if (text != null && text.startsWith(expected.token + " ")) {
+                Assert.assertFalse("consumed an expired message", hasExpired(expected.expiry));
+                Assert.assertEquals(expected.text, text);
+                Assert.assertEquals(expected.sourceAgentId, message.getSourceAgentId());
+                Assert.assertEquals(agentId, message.getTargetAgentId());
+                return;
+            }
+            Assert.assertFalse("skipped a message that had not expired: " + expected.text,
+                    isValid(expected.expiry));
+        }
+        Assert.assertNull("consumed a message that was never sent", message);
+    }
+
+    public boolean consumeMessageGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void manualLogout() {
+        Assert.assertTrue(messagingSystem.logout(agentId));
+        Assert.assertFalse(messagingSystem.agentLoggedIn(agentId));
+        messagesSentInThisSession = 0;
+        messagesRecvInThisSession = 0;
+        currentState = SystemModelState.REGISTERED;
+    }
+
+    public boolean manualLogoutGuard() {
+        return currentState == SystemModelState.LOGGED_IN;
+    }
+
+    @Action
+    public void receiveMessage() {
+        // Sender registers ("AGENT_2" prefix for no clashes) and logs in, in case the clock has since moved on
+        final String sender = "AGENT_2_" + agentId;
+        startCall();
+        final String senderLoginKey = supervisor.getLoginKey(sender);
+        final String senderSessionKey = messagingSystem.login(sender, senderLoginKey);
+        endCall();
+        if (senderSessionKey == null) {
+            Assert.assertFalse("sender could not log in with a new login key", after - before < LOGIN_KEY_TIME_LIMIT);
+            return;
+        }
+
+        final long loggedIn = before;
+
+        final String token = nextToken();
+        startCall();
+        final StatusCodes status = messagingSystem.sendMessage(senderSessionKey, sender, agentId, token + " Msg");
+        endCall();
+
+        if (status == StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN) {
+            Assert.assertTrue("sender was logged out before its session expired",
+                    after - loggedIn >= SESSION_KEY_TIME_LIMIT);
+        } else if (checkExpiredOnTheWay(status)) {
+            return;
+        } else if (messagesRecvInThisSession < MAX_MESSAGE_RECEIVED) {
+            Assert.assertEquals(StatusCodes.OK, status);
+            messagesRecvInThisSession++;
+            mailbox.addLast(new ExpectedMessage(token, token + " Msg", sender, expiryIn(MESSAGE_TIME_LIMIT)));
+        } else {
+            Assert.assertEquals(StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED, status);
+            autoLoggedOut();
+        }
+    }
+
+    public boolean receiveMessageGuard() {
+        return agentRegisteredInSystem;
+    }
+
+    @Action
+    public void timePasses() {
+        clock.advance(Duration.ofMillis(1 + (long) (random.nextDouble() * maxTimeStepMillis)));
+    }
+
+    public boolean timePassesGuard() {
+        return true;
+    }
+
+    @Override
+    public Object getState() {
+        return currentState;
+    }
+
+    @Override
+    public void reset(boolean testing) {
+        currentState = SystemModelState.UNREGISTERED;
+        agentId = name + "_" + (uniqueness++);
+        loginKey = null;
+        loginKeyExpiry = null;
+        sessionKey = null;
+        sessionKeyExpiry = null;
+        messagesSentInThisSession = 0;
+        messagesRecvInThisSession = 0;
+        mailbox.clear();
+        agentRegisteredInSystem = false;
+    }
+
+    /**
+     * Sends a message from the agent to itself, which counts towards both of its quotas.
+     */
+    private void sendToSelf(String message, String expectedText) {
+        startCall();
+        final StatusCodes status = messagingSystem.sendMessage(sessionKey, agentId, agentId, message);
+        endCall();
+
+        if (checkLoggedIn(status) || checkExpiredOnTheWay(status)) {
+            return;
+        }
+        // Logging out for the sent quota also clears the received count, so both quotas are never reported
+        if (messagesSentInThisSession == MAX_MESSAGES_SENT) {
+            Assert.assertEquals(StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED, status);
+            autoLoggedOut();
+        } else if (messagesRecvInThisSession == MAX_MESSAGE_RECEIVED) {
+            Assert.assertEquals(StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED, status);
+            autoLoggedOut();
+        } else {
+            Assert.assertEquals(StatusCodes.OK, status);
+            messagesSentInThisSession++;
+            messagesRecvInThisSession++;
+            final String token = message.substring(0, message.indexOf(' '));
+            mailbox.addLast(new ExpectedMessage(token, expectedText, agentId, expiryIn(MESSAGE_TIME_LIMIT)));
+        }
+    }
+
+    /**
+     * Checks the status of a message sent by the agent against the expiry of its session.
+     *
+     * @return true if the message was refused because the session expired, in which case the agent is
+     * no longer logged in, or false if the session was still valid and the status remains to be checked.
+     */
+    private boolean checkLoggedIn(StatusCodes status) {
+        if (hasExpired(sessionKeyExpiry)) {
+            Assert.assertEquals(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN, status);
+        } else if (isValid(sessionKeyExpiry)) {
+            Assert.assertNotEquals(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN, status);
+        }
+        if (status == StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN) {
+            currentState = SystemModelState.REGISTERED;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a message was refused because it had already expired by the time it reached the mailbox,
+     * which can only happen if the clock was moved on by the whole lifetime of a message during the call.
+     *
+     * @return true if the message was refused for having expired.
+     */
+    private boolean checkExpiredOnTheWay(StatusCodes status) {
+        if (status == StatusCodes.FAILED_TO_ADD_TO_MAILBOX) {
+            Assert.assertTrue("failed to add a message that had not expired", after - before >= MESSAGE_TIME_LIMIT);
+            return true;
+        }
+        return false;
+    }
+
+    private void autoLoggedOut() {
+        Assert.assertFalse(messagingSystem.agentLoggedIn(agentId));
+        messagesSentInThisSession = 0;
+        messagesRecvInThisSession = 0;
+        if (currentState == SystemModelState.LOGGED_IN) {
+            currentState = SystemModelState.REGISTERED;
+        }
+    }
+
+    private String nextToken() {
+        return name + "#" + (uniqueness++);
+    }
+
+    private void startCall() {
+        before = clock.millis();
+    }
+
+    private void endCall() {
+        after = clock.millis();
+    }
+
+    private Expiry expiryIn(long timeLimitMillis) {
+        return new Expiry(before + timeLimitMillis, after + timeLimitMillis);
+    }
+
+    /**
+     * @return true if the expiry had certainly passed before the last call.
+     */
+    private boolean hasExpired(Expiry expiry) {
+        return before >= expiry.latest;
+    }
+
+    /**
+     * @return true if the expiry had certainly not passed by the end of the last call.
+     */
+    private boolean isValid(Expiry expiry) {
+        return after < expiry.earliest;
+    }
+
+    /**
+     * The time at which something expires, which is only known to lie between two readings of the clock.
+     */
+    private static final class Expiry {
+
+        private final long earliest;
+        private final long latest;
+
+        private Expiry(long earliest, long latest) {
+            this.earliest = earliest;
+            this.latest = latest;
+        }
+    }
+
+    private static final class ExpectedMessage {
+
+        private final String token;
+        private final String text;
+        private final String sourceAgentId;
+        private final Expiry expiry;
+
+        private ExpectedMessage(String token, String text, String sourceAgentId, Expiry expiry) {
+            this.token = token;
+            this.text = text;
+            this.sourceAgentId = sourceAgentId;
+            this.expiry = expiry;
+        }
+    }
+}
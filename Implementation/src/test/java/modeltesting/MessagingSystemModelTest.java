@@ -0,0 +1,106 @@
+package modeltesting;
+
+import nz.ac.waikato.modeljunit.GreedyTester;
+import nz.ac.waikato.modeljunit.StopOnFailureListener;
+import nz.ac.waikato.modeljunit.Tester;
+import nz.ac.waikato.modeljunit.coverage.ActionCoverage;
+import nz.ac.waikato.modeljunit.coverage.CoverageMetric;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import system.MessagingSystem;
+import system.MutableClock;
+import system.Supervisor;
+import system.SupervisorImpl;
+import util.KeyGenerator;
+import util.RandomKeyGenerator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a {@link MessagingSystemModel} per thread against one messaging system, which doubles as a stress
+ * test of the system under concurrent use. The number of threads and of steps each takes can be raised
+ * with the modelThreads and modelSteps system properties, in which case the run prints its throughput, and
+ * a failing run can be repeated, as far as the threads allow, with the modelSeed that it reports.
+ */
+public class MessagingSystemModelTest {
+
+    private static final int THREADS = Integer.getInteger("modelThreads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final int STEPS_PER_THREAD = Integer.getInteger("modelSteps", 20_000);
+    private static final boolean STRESS = System.getProperty("modelThreads") != null
+            || System.getProperty("modelSteps") != null;
+    private static final String HUB_ID = "HUB";
+
+    private MutableClock clock;
+    private MessagingSystem messagingSystem;
+    private Supervisor supervisor;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() throws IOException {
+        final KeyGenerator keyGenerator = new RandomKeyGenerator(ThreadLocalRandom::current);
+        clock = new MutableClock(Instant.EPOCH);
+        messagingSystem = MessagingSystem.builder().keyGenerator(keyGenerator).clock(clock).build();
+        supervisor = new SupervisorImpl(messagingSystem, keyGenerator);
+        supervisor.getLoginKey(HUB_ID);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+        executor = null;
+        supervisor = null;
+        messagingSystem = null;
+        clock = null;
+    }
+
+    @Test
+    public void concurrentAgents_followModel() throws InterruptedException {
+        final long seed = Long.getLong("modelSeed", System.nanoTime());
+        // Every thread moves the clock, so keep each step small enough for login keys to be used in time
+        final Duration maxTimeStep = Duration.ofSeconds(90).dividedBy(THREADS);
+
+        final List<Future<CoverageMetric>> runs = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final MessagingSystemModel model = new MessagingSystemModel(messagingSystem, supervisor, clock,
+                    HUB_ID, "T" + i, new Random(seed + i), maxTimeStep);
+            final Tester tester = new GreedyTester(model);
+            tester.setRandom(new Random(seed - i));
+            tester.addListener(new StopOnFailureListener());
+            final CoverageMetric actions = tester.addCoverageMetric(new ActionCoverage());
+            runs.add(executor.submit(() -> {
+                tester.generate(STEPS_PER_THREAD);
+                return actions;
+            }));
+        }
+
+        final long start = System.nanoTime();
+        for (final Future<CoverageMetric> run : runs) {
+            try {
+                final CoverageMetric actions = run.get();
+                Assert.assertEquals(actions.getMaximum(), actions.getCoverage());
+            } catch (ExecutionException e) {
+                throw new AssertionError("Model failed with modelSeed=" + seed, e.getCause());
+            }
+        }
+        if (STRESS) {
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d threads took %d steps each in %.1f s (%.0f steps/s, %s of model time)%n",
+                    THREADS, STEPS_PER_THREAD, seconds, THREADS * STEPS_PER_THREAD / seconds,
+                    Duration.between(Instant.EPOCH, clock.instant()));
+        }
+    }
+}
@@ -10,6 +10,9 @@ import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 import util.Utils;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -104,6 +107,23 @@ public class AgentTest {
         Assert.assertEquals(StatusCodes.OK, testAgent_loggedIn.sendMessage(TARGET_AGENT_ID, MESSAGE));
     }
 
+    @Test
+    public void sendMessageToMany_allFailIfNotLoggedIn() {
+        final List<String> targets = Arrays.asList(TARGET_AGENT_ID, AGENT_ID);
+
+        Assert.assertEquals(Arrays.asList(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN, StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN),
+                testAgent_default.sendMessage(targets, MESSAGE));
+    }
+
+    @Test
+    public void sendMessageToMany_returnsStatusesFromMessagingSystem() {
+        final List<String> targets = Arrays.asList(TARGET_AGENT_ID, AGENT_ID);
+        final List<StatusCodes> statuses = Arrays.asList(StatusCodes.OK, StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED);
+        when(mockMessagingSystem.multicastMessage(SESSN_KEY, AGENT_ID, targets, MESSAGE)).thenReturn(statuses);
+
+        Assert.assertEquals(statuses, testAgent_loggedIn.sendMessage(targets, MESSAGE));
+    }
+
     @Test
     public void getLoginKey_returnsLoginKey() {
         Assert.assertEquals(LOGIN_KEY, testAgent_loggedIn.getLoginKey());
@@ -0,0 +1,296 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ClusterTest {
+
+    private static final String HOST = "localhost";
+    private static final int MAX_MESSAGES_SENT = 25;
+    private static final int MAX_MESSAGES_RECV = 25;
+
+    private final Map<String, MessagingSystem> nodes = new HashMap<>(); // by address
+    private final List<Cluster> clusters = new ArrayList<>();
+    private Cluster cluster1, cluster2;
+    private MessagingSystem node1, node2;
+    private ServerSocket stalledNode;
+    private final List<Socket> stalledConnections = new CopyOnWriteArrayList<>(); // kept open until the end
+
+    @Before
+    public void setUp() throws IOException {
+        cluster1 = new Cluster(HOST, 0);
+        node1 = startNode(cluster1);
+        cluster2 = new Cluster(HOST, 0);
+        node2 = startNode(cluster2);
+        cluster2.join(cluster1.getAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final Cluster cluster : clusters) {
+            cluster.close();
+        }
+        clusters.clear();
+        nodes.clear();
+        if (stalledNode != null) {
+            stalledNode.close();
+            stalledNode = null;
+        }
+        for (final Socket socket : stalledConnections) {
+            socket.close();
+        }
+        stalledConnections.clear();
+        cluster1 = null;
+        cluster2 = null;
+        node1 = null;
+        node2 = null;
+    }
+
+    @Test
+    public void join_everyNodeKnowsEveryMember() throws IOException {
+        final Cluster cluster3 = new Cluster(HOST, 0);
+        startNode(cluster3);
+        cluster3.join(cluster2.getAddress());
+
+        for (final Cluster cluster : clusters) {
+            Assert.assertEquals(3, cluster.getMembers().size());
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(cluster1.ownerOf("agent" + i), cluster3.ownerOf("agent" + i));
+        }
+    }
+
+    @Test
+    public void registerLoginKey_refusedForAgentOfAnotherNode() {
+        final String agentId = agentOf(cluster2, "agent");
+        Assert.assertFalse(node1.registerLoginKey(agentId, "0123456789"));
+        Assert.assertTrue(node2.registerLoginKey(agentId, "0123456789"));
+    }
+
+    @Test
+    public void sendMessage_deliveredToAgentOnAnotherNode() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String targetAgentId = agentOf(cluster2, "target");
+        final String sourceKey = login(node1, sourceAgentId);
+        final String targetKey = login(node2, targetAgentId);
+
+        Assert.assertEquals(StatusCodes.OK, node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi nuclear"));
+
+        final Message message = node2.getNextMessage(targetKey, targetAgentId);
+        Assert.assertEquals(sourceAgentId, message.getSourceAgentId());
+        Assert.assertEquals(targetAgentId, message.getTargetAgentId());
+        Assert.assertEquals("Hi ", message.getMessage());
+        Assert.assertNull(node2.getNextMessage(targetKey, targetAgentId));
+    }
+
+    @Test
+    public void sendMessage_targetDoesNotExistOnItsNode() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String sourceKey = login(node1, sourceAgentId);
+
+        Assert.assertEquals(StatusCodes.TARGET_AGENT_DOES_NOT_EXIST,
+                node1.sendMessage(sourceKey, sourceAgentId, agentOf(cluster2, "target"), "Hi"));
+    }
+
+    @Test
+    public void sendMessage_checksSourceBeforeForwarding() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String targetAgentId = agentOf(cluster2, "target");
+        final String sourceKey = login(node1, sourceAgentId);
+        login(node2, targetAgentId);
+
+        Assert.assertEquals(StatusCodes.MESSAGE_LENGTH_EXCEEDED,
+                node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, new String(new char[141])));
+        Assert.assertTrue(node1.logout(sourceAgentId));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN,
+                node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        Assert.assertFalse(node2.agentHasMessages(targetAgentId));
+    }
+
+    @Test
+    public void sendMessage_sourceQuotaCountedOnSourceNode() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String targetAgentId = agentOf(cluster2, "target");
+        final String sourceKey = login(node1, sourceAgentId);
+        login(node2, targetAgentId);
+        for (int i = 0; i < MAX_MESSAGES_SENT; i++) {
+            Assert.assertEquals(StatusCodes.OK, node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        }
+        login(node2, targetAgentId);
+
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED,
+                node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        Assert.assertFalse(node1.agentLoggedIn(sourceAgentId));
+        Assert.assertTrue(node2.agentLoggedIn(targetAgentId));
+    }
+
+    @Test
+    public void sendMessage_targetQuotaCountedOnTargetNode() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String targetAgentId = agentOf(cluster2, "target");
+        String sourceKey = login(node1, sourceAgentId);
+        login(node2, targetAgentId);
+        for (int i = 0; i < MAX_MESSAGES_RECV; i++) {
+            Assert.assertEquals(StatusCodes.OK, node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        }
+        sourceKey = login(node1, sourceAgentId);
+
+        Assert.assertEquals(StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED,
+                node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        Assert.assertFalse(node2.agentLoggedIn(targetAgentId));
+        Assert.assertTrue(node1.agentLoggedIn(sourceAgentId));
+    }
+
+    @Test
+    public void sendMessage_bothQuotasCountedOnTheirNodes() {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        final String targetAgentId = agentOf(cluster2, "target");
+        final String sourceKey = login(node1, sourceAgentId);
+        login(node2, targetAgentId);
+        for (int i = 0; i < MAX_MESSAGES_SENT; i++) {
+            Assert.assertEquals(StatusCodes.OK, node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        }
+
+        Assert.assertEquals(StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED,
+                node1.sendMessage(sourceKey, sourceAgentId, targetAgentId, "Hi"));
+        Assert.assertFalse(node1.agentLoggedIn(sourceAgentId));
+        Assert.assertFalse(node2.agentLoggedIn(targetAgentId));
+    }
+
+    @Test
+    public void join_handsOverAgentsWithTheirSessionsAndMessages() throws IOException {
+        final String sourceAgentId = agentOf(cluster1, "source");
+        String sourceKey = login(node1, sourceAgentId);
+        final Map<String, String> sessionKeys = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            final String agentId = "agent" + i;
+            sessionKeys.put(agentId, login(nodes.get(cluster1.ownerOf(agentId)), agentId));
+            Assert.assertEquals(StatusCodes.OK, node1.sendMessage(sourceKey, sourceAgentId, agentId, "Msg " + i));
+        }
+
+        final Cluster cluster3 = new Cluster(HOST, 0);
+        final MessagingSystem node3 = startNode(cluster3);
+        cluster3.join(cluster1.getAddress());
+        final MessagingSystem sourceNode = nodes.get(cluster1.ownerOf(sourceAgentId)); // may have moved too
+        sourceKey = login(sourceNode, sourceAgentId);
+
+        int moved = 0;
+        for (int i = 0; i < 20; i++) {
+            final String agentId = "agent" + i;
+            final MessagingSystem owner = nodes.get(cluster1.ownerOf(agentId));
+            for (final MessagingSystem node : nodes.values()) {
+                Assert.assertEquals(node == owner, node.agentLoggedIn(agentId));
+            }
+            moved += owner == node3 ? 1 : 0;
+
+            Assert.assertEquals(StatusCodes.OK, sourceNode.sendMessage(sourceKey, sourceAgentId, agentId, "Again"));
+            Assert.assertEquals("Msg " + i, owner.getNextMessage(sessionKeys.get(agentId), agentId).getMessage());
+            Assert.assertEquals("Again", owner.getNextMessage(sessionKeys.get(agentId), agentId).getMessage());
+        }
+        Assert.assertTrue(moved > 0);
+    }
+
+    @Test
+    public void sendMessage_failsIfNodeOfTargetStalls() throws IOException {
+        final Cluster cluster = new Cluster(HOST, 0, Duration.ofMillis(200));
+        final MessagingSystem node = startNode(cluster);
+        final String stalledAddress = startStalledNode();
+        try {
+            cluster.join(stalledAddress); // learns of the stalled node, which then never replies to JOINED
+            Assert.fail("Joined a node that does not reply.");
+        } catch (SocketTimeoutException e) {
+            Assert.assertTrue(cluster.getMembers().contains(stalledAddress));
+        }
+
+        final String sourceAgentId = agentOf(cluster, "source");
+        final String sourceKey = login(node, sourceAgentId);
+        final long start = System.nanoTime();
+        Assert.assertEquals(StatusCodes.FAILED_TO_ADD_TO_MAILBOX,
+                node.sendMessage(sourceKey, sourceAgentId, agentOf(stalledAddress, cluster, "target"), "Hi"));
+        Assert.assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+
+        // The source is still logged in, and its agent was not left locked
+        Assert.assertTrue(node.agentLoggedIn(sourceAgentId));
+        Assert.assertEquals(StatusCodes.OK, node.sendMessage(sourceKey, sourceAgentId, sourceAgentId, "Hi"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_nodeCannotBeRateLimited() throws IOException {
+        final Cluster cluster = new Cluster(HOST, 0);
+        clusters.add(cluster);
+        MessagingSystem.builder().cluster(cluster).rateLimit(new RateLimit(1, 1)).build();
+    }
+
+    /**
+     * Starts a node that tells those that ask it that it is the only member of its cluster, but never
+     * replies to anything else.
+     *
+     * @return Its address.
+     */
+    private String startStalledNode() throws IOException {
+        stalledNode = new ServerSocket();
+        stalledNode.bind(new InetSocketAddress(HOST, 0));
+        final String address = HOST + ":" + stalledNode.getLocalPort();
+        final Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    final Socket socket = stalledNode.accept();
+                    stalledConnections.add(socket); // rather than closed, with the request unread, once collected
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    if (in.readByte() == Cluster.MEMBERS) {
+                        out.writeInt(1);
+                        out.writeUTF(address);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // closed at the end of the test
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return address;
+    }
+
+    private MessagingSystem startNode(Cluster cluster) throws IOException {
+        final MessagingSystem node =
+                MessagingSystem.builder().cluster(cluster).build();
+        clusters.add(cluster);
+        nodes.put(cluster.getAddress(), node);
+        return node;
+    }
+
+    private static String agentOf(Cluster cluster, String prefix) {
+        return agentOf(cluster.getAddress(), cluster, prefix);
+    }
+
+    private static String agentOf(String address, Cluster cluster, String prefix) {
+        for (int i = 0; ; i++) {
+            if (cluster.ownerOf(prefix + i).equals(address)) {
+                return prefix + i;
+            }
+        }
+    }
+
+    private static String login(MessagingSystem node, String agentId) {
+        final String loginKey = new SupervisorImpl(node).getLoginKey(agentId);
+        return node.login(agentId, loginKey);
+    }
+}
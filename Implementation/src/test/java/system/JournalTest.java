@@ -0,0 +1,250 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import util.SlabAllocator;
+import util.Utils;
+import util.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class JournalTest {
+
+    private static final String AID_1 = "1234xy";
+    private static final String AID_2 = "5678ab";
+    private static final String LKEY_1 = Utils.getNCharacters(10, "1");
+    private static final String LKEY_2 = Utils.getNCharacters(10, "2");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private Journal journal;
+    private MessagingSystem testSystem;
+    private Map<String, AgentInfo> agentInfos;
+    private Map<String, TemporaryKey> loginKeys;
+    private Map<String, Session> sessions;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath();
+        restart();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        directory = null;
+        journal = null;
+        testSystem = null;
+        agentInfos = null;
+        loginKeys = null;
+        sessions = null;
+    }
+
+    @Test
+    public void recover_undeliveredMessages() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "first"));
+        Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "second"));
+        Assert.assertEquals("first", testSystem.getNextMessage(sessionKeys[1], AID_2).getMessage());
+
+        restart();
+
+        final Message message = testSystem.getNextMessage(sessionKeys[1], AID_2);
+        Assert.assertEquals("second", message.getMessage());
+        Assert.assertEquals(AID_1, message.getSourceAgentId());
+        Assert.assertNull(testSystem.getNextMessage(sessionKeys[1], AID_2));
+    }
+
+    @Test
+    public void recover_sessionsAndLogouts() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        testSystem.logout(AID_1);
+
+        restart();
+
+        Assert.assertNull(testSystem.authenticate(sessionKeys[0], AID_1));
+        Assert.assertNotNull(testSystem.authenticate(sessionKeys[1], AID_2));
+        Assert.assertTrue(agentInfos.containsKey(AID_1));
+        Assert.assertEquals(sessions.keySet(), Collections.singleton(sessionKeys[1]));
+    }
+
+    @Test
+    public void recover_loginKeys() throws IOException {
+        testSystem.registerLoginKey(AID_1, LKEY_1);
+
+        restart();
+
+        Assert.assertNotNull(testSystem.login(AID_1, LKEY_1));
+        Assert.assertTrue(loginKeys.containsKey(LKEY_1));
+    }
+
+    @Test
+    public void recover_quotas() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        for (int i = 0; i < 3; i++) {
+            testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "message");
+        }
+
+        restart();
+
+        Assert.assertEquals(3, agentInfos.get(AID_1).messagesSent);
+        Assert.assertEquals(3, agentInfos.get(AID_2).messagesRecv);
+    }
+
+    @Test
+    public void recover_skipsExpiredMessages() throws IOException {
+        loginBoth();
+        final Instant longAgo = Instant.now().minus(Mailbox.MESSAGE_TIME_LIMIT).minusSeconds(1);
+        journal.messageAdded(info(AID_1), info(AID_2), new Message(AID_1, AID_2, "expired", longAgo, Clock.systemUTC(), 1));
+        journal.messageAdded(info(AID_1), info(AID_2), new Message(AID_1, AID_2, "current", Instant.now(), Clock.systemUTC(), 2));
+
+        restart();
+
+        Assert.assertEquals(Collections.singletonList("current"), messagesOf(AID_2));
+        Assert.assertEquals(2, agentInfos.get(AID_2).lastSequence);
+    }
+
+    @Test
+    public void recover_consumptionBySequenceNumber() throws IOException {
+        loginBoth();
+        final Instant longAgo = Instant.now().minus(Mailbox.MESSAGE_TIME_LIMIT).minusSeconds(1);
+        final Message consumed = new Message(AID_1, AID_2, "consumed", Instant.now(), Clock.systemUTC(), 2);
+        journal.messageAdded(info(AID_1), info(AID_2), new Message(AID_1, AID_2, "expired", longAgo, Clock.systemUTC(), 1));
+        journal.messageAdded(info(AID_1), info(AID_2), consumed);
+        journal.messageAdded(info(AID_1), info(AID_2), new Message(AID_1, AID_2, "pending", Instant.now(), Clock.systemUTC(), 3));
+        journal.messagesConsumed(info(AID_2), consumed);
+
+        restart();
+
+        Assert.assertEquals(Collections.singletonList("pending"), messagesOf(AID_2));
+    }
+
+    @Test
+    public void recover_againAfterRestart() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "first");
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "second");
+        testSystem.getNextMessage(sessionKeys[1], AID_2);
+
+        restart();
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "third");
+        restart();
+
+        Assert.assertEquals(Arrays.asList("second", "third"), messagesOf(AID_2));
+        Assert.assertEquals(3, agentInfos.get(AID_1).messagesSent);
+        Assert.assertEquals(3, agentInfos.get(AID_2).lastSequence);
+        Assert.assertNotNull(testSystem.authenticate(sessionKeys[0], AID_1));
+    }
+
+    @Test
+    public void recover_fromSnapshotAndLaterChanges() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "first");
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "second");
+        testSystem.snapshot();
+        testSystem.getNextMessage(sessionKeys[1], AID_2);
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "third");
+        Assert.assertEquals(1, logSegments().size());
+
+        restart();
+
+        Assert.assertEquals(Arrays.asList("second", "third"), messagesOf(AID_2));
+        Assert.assertEquals(3, agentInfos.get(AID_1).messagesSent);
+        Assert.assertEquals(3, agentInfos.get(AID_2).messagesRecv);
+        Assert.assertNotNull(testSystem.authenticate(sessionKeys[1], AID_2));
+    }
+
+    @Test
+    public void recover_changesInBothSnapshotAndLogAppliedOnce() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "first");
+        testSystem.getNextMessage(sessionKeys[1], AID_2);
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "second");
+        Snapshot.write(directory.resolve("snapshot.bin"), agentInfos.values(), 0); // as if taken without a roll
+
+        restart();
+
+        Assert.assertEquals(Collections.singletonList("second"), messagesOf(AID_2));
+        Assert.assertEquals(2, agentInfos.get(AID_1).messagesSent);
+        Assert.assertEquals(2, agentInfos.get(AID_2).messagesRecv);
+        Assert.assertEquals(2, agentInfos.get(AID_2).lastSequence);
+    }
+
+    @Test
+    public void recover_intoMessageStore() throws IOException {
+        final String[] sessionKeys = loginBoth();
+        testSystem.sendMessage(sessionKeys[0], AID_1, AID_2, "first");
+        journal.close();
+
+        journal = Journal.open(directory, WriteAheadLog.SyncPolicy.ALWAYS, Duration.ZERO);
+        try (MessageStore store = MessageStore.direct(SlabAllocator.SLAB_SIZE)) {
+            testSystem = MessagingSystem.builder().journal(journal).messageStore(store).build();
+            Assert.assertTrue(store.usedBytes() > 0);
+            Assert.assertEquals("first", testSystem.getNextMessage(sessionKeys[1], AID_2).getMessage());
+            Assert.assertEquals(0, store.usedBytes());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void snapshot_withoutJournalThrows() throws IOException {
+        new MessagingSystem(new HashMap<>()).snapshot();
+    }
+
+    private String[] loginBoth() {
+        testSystem.registerLoginKey(AID_1, LKEY_1);
+        testSystem.registerLoginKey(AID_2, LKEY_2);
+        return new String[]{testSystem.login(AID_1, LKEY_1), testSystem.login(AID_2, LKEY_2)};
+    }
+
+    private AgentInfo info(String agentId) {
+        return agentInfos.get(agentId);
+    }
+
+    private List<Path> logSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".wal")).collect(Collectors.toList());
+        }
+    }
+
+    private List<String> messagesOf(String agentId) {
+        final List<String> messages = new ArrayList<>();
+        for (final Message message : agentInfos.get(agentId).mailbox.peekMessages()) {
+            messages.add(message.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Closes the journal, if open, and recovers a new system from it.
+     */
+    private void restart() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        agentInfos = new HashMap<>();
+        loginKeys = new HashMap<>();
+        sessions = new HashMap<>();
+        journal = Journal.open(directory, WriteAheadLog.SyncPolicy.ALWAYS, Duration.ZERO);
+        testSystem = MessagingSystem.builder().journal(journal).state(agentInfos, loginKeys, sessions).build();
+        journal.recover(agentInfos, loginKeys, sessions);
+    }
+}
@@ -0,0 +1,73 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MailboxReaperTest {
+
+    private static final String OWNER_ID = "1234xy", SENDER_ID = "5678vw", MESSAGE = "message";
+
+    private final MutableClock testClock = new MutableClock(Instant.EPOCH);
+
+    private Map<String, AgentInfo> agentInfos;
+    private MailboxReaper testReaper;
+
+    @Before
+    public void setUp() {
+        agentInfos = new HashMap<>();
+        agentInfos.put(OWNER_ID, new AgentInfo(OWNER_ID));
+        agentInfos.put(SENDER_ID, new AgentInfo(SENDER_ID));
+        testReaper = new MailboxReaper(agentInfos);
+    }
+
+    @After
+    public void tearDown() {
+        testReaper.stop();
+        testReaper = null;
+        agentInfos = null;
+    }
+
+    @Test
+    public void run_dropsExpiredMessagesQueuedBehindValidOnes() {
+        final Mailbox mailbox = agentInfos.get(OWNER_ID).mailbox;
+        final Message olderMessage = new Message(SENDER_ID, OWNER_ID, MESSAGE, testClock);
+        testClock.advance(Duration.ofMinutes(20));
+        final Message newerMessage = new Message(SENDER_ID, OWNER_ID, MESSAGE, testClock);
+
+        // the older message ends up behind the newer one
+        Assume.assumeTrue(mailbox.addMessage(newerMessage));
+        Assume.assumeTrue(mailbox.addMessage(olderMessage));
+        testClock.advance(Duration.ofMinutes(20));
+
+        testReaper.run();
+
+        Assert.assertEquals(0, mailbox.removeExpiredMessages());
+        Assert.assertSame(newerMessage, mailbox.consumeNextMessage());
+        Assert.assertNull(mailbox.consumeNextMessage());
+    }
+
+    @Test
+    public void run_keepsMessagesThatHaveNotExpired() {
+        final Mailbox mailbox = agentInfos.get(SENDER_ID).mailbox;
+        Assume.assumeTrue(mailbox.addMessage(new Message(OWNER_ID, SENDER_ID, MESSAGE, testClock)));
+
+        testReaper.run();
+
+        Assert.assertTrue(mailbox.hasMessages());
+    }
+
+    @Test
+    public void start_runsUntilStopped() {
+        final MailboxReaper reaper = MailboxReaper.start(agentInfos);
+        reaper.stop();
+        reaper.stop(); // stopping twice is harmless
+    }
+}
@@ -2,14 +2,19 @@ package system;
 
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
-import java.util.Queue;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.when;
 
@@ -20,10 +25,12 @@ public class MailboxTest {
 
     private Mailbox testEmptyMailbox;
     private Mailbox testMailboxWith1Message;
-    private Queue<Message> messageQueue;
+    private BlockingQueue<Message> messageQueue;
 
     @Mock
     private Message mockMessage;
+    @Mock
+    private Message mockMessage2;
 
     @Before
     public void setUp() {
@@ -38,6 +45,11 @@ public class MailboxTest {
         when(mockMessage.getTargetAgentId()).thenReturn(OWNER_ID);
         when(mockMessage.getMessage()).thenReturn(MESSAGE);
         when(mockMessage.isExpired()).thenReturn(false);
+
+        when(mockMessage2.getSourceAgentId()).thenReturn(SENDER_ID);
+        when(mockMessage2.getTargetAgentId()).thenReturn(OWNER_ID);
+        when(mockMessage2.getMessage()).thenReturn(MESSAGE);
+        when(mockMessage2.isExpired()).thenReturn(false);
     }
 
     @After
@@ -64,6 +76,39 @@ public class MailboxTest {
         Assert.assertNull(testMailboxWith1Message.consumeNextMessage());
     }
 
+    @Test
+    public void consumeNextMessage_skipsExpiredMessagesAtHead() {
+        messageQueue.add(mockMessage2);
+        when(mockMessage.isExpired()).thenReturn(true);
+
+        Assert.assertSame(mockMessage2, testMailboxWith1Message.consumeNextMessage());
+        Assert.assertTrue(messageQueue.isEmpty());
+    }
+
+    @Test
+    public void consumeNextMessages_returnsUpToMaxInFifoOrder() {
+        messageQueue.add(mockMessage2);
+        messageQueue.add(mockMessage);
+
+        Assert.assertEquals(Arrays.asList(mockMessage, mockMessage2), testMailboxWith1Message.consumeNextMessages(2));
+        Assert.assertEquals(1, messageQueue.size());
+    }
+
+    @Test
+    public void consumeNextMessages_skipsExpiredMessages() {
+        messageQueue.add(mockMessage2);
+        when(mockMessage.isExpired()).thenReturn(true);
+
+        Assert.assertEquals(Arrays.asList(mockMessage2), testMailboxWith1Message.consumeNextMessages(1));
+        Assert.assertTrue(messageQueue.isEmpty());
+    }
+
+    @Test
+    public void consumeNextMessages_emptyIfMailboxIsEmpty() {
+        Assert.assertTrue(testEmptyMailbox.consumeNextMessages(5).isEmpty());
+        Assert.assertTrue(testMailboxWith1Message.consumeNextMessages(0).isEmpty());
+    }
+
     @Test
     public void hasMessages_trueIfMailboxHasMessages() {
         Assert.assertTrue(testMailboxWith1Message.hasMessages());
@@ -81,6 +126,15 @@ public class MailboxTest {
         Assert.assertFalse(testMailboxWith1Message.hasMessages());
     }
 
+    @Test
+    public void hasMessages_dropsExpiredMessagesAtHead() {
+        messageQueue.add(mockMessage2);
+        when(mockMessage.isExpired()).thenReturn(true);
+
+        Assert.assertTrue(testMailboxWith1Message.hasMessages());
+        Assert.assertEquals(1, messageQueue.size());
+    }
+
     @Test
     public void addMessage_trueIfSuccessful() {
         Assert.assertTrue(testEmptyMailbox.addMessage(mockMessage));
@@ -99,4 +153,95 @@ public class MailboxTest {
 
         Assert.assertFalse(testEmptyMailbox.addMessage(mockMessage));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void addMessage_doesNotCheckQueuedMessages() {
+        when(mockMessage.isExpired()).thenReturn(true);
+
+        Assume.assumeTrue(testMailboxWith1Message.addMessage(mockMessage2));
+        Mockito.verify(mockMessage, Mockito.never()).isExpired();
+    }
+
+    @Test
+    public void removeExpiredMessages_removesOnlyExpiredMessages() {
+        messageQueue.add(mockMessage2);
+        when(mockMessage2.isExpired()).thenReturn(true);
+
+        Assert.assertEquals(1, testMailboxWith1Message.removeExpiredMessages());
+        Assert.assertEquals(1, messageQueue.size());
+        Assert.assertSame(mockMessage, messageQueue.peek());
+    }
+
+    @Test
+    public void removeExpiredMessages_countedInMetrics() throws IOException {
+        final Metrics metrics = new Metrics();
+        final Mailbox mailbox = new Mailbox(OWNER_ID, messageQueue, metrics);
+        messageQueue.add(mockMessage2);
+        when(mockMessage.isExpired()).thenReturn(true);
+        when(mockMessage2.isExpired()).thenReturn(true);
+
+        Assume.assumeTrue(mailbox.removeExpiredMessages() == 2);
+
+        final StringBuilder written = new StringBuilder();
+        metrics.write(written);
+        Assert.assertTrue(written.toString().contains("\nmessaging_messages_expired_total 2\n"));
+    }
+
+    @Test
+    public void addWaiter_runsOnceWhenMessageAdded() {
+        final AtomicInteger runs = new AtomicInteger();
+        testEmptyMailbox.addWaiter(runs::incrementAndGet);
+        Assume.assumeTrue(runs.get() == 0);
+
+        Assume.assumeTrue(testEmptyMailbox.addMessage(mockMessage));
+        Assume.assumeTrue(testEmptyMailbox.addMessage(mockMessage2));
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void addWaiter_runsRightAwayIfMailboxHasMessages() {
+        final AtomicInteger runs = new AtomicInteger();
+        testMailboxWith1Message.addWaiter(runs::incrementAndGet);
+
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void addWaiter_doesNotRunIfMessageNotAdded() {
+        final AtomicInteger runs = new AtomicInteger();
+        testEmptyMailbox.addWaiter(runs::incrementAndGet);
+        when(mockMessage.isExpired()).thenReturn(true);
+
+        Assume.assumeFalse(testEmptyMailbox.addMessage(mockMessage));
+        Assert.assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void wakeWaiters_runsWaitersWithoutMessage() {
+        final AtomicInteger runs = new AtomicInteger();
+        testEmptyMailbox.addWaiter(runs::incrementAndGet);
+
+        testEmptyMailbox.wakeWaiters();
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void removeWaiter_waiterDoesNotRun() {
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable waiter = runs::incrementAndGet;
+        testEmptyMailbox.addWaiter(waiter);
+
+        Assert.assertTrue(testEmptyMailbox.removeWaiter(waiter));
+        Assume.assumeTrue(testEmptyMailbox.addMessage(mockMessage));
+        Assert.assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void removeWaiter_falseIfWaiterAlreadyRan() {
+        final Runnable waiter = () -> {
+        };
+        testMailboxWith1Message.addWaiter(waiter);
+
+        Assert.assertFalse(testMailboxWith1Message.removeWaiter(waiter));
+    }
+}
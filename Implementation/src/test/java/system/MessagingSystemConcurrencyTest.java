@@ -0,0 +1,126 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import util.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MessagingSystemConcurrencyTest {
+
+    private static final int LOGIN_KEY_LENGTH = 10;
+    private static final int MAX_MESSAGES_RECV = 25;
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int SENDS_PER_THREAD = 20;
+    private static final String TARGET_ID = "target";
+    private static final String MESSAGE = "msg";
+    private static final int OPPOSING_SENDS = 10_000;
+
+    private ConcurrentHashMap<String, AgentInfo> agentInfos;
+    private MessagingSystem testSystem;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        agentInfos = new ConcurrentHashMap<>();
+        testSystem = new MessagingSystem(agentInfos);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        executor = null;
+        testSystem = null;
+        agentInfos = null;
+    }
+
+    @Test
+    public void sendMessage_concurrentSendersToOneTargetLoseNoUpdates() throws Exception {
+        registerAndLogin(TARGET_ID);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<int[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String sourceId = "source" + t;
+            final String sessionKey = registerAndLogin(sourceId);
+            futures.add(executor.submit(() -> {
+                final int[] results = new int[StatusCodes.values().length];
+                start.await();
+                for (int i = 0; i < SENDS_PER_THREAD; i++) {
+                    results[testSystem.sendMessage(sessionKey, sourceId, TARGET_ID, MESSAGE).ordinal()]++;
+                }
+                return results;
+            }));
+        }
+        start.countDown();
+
+        int ok = 0, quotaExceeded = 0;
+        for (Future<int[]> future : futures) {
+            final int[] results = future.get();
+            ok += results[StatusCodes.OK.ordinal()];
+            quotaExceeded += results[StatusCodes.TARGET_AGENT_QUOTA_EXCEEDED.ordinal()];
+        }
+
+        // Every (MAX_MESSAGES_RECV + 1)th send to the target exceeds its quota and resets its counter
+        final int totalSends = THREADS * SENDS_PER_THREAD;
+        final int expectedQuotaHits = totalSends / (MAX_MESSAGES_RECV + 1);
+        Assert.assertEquals(totalSends, ok + quotaExceeded);
+        Assert.assertEquals(expectedQuotaHits, quotaExceeded);
+        Assert.assertEquals(ok - expectedQuotaHits * MAX_MESSAGES_RECV, agentInfos.get(TARGET_ID).messagesRecv);
+
+        int delivered = 0;
+        while (agentInfos.get(TARGET_ID).mailbox.consumeNextMessage() != null) {
+            delivered++;
+        }
+        Assert.assertEquals(ok, delivered);
+    }
+
+    @Test
+    public void sendMessage_opposingSendersDoNotDeadlock() throws Exception {
+        final String keyA = registerAndLogin("agentA");
+        final String keyB = registerAndLogin("agentB");
+
+        final Future<Integer> aToB = executor.submit(() -> sendLoop(keyA, "agentA", "agentB"));
+        final Future<Integer> bToA = executor.submit(() -> sendLoop(keyB, "agentB", "agentA"));
+
+        // Most sends must have taken both locks, rather than being refused for a lack of session
+        Assert.assertTrue(aToB.get(30, TimeUnit.SECONDS) > OPPOSING_SENDS / 2);
+        Assert.assertTrue(bToA.get(30, TimeUnit.SECONDS) > OPPOSING_SENDS / 2);
+    }
+
+    /**
+     * Sends messages until done, logging the source back in whenever a quota logs it out,
+     * and returns the number of messages sent.
+     */
+    private int sendLoop(String sessionKey, String sourceId, String targetId) {
+        int sent = 0;
+        for (int i = 0; i < OPPOSING_SENDS; i++) {
+            if (testSystem.sendMessage(sessionKey, sourceId, targetId, MESSAGE) == StatusCodes.OK) {
+                sent++;
+            } else if (!testSystem.agentLoggedIn(sourceId)) {
+                sessionKey = registerAndLogin(sourceId);
+            }
+        }
+        return sent;
+    }
+
+    private String registerAndLogin(String agentId) {
+        final String loginKey = Utils.getNRandomCharacters(LOGIN_KEY_LENGTH);
+        Assert.assertTrue(testSystem.registerLoginKey(agentId, loginKey));
+        final String sessionKey = testSystem.login(agentId, loginKey);
+        Assert.assertNotNull(sessionKey);
+        return sessionKey;
+    }
+}
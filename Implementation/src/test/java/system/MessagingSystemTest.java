@@ -3,11 +3,17 @@ package system;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 import util.Utils;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.when;
 
@@ -44,11 +50,15 @@ public class MessagingSystemTest {
 
     private MessagingSystem testSystem;
     private Map<String, AgentInfo> agentInfos;
+    private Map<String, TemporaryKey> loginKeys;
+    private Map<String, Session> sessions;
 
     @Before
-    public void setUp() {
+    public void setUp() throws IOException {
         agentInfos = new HashMap<>();
-        testSystem = new MessagingSystem(agentInfos);
+        loginKeys = new HashMap<>();
+        sessions = new HashMap<>();
+        testSystem = MessagingSystem.builder().state(agentInfos, loginKeys, sessions).build();
 
         when(mockLoginKey1.getKey()).thenReturn(VALID_LKEY_1);
         when(mockSessnKey1.getKey()).thenReturn(VALID_SKEY_1);
@@ -69,6 +79,8 @@ public class MessagingSystemTest {
     @After
     public void tearDown() {
         agentInfos = null;
+        loginKeys = null;
+        sessions = null;
         testSystem = null;
     }
 
@@ -78,6 +90,16 @@ public class MessagingSystemTest {
         Assert.assertFalse(testSystem.registerLoginKey(AID_1, Utils.getNCharacters(LOGIN_KEY_LENGTH - 1)));
     }
 
+    @Test
+    public void register_falseIfAgentIdTooLong() {
+        final String agentId = Utils.getNCharacters(256, "a");
+
+        Assert.assertFalse(testSystem.registerLoginKey(agentId, VALID_LKEY_1));
+        Assert.assertFalse(agentInfos.containsKey(agentId));
+        Assert.assertFalse(loginKeys.containsKey(VALID_LKEY_1));
+        Assert.assertTrue(testSystem.registerLoginKey(agentId.substring(1), VALID_LKEY_1));
+    }
+
     @Test
     public void register_falseIfLoginKeyNotUnique() {
         addAgent(agentInfos, 1, AddType.REGISTERED);
@@ -90,6 +112,33 @@ public class MessagingSystemTest {
         Assert.assertTrue(testSystem.registerLoginKey(AID_1, VALID_LKEY_1));
     }
 
+    @Test
+    public void register_trueIfLoginKeyNotUniqueButExpired() {
+        when(mockLoginKey1.isExpired()).thenReturn(true);
+        when(mockLoginKey1.equals(VALID_LKEY_1)).thenReturn(false);
+
+        addAgent(agentInfos, 1, AddType.REGISTERED);
+
+        Assert.assertTrue(testSystem.registerLoginKey(AID_2, VALID_LKEY_1));
+        Assert.assertTrue(agentInfos.get(AID_2).loginKey.equals(VALID_LKEY_1));
+    }
+
+    @Test
+    public void register_falseIfLoginKeyAlreadyRegisteredThroughSystem() {
+        Assume.assumeTrue(testSystem.registerLoginKey(AID_1, VALID_LKEY_1));
+
+        Assert.assertFalse(testSystem.registerLoginKey(AID_2, VALID_LKEY_1));
+    }
+
+    @Test
+    public void register_replacedLoginKeyIsFreeForReuse() {
+        Assume.assumeTrue(testSystem.registerLoginKey(AID_1, VALID_LKEY_1));
+        Assume.assumeTrue(testSystem.registerLoginKey(AID_1, VALID_LKEY_2));
+
+        Assert.assertFalse(loginKeys.containsKey(VALID_LKEY_1));
+        Assert.assertTrue(testSystem.registerLoginKey(AID_2, VALID_LKEY_1));
+    }
+
     @Test
     public void login_nullIfAgentDoesNotExist() {
         Assert.assertNull(testSystem.login(AID_1, VALID_LKEY_1));
@@ -137,6 +186,17 @@ public class MessagingSystemTest {
         Assert.assertTrue(sessionKey.length() == SESSION_KEY_LENGTH);
     }
 
+    @Test
+    public void login_replacesPreviousSessionInIndex() {
+        addAgent(agentInfos, 1, AddType.REGISTERED);
+        final String sessionKey1 = testSystem.login(AID_1, VALID_LKEY_1);
+        final String sessionKey2 = testSystem.login(AID_1, VALID_LKEY_1);
+
+        Assert.assertNull(testSystem.authenticate(sessionKey1, AID_1));
+        Assert.assertNotNull(testSystem.authenticate(sessionKey2, AID_1));
+        Assert.assertEquals(1, sessions.size());
+    }
+
     @Test
     public void logout_falseIfAgentDoesNotExist() {
         Assert.assertFalse(testSystem.logout(AID_1));
@@ -177,6 +237,90 @@ public class MessagingSystemTest {
         Assert.assertTrue(agentInfos.get(AID_1).sessionKey.isExpired());
     }
 
+    @Test
+    public void logout_removesSessionFromIndex() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+
+        Assume.assumeTrue(testSystem.logout(AID_1));
+        Assert.assertTrue(sessions.isEmpty());
+        Assert.assertNull(testSystem.authenticate(VALID_SKEY_1, AID_1));
+    }
+
+    @Test
+    public void authenticate_returnsSessionIfValid() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+        Assert.assertNotNull(session);
+        Assert.assertEquals(AID_1, session.getAgentId());
+    }
+
+    @Test
+    public void authenticate_nullIfSessionKeyUnknown() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+
+        Assert.assertNull(testSystem.authenticate(VALID_SKEY_2, AID_1));
+        Assert.assertNull(testSystem.authenticate(null, AID_1));
+    }
+
+    @Test
+    public void authenticate_nullIfSessionKeyBelongsToAnotherAgent() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.LOGGEDIN);
+
+        Assert.assertNull(testSystem.authenticate(VALID_SKEY_2, AID_1));
+    }
+
+    @Test
+    public void authenticate_nullIfSessionKeyExpired() {
+        when(mockSessnKey1.isExpired()).thenReturn(true);
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+
+        Assert.assertNull(testSystem.authenticate(VALID_SKEY_1, AID_1));
+    }
+
+    @Test
+    public void refusal_explainsWhySessionWasNotAccepted() {
+        when(mockSessnKey1.isExpired()).thenReturn(true);
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.LOGGEDIN);
+
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN, testSystem.refusal(AID_1));
+        Assert.assertEquals(StatusCodes.SESSION_KEY_UNRECOGNIZED, testSystem.refusal(AID_2));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_DOES_NOT_EXIST, testSystem.refusal("9999ab"));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_DOES_NOT_EXIST, testSystem.refusal(null));
+    }
+
+    @Test
+    public void sendMessage_withSessionDoesNotCheckExpiryAgain() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+        Mockito.clearInvocations(mockSessnKey1);
+
+        Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(session, AID_2, VALID_MSG));
+        Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(session, AID_2, VALID_MSG));
+        Mockito.verify(mockSessnKey1, Mockito.never()).isExpired();
+    }
+
+    @Test
+    public void sendMessage_withSessionFailsIfLoggedOutSince() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+
+        Assume.assumeTrue(testSystem.logout(AID_1));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN, testSystem.sendMessage(session, AID_2, VALID_MSG));
+    }
+
+    @Test
+    public void sendMessage_withSessionFailsIfTargetAgentDoesNotExist() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+
+        Assert.assertEquals(StatusCodes.TARGET_AGENT_DOES_NOT_EXIST, testSystem.sendMessage(session, AID_2, VALID_MSG));
+    }
+
     @Test
     public void sendMessage_failsIfSourceAgentDoesNotExist() {
         addAgent(agentInfos, 2, AddType.REGISTERED); // only target agent exists
@@ -284,6 +428,24 @@ public class MessagingSystemTest {
         Assert.assertTrue(agentInfos.get(AID_2).sessionKey.isExpired());
     }
 
+    @Test
+    public void sendMessage_rateLimitedInsteadOfLoggedOut() throws IOException {
+        testSystem = MessagingSystem.builder()
+                .rateLimit(new RateLimit(1e-6, MAX_MESSAGES_SENT + 5))
+                .state(agentInfos, loginKeys, sessions)
+                .build();
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+
+        for (int i = 0; i < MAX_MESSAGES_SENT + 5; i++) {
+            Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG));
+        }
+
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_RATE_LIMITED,
+                testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG));
+        Assert.assertFalse(agentInfos.get(AID_1).sessionKey.isExpired());
+    }
+
     @Test
     public void sendMessage_okIfAllValid() {
         addAgent(agentInfos, 1, AddType.LOGGEDIN);   // source must be logged in
@@ -292,6 +454,67 @@ public class MessagingSystemTest {
         Assert.assertEquals(StatusCodes.OK, testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG));
     }
 
+    @Test
+    public void multicastMessage_returnsStatusForEachTarget() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+
+        Assert.assertEquals(Arrays.asList(StatusCodes.OK, StatusCodes.TARGET_AGENT_DOES_NOT_EXIST, StatusCodes.OK),
+                testSystem.multicastMessage(VALID_SKEY_1, AID_1, Arrays.asList(AID_2, "unknown", AID_1), VALID_MSG));
+        Assert.assertEquals(2, agentInfos.get(AID_1).messagesSent);
+        Assert.assertEquals(1, agentInfos.get(AID_1).messagesRecv);
+        Assert.assertEquals(1, agentInfos.get(AID_2).messagesRecv);
+    }
+
+    @Test
+    public void multicastMessage_sharesFilteredContentsBetweenTargets() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+
+        final List<StatusCodes> statuses =
+                testSystem.multicastMessage(VALID_SKEY_1, AID_1, Arrays.asList(AID_1, AID_2), "a recipe");
+        Assume.assumeTrue(statuses.equals(Arrays.asList(StatusCodes.OK, StatusCodes.OK)));
+
+        final Message message1 = agentInfos.get(AID_1).mailbox.consumeNextMessage();
+        final Message message2 = agentInfos.get(AID_2).mailbox.consumeNextMessage();
+        Assert.assertEquals("a ", message1.getMessage());
+        Assert.assertSame(message1.getEncodedMessage(), message2.getEncodedMessage());
+        Assert.assertEquals(message1.getTimestamp(), message2.getTimestamp());
+        Assert.assertEquals(AID_2, message2.getTargetAgentId());
+    }
+
+    @Test
+    public void multicastMessage_countsQuotasAsIfSentOneByOne() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+        agentInfos.get(AID_1).messagesSent = MAX_MESSAGES_SENT - 1;
+
+        Assert.assertEquals(Arrays.asList(StatusCodes.OK, StatusCodes.SOURCE_AGENT_QUOTA_EXCEEDED,
+                StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN),
+                testSystem.multicastMessage(VALID_SKEY_1, AID_1, Arrays.asList(AID_2, AID_2, AID_2), VALID_MSG));
+        Assert.assertEquals(1, agentInfos.get(AID_2).messagesRecv);
+        Assert.assertTrue(agentInfos.get(AID_1).sessionKey.isExpired());
+    }
+
+    @Test
+    public void multicastMessage_failsForEachTargetIfSessionKeyDoesNotMatch() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+
+        Assert.assertEquals(Arrays.asList(StatusCodes.SESSION_KEY_UNRECOGNIZED, StatusCodes.TARGET_AGENT_DOES_NOT_EXIST),
+                testSystem.multicastMessage(VALID_SKEY_2, AID_1, Arrays.asList(AID_2, "unknown"), VALID_MSG));
+    }
+
+    @Test
+    public void multicastMessage_failsForEachTargetIfMessageLengthExceeded() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+
+        final String LONG_MESSAGE = Utils.getNCharacters(MAX_MESSAGE_LENGTH + 1);
+        Assert.assertEquals(Collections.nCopies(2, StatusCodes.MESSAGE_LENGTH_EXCEEDED),
+                testSystem.multicastMessage(VALID_SKEY_1, AID_1, Arrays.asList(AID_1, AID_2), LONG_MESSAGE));
+    }
+
     @Test
     public void agentHasMessages_falseIfAgentDoesNotExist() {
         Assert.assertFalse(testSystem.agentHasMessages(AID_1));
@@ -365,6 +588,85 @@ public class MessagingSystemTest {
         Assert.assertEquals(message1, testSystem.getNextMessage(VALID_SKEY_1, AID_1).getMessage());
     }
 
+    @Test
+    public void getNextMessage_withSessionReturnsMessagesUntilLoggedOut() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        agentInfos.get(AID_1).mailbox.addMessage(new Message(AID_2, AID_1, "msg1"));
+        agentInfos.get(AID_1).mailbox.addMessage(new Message(AID_2, AID_1, "msg2"));
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+
+        Assert.assertEquals("msg1", testSystem.getNextMessage(session).getMessage());
+        Assume.assumeTrue(testSystem.logout(AID_1));
+        Assert.assertNull(testSystem.getNextMessage(session));
+    }
+
+    @Test
+    public void getNextMessages_emptyIfSessionKeyDoesNotMatch() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        agentInfos.get(AID_1).mailbox.addMessage(new Message(AID_2, AID_1, "msg"));
+
+        Assert.assertTrue(testSystem.getNextMessages(VALID_SKEY_2, AID_1, 10).isEmpty());
+        Assert.assertTrue(agentInfos.get(AID_1).mailbox.hasMessages());
+    }
+
+    @Test
+    public void getNextMessages_returnsUpToMaxMessagesInFifoOrder() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        for (int i = 1; i <= 3; i++) {
+            agentInfos.get(AID_1).mailbox.addMessage(new Message(AID_2, AID_1, "msg" + i));
+        }
+
+        final List<Message> messages = testSystem.getNextMessages(VALID_SKEY_1, AID_1, 2);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals("msg1", messages.get(0).getMessage());
+        Assert.assertEquals("msg2", messages.get(1).getMessage());
+        Assert.assertEquals("msg3", testSystem.getNextMessage(VALID_SKEY_1, AID_1).getMessage());
+    }
+
+    @Test
+    public void awaitMessage_runsWaiterWhenMessageSent() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.LOGGEDIN);
+        final Session session = testSystem.authenticate(VALID_SKEY_2, AID_2);
+        final AtomicInteger runs = new AtomicInteger();
+
+        Assert.assertTrue(testSystem.awaitMessage(session, runs::incrementAndGet));
+        Assume.assumeTrue(runs.get() == 0);
+        Assume.assumeTrue(testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, "msg") == StatusCodes.OK);
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void awaitMessage_runsWaiterWhenLoggedOut() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+        final AtomicInteger runs = new AtomicInteger();
+        Assume.assumeTrue(testSystem.awaitMessage(session, runs::incrementAndGet));
+
+        Assume.assumeTrue(testSystem.logout(AID_1));
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void awaitMessage_falseIfLoggedOut() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+        Assume.assumeTrue(testSystem.logout(AID_1));
+
+        Assert.assertFalse(testSystem.awaitMessage(session, () -> Assert.fail("Waiter should not run")));
+    }
+
+    @Test
+    public void cancelAwait_waiterDoesNotRun() {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        final Session session = testSystem.authenticate(VALID_SKEY_1, AID_1);
+        final Runnable waiter = () -> Assert.fail("Waiter should not run");
+        Assume.assumeTrue(testSystem.awaitMessage(session, waiter));
+
+        Assert.assertTrue(testSystem.cancelAwait(session, waiter));
+        agentInfos.get(AID_1).mailbox.addMessage(new Message(AID_2, AID_1, "msg"));
+    }
+
     @Test
     public void agentLoggedIn_returnsFalseIfAgentDoesNotExist() {
         Assert.assertFalse(testSystem.agentLoggedIn(AID_1));
@@ -384,6 +686,43 @@ public class MessagingSystemTest {
         Assert.assertTrue(testSystem.agentLoggedIn(AID_1));
     }
 
+    @Test
+    public void writeMetrics_countsOutcomeOfEachSend() throws IOException {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+        testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG);
+        testSystem.multicastMessage(VALID_SKEY_1, AID_1, Arrays.asList(AID_2, "unknown"), VALID_MSG);
+
+        final String metrics = writeMetrics();
+
+        Assert.assertTrue(metrics.contains("\nmessaging_messages_sent_total{status=\"OK\"} 2\n"));
+        Assert.assertTrue(metrics.contains(
+                "\nmessaging_messages_sent_total{status=\"TARGET_AGENT_DOES_NOT_EXIST\"} 1\n"));
+        Assert.assertTrue(metrics.contains("\nmessaging_send_duration_seconds_count 1\n"));
+        Assert.assertTrue(metrics.contains("\nmessaging_send_duration_seconds_bucket{le=\"+Inf\"} 1\n"));
+    }
+
+    @Test
+    public void writeMetrics_reportsSessionsAndMailboxes() throws IOException {
+        addAgent(agentInfos, 1, AddType.LOGGEDIN);
+        addAgent(agentInfos, 2, AddType.REGISTERED);
+        testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG);
+        testSystem.sendMessage(VALID_SKEY_1, AID_1, AID_2, VALID_MSG);
+
+        final String metrics = writeMetrics();
+
+        Assert.assertTrue(metrics.contains("\nmessaging_agents 2\n"));
+        Assert.assertTrue(metrics.contains("\nmessaging_sessions_active 1\n"));
+        Assert.assertTrue(metrics.contains("\nmessaging_mailbox_messages 2\n"));
+        Assert.assertTrue(metrics.contains("\nmessaging_mailbox_messages_max 2\n"));
+    }
+
+    private String writeMetrics() throws IOException {
+        final StringBuilder metrics = new StringBuilder();
+        testSystem.writeMetrics(metrics);
+        return metrics.toString();
+    }
+
     private void addAgent(final Map<String, AgentInfo> agentInfos, int agent, AddType type) {
 
         Assume.assumeTrue(agent == 1 || agent == 2);
@@ -396,9 +735,13 @@ public class MessagingSystemTest {
         switch (type) {
             case REGISTERED:
                 agentInfo.loginKey = loginKey;
+                loginKeys.put(loginKey.getKey(), loginKey);
                 break;
             case LOGGEDIN:
+                final String sessionKey = (agent == 1 ? VALID_SKEY_1 : VALID_SKEY_2);
                 agentInfo.sessionKey = sessnKey;
+                agentInfo.session = new Session(agentId, sessionKey, agentInfo, sessnKey);
+                sessions.put(sessionKey, agentInfo.session);
                 break;
             default:
                 break;
@@ -0,0 +1,38 @@
+package system;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * A clock that only moves when told to, by any number of threads at once.
+ */
+public class MutableClock extends Clock {
+
+    private volatile Instant now;
+
+    public MutableClock(Instant now) {
+        this.now = now;
+    }
+
+    public synchronized void advance(Duration duration) {
+        now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneId.of("UTC");
+    }
+
+    @Override
+    //Ignored
+    public Clock withZone(ZoneId zoneId) {
+        return this;
+    }
+
+    @Override
+    public Instant instant() {
+        return now;
+    }
+}
@@ -0,0 +1,144 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import util.SlabAllocator;
+import util.Utils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class OffHeapMailboxTest {
+
+    private static final String OWNER_ID = "1234xy", SENDER_ID = "5678vw", MESSAGE = "message";
+
+    private final MutableClock testClock = new MutableClock(Instant.EPOCH);
+
+    private MessageStore testStore;
+    private Mailbox testMailbox;
+
+    @Before
+    public void setUp() {
+        testStore = new MessageStore(SlabAllocator.direct(SlabAllocator.SLAB_SIZE), testClock);
+        testMailbox = testStore.newMailbox(OWNER_ID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        testStore.close();
+        testStore = null;
+        testMailbox = null;
+    }
+
+    @Test
+    public void consumeNextMessage_sameMessageAsAdded() {
+        final Instant timestamp = Instant.EPOCH.plusNanos(123456789);
+        Assert.assertTrue(testMailbox.addMessage(
+                new Message(SENDER_ID, OWNER_ID, "caf\u00e9 \ud83d\ude00", timestamp, testClock, 7)));
+
+        final Message message = testMailbox.consumeNextMessage();
+
+        Assert.assertEquals(SENDER_ID, message.getSourceAgentId());
+        Assert.assertEquals(OWNER_ID, message.getTargetAgentId());
+        Assert.assertEquals("caf\u00e9 \ud83d\ude00", message.getMessage());
+        Assert.assertEquals(timestamp, message.getTimestamp());
+        Assert.assertEquals(7, message.getSequence());
+        Assert.assertNull(testMailbox.consumeNextMessage());
+        Assert.assertEquals(0, testStore.usedBytes());
+    }
+
+    @Test
+    public void consumeNextMessages_inOrderPastInitialCapacity() {
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(MESSAGE + i);
+            testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, MESSAGE + i, testClock));
+        }
+        Assert.assertEquals(OWNER_ID, testMailbox.consumeNextMessage().getTargetAgentId());
+
+        Assert.assertEquals(expected.subList(1, 100), contentsOf(testMailbox.consumeNextMessages(200)));
+        Assert.assertEquals(0, testStore.usedBytes());
+    }
+
+    @Test
+    public void consumeNextMessages_skipsExpiredMessages() {
+        testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, "older", testClock));
+        testClock.advance(Duration.ofMinutes(20));
+        testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, "newer", testClock));
+        testClock.advance(Duration.ofMinutes(20));
+
+        Assert.assertEquals(Arrays.asList("newer"), contentsOf(testMailbox.consumeNextMessages(2)));
+        Assert.assertEquals(0, testStore.usedBytes());
+    }
+
+    @Test
+    public void hasMessages_falseOnceExpired() {
+        testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, MESSAGE, testClock));
+        Assert.assertTrue(testMailbox.hasMessages());
+
+        testClock.advance(Mailbox.MESSAGE_TIME_LIMIT);
+
+        Assert.assertFalse(testMailbox.hasMessages());
+        Assert.assertEquals(0, testStore.usedBytes());
+    }
+
+    @Test
+    public void removeExpiredMessages_keepsOrderOfOthers() {
+        final Message older = new Message(SENDER_ID, OWNER_ID, "older", testClock);
+        testClock.advance(Duration.ofMinutes(20));
+        testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, "first", testClock));
+        testMailbox.addMessage(older);
+        testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, "second", testClock));
+        testClock.advance(Duration.ofMinutes(20));
+
+        Assert.assertEquals(1, testMailbox.removeExpiredMessages());
+        Assert.assertEquals(Arrays.asList("first", "second"), contentsOf(testMailbox.peekMessages()));
+        Assert.assertEquals(Arrays.asList("first", "second"), contentsOf(testMailbox.consumeNextMessages(2)));
+    }
+
+    @Test
+    public void removeMessagesThrough_dropsUpToSequence() {
+        for (int i = 1; i <= 3; i++) {
+            testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, MESSAGE + i, Instant.now(testClock), testClock, i));
+        }
+
+        testMailbox.removeMessagesThrough(2);
+
+        Assert.assertEquals(Arrays.asList(MESSAGE + 3), contentsOf(testMailbox.peekMessages()));
+    }
+
+    @Test
+    public void addMessage_falseIfTooLargeForStore() {
+        final String sender = Utils.getNCharacters(SlabAllocator.MAX_SLOT_SIZE, "s");
+
+        Assert.assertFalse(testMailbox.addMessage(new Message(sender, OWNER_ID, MESSAGE, testClock)));
+        Assert.assertFalse(testMailbox.hasMessages());
+    }
+
+    @Test
+    public void addMessage_spaceOfConsumedMessagesReused() {
+        final int fit = SlabAllocator.SLAB_SIZE / 48; // each message takes a 48-byte slot
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < fit; i++) {
+                Assert.assertTrue(testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, MESSAGE, testClock)));
+            }
+            Assert.assertFalse(testMailbox.addMessage(new Message(SENDER_ID, OWNER_ID, MESSAGE, testClock)));
+            Assert.assertEquals(fit, testMailbox.consumeNextMessages(fit).size());
+        }
+        Assert.assertEquals(SlabAllocator.SLAB_SIZE, testStore.reservedBytes());
+    }
+
+    private static List<String> contentsOf(List<Message> messages) {
+        final List<String> contents = new ArrayList<>();
+        for (final Message message : messages) {
+            contents.add(message.getMessage());
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,132 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimitTest {
+
+    private static final int BURST = 5;
+    private static final double PER_SECOND = 10;
+
+    private final MutableClock testClock = new MutableClock(Instant.EPOCH.plusSeconds(60));
+
+    private RateLimit testRateLimit;
+    private AgentInfo source;
+    private AgentInfo target;
+
+    @Before
+    public void setUp() {
+        testRateLimit = new RateLimit(PER_SECOND, BURST, testClock);
+        source = new AgentInfo("source");
+        target = new AgentInfo("target");
+    }
+
+    @After
+    public void tearDown() {
+        testRateLimit = null;
+        source = null;
+        target = null;
+    }
+
+    @Test
+    public void tryAcquire_allowsBurstThenLimitsSource() {
+        for (int i = 0; i < BURST; i++) {
+            Assert.assertNull(testRateLimit.tryAcquire(source, new AgentInfo("target" + i)));
+        }
+
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_RATE_LIMITED, testRateLimit.tryAcquire(source, target));
+    }
+
+    @Test
+    public void tryAcquire_limitsTargetAndGivesSourceTokenBack() {
+        for (int i = 0; i < BURST; i++) {
+            Assert.assertNull(testRateLimit.tryAcquire(new AgentInfo("source" + i), target));
+        }
+
+        Assert.assertEquals(StatusCodes.TARGET_AGENT_RATE_LIMITED, testRateLimit.tryAcquire(source, target));
+        for (int i = 0; i < BURST; i++) {
+            Assert.assertNull(testRateLimit.tryAcquire(source, new AgentInfo("target" + i)));
+        }
+    }
+
+    @Test
+    public void tryAcquire_refillsAtRate() {
+        for (int i = 0; i < BURST; i++) {
+            testRateLimit.tryAcquire(source, target);
+        }
+
+        testClock.advance(Duration.ofMillis(100)); // one token at 10 per second
+
+        Assert.assertNull(testRateLimit.tryAcquire(source, target));
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_RATE_LIMITED, testRateLimit.tryAcquire(source, target));
+    }
+
+    @Test
+    public void tryAcquire_refillsNoMoreThanBurst() {
+        testClock.advance(Duration.ofHours(1));
+
+        for (int i = 0; i < BURST; i++) {
+            Assert.assertNull(testRateLimit.tryAcquire(source, target));
+        }
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_RATE_LIMITED, testRateLimit.tryAcquire(source, target));
+    }
+
+    @Test
+    public void tryAcquire_allowsBurstWhateverTheClockOrigin() {
+        testRateLimit = new RateLimit(PER_SECOND, BURST, new MutableClock(Instant.EPOCH.minusSeconds(60)));
+
+        for (int i = 0; i < BURST; i++) {
+            Assert.assertNull(testRateLimit.tryAcquire(source, target));
+        }
+        Assert.assertEquals(StatusCodes.SOURCE_AGENT_RATE_LIMITED, testRateLimit.tryAcquire(source, target));
+    }
+
+    @Test
+    public void tryAcquire_concurrentSendersShareOneBucket() throws Exception {
+        final int threads = 8, attempts = 100;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    int allowed = 0;
+                    for (int i = 0; i < attempts; i++) {
+                        if (testRateLimit.tryAcquire(source, new AgentInfo("target")) == null) {
+                            allowed++;
+                        }
+                    }
+                    return allowed;
+                }));
+            }
+            start.countDown();
+
+            int allowed = 0;
+            for (final Future<Integer> future : futures) {
+                allowed += future.get();
+            }
+            Assert.assertEquals(BURST, allowed);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void new_rejectsRateThatIsNotPositive() {
+        new RateLimit(0, BURST);
+    }
+}
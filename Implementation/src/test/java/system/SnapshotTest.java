@@ -0,0 +1,107 @@
+package system;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SnapshotTest {
+
+    private static final String AID_1 = "1234xy";
+    private static final String AID_2 = "5678ab";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private Map<String, AgentInfo> agentInfos;
+    private Map<String, TemporaryKey> loginKeys;
+    private Map<String, Session> sessions;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("snapshot.bin");
+        agentInfos = new HashMap<>();
+        loginKeys = new HashMap<>();
+        sessions = new HashMap<>();
+    }
+
+    @After
+    public void tearDown() {
+        file = null;
+        agentInfos = null;
+        loginKeys = null;
+        sessions = null;
+    }
+
+    @Test
+    public void read_restoresWrittenAgents() throws IOException {
+        final AgentInfo sender = new AgentInfo(AID_1);
+        sender.loginKey = new TemporaryKey("loginKey01", Duration.ofMinutes(1));
+        sender.messagesSent = 2;
+        sender.version = 7;
+        final AgentInfo receiver = new AgentInfo(AID_2);
+        receiver.sessionKey = new TemporaryKey("sessionKey", Duration.ofMinutes(10));
+        receiver.messagesRecv = 2;
+        receiver.lastSequence = 2;
+        receiver.version = 5;
+        receiver.mailbox.addMessage(new Message(AID_1, AID_2, "first", Instant.now(), Clock.systemUTC(), 1));
+        receiver.mailbox.addMessage(new Message(AID_1, AID_2, "second", Instant.now(), Clock.systemUTC(), 2));
+
+        Snapshot.write(file, Arrays.asList(sender, receiver), 42);
+
+        Assert.assertEquals(42, Snapshot.read(file, agentInfos, loginKeys, sessions, AgentInfo::new));
+        final AgentInfo restoredSender = agentInfos.get(AID_1);
+        Assert.assertEquals(7, restoredSender.version);
+        Assert.assertEquals(2, restoredSender.messagesSent);
+        Assert.assertSame(restoredSender.loginKey, loginKeys.get("loginKey01"));
+        final AgentInfo restoredReceiver = agentInfos.get(AID_2);
+        Assert.assertEquals(5, restoredReceiver.version);
+        Assert.assertEquals(2, restoredReceiver.messagesRecv);
+        Assert.assertEquals(2, restoredReceiver.lastSequence);
+        Assert.assertSame(restoredReceiver.session, sessions.get("sessionKey"));
+        Assert.assertEquals("second", restoredReceiver.mailbox.peekMessages().get(1).getMessage());
+    }
+
+    @Test
+    public void read_skipsExpiredMessagesAndKeys() throws IOException {
+        final AgentInfo info = new AgentInfo(AID_1);
+        final Instant longAgo = Instant.now().minus(Mailbox.MESSAGE_TIME_LIMIT).minusSeconds(1);
+        info.mailbox.addMessage(new Message(AID_2, AID_1, "expired", longAgo, Clock.systemUTC(), 1));
+        info.mailbox.addMessage(new Message(AID_2, AID_1, "current", Instant.now(), Clock.systemUTC(), 2));
+        info.loginKey = new TemporaryKey("loginKey01", Instant.now().minusSeconds(1));
+
+        Snapshot.write(file, Collections.singletonList(info), 1);
+        Snapshot.read(file, agentInfos, loginKeys, sessions, AgentInfo::new);
+
+        Assert.assertEquals(1, agentInfos.get(AID_1).mailbox.peekMessages().size());
+        Assert.assertTrue(loginKeys.isEmpty());
+        Assert.assertTrue(sessions.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_damagedSnapshotThrows() throws IOException {
+        final AgentInfo info = new AgentInfo(AID_1);
+        info.mailbox.addMessage(new Message(AID_2, AID_1, "message", Instant.now(), Clock.systemUTC(), 1));
+        Snapshot.write(file, Collections.singletonList(info), 1);
+
+        final byte[] contents = Files.readAllBytes(file);
+        contents[contents.length / 2] ^= 1;
+        Files.write(file, contents);
+
+        Snapshot.read(file, agentInfos, loginKeys, sessions, AgentInfo::new);
+    }
+}
@@ -8,6 +8,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
+import util.RandomKeyGenerator;
+import util.Utils;
+
+import java.io.IOException;
 
 import static org.mockito.Mockito.when;
 
@@ -25,6 +29,7 @@ public class SupervisorImplTest {
 
     @Before
     public void setUp() {
+        when(mockMessagingSystem.getKeyGenerator()).thenReturn(RandomKeyGenerator.secure());
         testSupervisor = new SupervisorImpl(mockMessagingSystem);
     }
 
@@ -45,4 +50,21 @@ public class SupervisorImplTest {
     public void getLoginKey_nullIfAgentIdStartsWithSpy() {
         Assert.assertEquals(null, testSupervisor.getLoginKey(INVALID_AGENT_ID));
     }
+
+    @Test
+    public void getLoginKey_keyFromKeyGenerator() {
+        testSupervisor = new SupervisorImpl(mockMessagingSystem, length -> Utils.getNCharacters(length));
+
+        Assert.assertEquals(Utils.getNCharacters(10), testSupervisor.getLoginKey(VALID_AGENT_ID));
+        Mockito.verify(mockMessagingSystem).registerLoginKey(VALID_AGENT_ID, Utils.getNCharacters(10));
+    }
+
+    @Test
+    public void getLoginKey_keyFromMessagingSystemsKeyGenerator() throws IOException {
+        final MessagingSystem messagingSystem =
+                MessagingSystem.builder().keyGenerator(length -> Utils.getNCharacters(length)).build();
+
+        Assert.assertEquals(Utils.getNCharacters(10), new SupervisorImpl(messagingSystem).getLoginKey(VALID_AGENT_ID));
+        Assert.assertNotNull(messagingSystem.login(VALID_AGENT_ID, Utils.getNCharacters(10)));
+    }
 }
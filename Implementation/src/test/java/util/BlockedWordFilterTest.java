@@ -0,0 +1,121 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class BlockedWordFilterTest {
+
+    private static final List<String> BLOCKED_WORDS = Arrays.asList("recipe", "ginger", "nuclear");
+
+    private BlockedWordFilter testFilter;
+
+    @Before
+    public void setUp() {
+        testFilter = new BlockedWordFilter(BLOCKED_WORDS);
+    }
+
+    @After
+    public void tearDown() {
+        testFilter = null;
+    }
+
+    @Test
+    public void filter_returnsSameInstanceIfNoBlockedWords() {
+        final String text = "nothing to see here";
+
+        Assert.assertSame(text, testFilter.filter(text));
+    }
+
+    @Test
+    public void filter_removesBlockedWordsIgnoringCase() {
+        Assert.assertEquals("Get the with ", testFilter.filter("Get the nuclEAR REcipe with GinGer"));
+    }
+
+    @Test
+    public void filter_removesOneFollowingWhitespaceOnly() {
+        Assert.assertEquals("a \tb", testFilter.filter("a recipe \tb"));
+    }
+
+    @Test
+    public void filter_removesWordsJoinedByAnEarlierRemoval() {
+        // removing "recipe" joins "gin" and "ger" into "ginger", which comes later in the list
+        Assert.assertEquals("", testFilter.filter("ginrecipeger"));
+    }
+
+    @Test
+    public void filter_keepsWordsJoinedByALaterRemoval() {
+        // removing "ginger" joins "rec" and "ipe" into "recipe", which comes earlier in the list
+        Assert.assertEquals("recipe", testFilter.filter("recgingeripe"));
+    }
+
+    @Test
+    public void filter_overlappingWordsRemovedInListOrder() {
+        Assert.assertEquals("ginge", testFilter.filter("gingerecipe"));
+    }
+
+    @Test
+    public void filter_treatsWordsLiterally() {
+        final BlockedWordFilter filter = new BlockedWordFilter(Collections.singletonList("a.c"));
+
+        Assert.assertEquals("abc ", filter.filter("abc a.c a.C"));
+    }
+
+    @Test
+    public void filter_onlyIgnoresAsciiCase() {
+        final BlockedWordFilter filter = new BlockedWordFilter(Collections.singletonList("\u00e9t\u00e9"));
+
+        Assert.assertEquals("\u00c9T\u00c9", filter.filter("\u00c9T\u00c9\u00e9T\u00e9"));
+    }
+
+    @Test
+    public void filter_matchesRegexLoopOnRandomText() {
+        final Random random = new Random(42);
+        final List<String> words = Arrays.asList("ab", "b", "aba", "ba", "bab", "abb", "a b");
+
+        for (int run = 0; run < 100; run++) {
+            Collections.shuffle(words, random);
+            final BlockedWordFilter filter = new BlockedWordFilter(words);
+
+            for (int i = 0; i < 200; i++) {
+                final String text = randomText(random, "abAB \t", random.nextInt(30));
+                Assert.assertEquals("words " + words + ", text \"" + text + "\"",
+                        regexLoop(words, text), filter.filter(text));
+            }
+        }
+    }
+
+    @Test
+    public void getBlockedWords_returnsWordsInLowerCase() {
+        Assert.assertEquals(Arrays.asList("abc", "def"), new BlockedWordFilter(Arrays.asList("aBc", "DEF")).getBlockedWords());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_throwsIfWordIsEmpty() {
+        new BlockedWordFilter(Arrays.asList("recipe", ""));
+    }
+
+    /**
+     * The blocked word removal that the filter replaces
+     */
+    static String regexLoop(List<String> words, String text) {
+        for (final String word : words) {
+            text = text.replaceAll("(?i)" + java.util.regex.Pattern.quote(word) + "\\s?", "");
+        }
+        return text;
+    }
+
+    private static String randomText(Random random, String alphabet, int length) {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+}
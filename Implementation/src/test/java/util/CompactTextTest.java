@@ -0,0 +1,47 @@
+package util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactTextTest {
+
+    @Test
+    public void encode_latin1OneBytePerCharacter() {
+        final String text = "Caf\u00e9 au lait";
+
+        final byte[] encoded = CompactText.encode(text);
+
+        Assert.assertEquals(1 + text.length(), encoded.length);
+        Assert.assertEquals(text, CompactText.decode(encoded));
+    }
+
+    @Test
+    public void encode_otherCharactersRoundTrip() {
+        final String text = "\u041f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00";
+
+        Assert.assertEquals(text, CompactText.decode(CompactText.encode(text)));
+    }
+
+    @Test
+    public void encode_unpairedSurrogateRoundTrips() {
+        final String text = "broken \ud83d pair \ude00";
+
+        Assert.assertEquals(text, CompactText.decode(CompactText.encode(text)));
+    }
+
+    @Test
+    public void encode_emptyRoundTrips() {
+        Assert.assertEquals("", CompactText.decode(CompactText.encode("")));
+    }
+
+    @Test
+    public void encode_nullStaysNull() {
+        Assert.assertNull(CompactText.encode(null));
+        Assert.assertNull(CompactText.decode(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_unknownEncodingThrows() {
+        CompactText.decode(new byte[]{42});
+    }
+}
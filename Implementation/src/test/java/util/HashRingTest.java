@@ -0,0 +1,75 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HashRingTest {
+
+    private static final int KEYS = 20_000;
+
+    private HashRing testRing;
+
+    @Before
+    public void setUp() {
+        testRing = new HashRing(Arrays.asList("localhost:7001", "localhost:7002", "localhost:7003"));
+    }
+
+    @After
+    public void tearDown() {
+        testRing = null;
+    }
+
+    @Test
+    public void ownerOf_sameOnEveryRingWithTheSameNodes() {
+        final HashRing sameNodes = new HashRing(Arrays.asList("localhost:7003", "localhost:7001", "localhost:7002"));
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals(testRing.ownerOf("agent" + i), sameNodes.ownerOf("agent" + i));
+        }
+    }
+
+    @Test
+    public void ownerOf_spreadsKeysEvenly() {
+        final Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(testRing.ownerOf("agent" + i), 1, Integer::sum);
+        }
+
+        Assert.assertEquals(testRing.nodes(), owned.keySet());
+        for (final int count : owned.values()) {
+            Assert.assertEquals(KEYS / 3.0, count, KEYS * 0.05);
+        }
+    }
+
+    @Test
+    public void with_onlyMovesKeysToNewNode() {
+        final HashRing grown = testRing.with("localhost:7004");
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String before = testRing.ownerOf("agent" + i);
+            final String after = grown.ownerOf("agent" + i);
+            if (!before.equals(after)) {
+                Assert.assertEquals("localhost:7004", after);
+                moved++;
+            }
+        }
+        Assert.assertEquals(KEYS / 4.0, moved, KEYS * 0.05);
+    }
+
+    @Test
+    public void with_existingNodeReturnsSameRing() {
+        Assert.assertSame(testRing, testRing.with("localhost:7001"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void ownerOf_emptyRing() {
+        new HashRing(Collections.emptyList()).ownerOf("agent");
+    }
+}
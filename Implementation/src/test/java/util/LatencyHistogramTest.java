@@ -0,0 +1,48 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private LatencyHistogram testHistogram;
+
+    @Before
+    public void setUp() {
+        testHistogram = new LatencyHistogram();
+    }
+
+    @After
+    public void tearDown() {
+        testHistogram = null;
+    }
+
+    @Test
+    public void record_upToOneMicrosecondInFirstBucket() {
+        testHistogram.record(0);
+        testHistogram.record(1000);
+
+        Assert.assertEquals(2, testHistogram.count(0));
+        Assert.assertEquals(1000, testHistogram.totalNanos());
+    }
+
+    @Test
+    public void record_boundsAreInclusive() {
+        testHistogram.record(LatencyHistogram.upperBoundNanos(5));
+        testHistogram.record(LatencyHistogram.upperBoundNanos(5) + 1);
+
+        Assert.assertEquals(1, testHistogram.count(5));
+        Assert.assertEquals(1, testHistogram.count(6));
+    }
+
+    @Test
+    public void record_longerThanLastBoundInLastBucket() {
+        testHistogram.record(LatencyHistogram.upperBoundNanos(LatencyHistogram.BOUNDED_BUCKETS - 1) + 1);
+        testHistogram.record(Long.MAX_VALUE / 2);
+
+        Assert.assertEquals(LatencyHistogram.BOUNDED_BUCKETS + 1, testHistogram.buckets());
+        Assert.assertEquals(2, testHistogram.count(LatencyHistogram.BOUNDED_BUCKETS));
+    }
+}
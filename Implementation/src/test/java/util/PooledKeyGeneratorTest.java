@@ -0,0 +1,73 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledKeyGeneratorTest {
+
+    private static final int CAPACITY = 4;
+
+    private final AtomicInteger generated = new AtomicInteger();
+    private final KeyGenerator countingGenerator = length -> Utils.getNCharacters(length, "" + generated.incrementAndGet());
+
+    private PooledKeyGenerator testGenerator;
+
+    @Before
+    public void setUp() {
+        testGenerator = new PooledKeyGenerator(countingGenerator, CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        testGenerator.stop();
+        testGenerator = null;
+    }
+
+    @Test
+    public void nextKey_generatesOnTheSpotWhenPoolEmpty() {
+        Assert.assertEquals(10, testGenerator.nextKey(10).length());
+    }
+
+    @Test
+    public void nextKey_fillsPoolAheadOfTime() throws InterruptedException {
+        testGenerator.nextKey(10);
+        waitForGenerated(CAPACITY + 1);
+
+        for (int i = 0; i < CAPACITY; i++) {
+            Assert.assertEquals(10, testGenerator.nextKey(10).length());
+        }
+    }
+
+    @Test
+    public void nextKey_separatePoolPerLength() throws InterruptedException {
+        testGenerator.nextKey(10);
+        testGenerator.nextKey(50);
+        waitForGenerated(2 * CAPACITY + 2);
+
+        Assert.assertEquals(10, testGenerator.nextKey(10).length());
+        Assert.assertEquals(50, testGenerator.nextKey(50).length());
+    }
+
+    @Test
+    public void stop_keysStillHandedOut() {
+        testGenerator.stop();
+
+        Assert.assertEquals(10, testGenerator.nextKey(10).length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_nonPositiveCapacityThrows() {
+        new PooledKeyGenerator(countingGenerator, 0);
+    }
+
+    private void waitForGenerated(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && generated.get() < count; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(generated.get() >= count);
+    }
+}
@@ -0,0 +1,66 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class RandomKeyGeneratorTest {
+
+    private static final int KEY_LENGTH = 50;
+
+    private RandomKeyGenerator testGenerator;
+
+    @Before
+    public void setUp() {
+        testGenerator = new RandomKeyGenerator(() -> new Random(1));
+    }
+
+    @After
+    public void tearDown() {
+        testGenerator = null;
+    }
+
+    @Test
+    public void nextKey_hasRequestedLength() {
+        Assert.assertEquals(KEY_LENGTH, testGenerator.nextKey(KEY_LENGTH).length());
+        Assert.assertEquals(0, testGenerator.nextKey(0).length());
+    }
+
+    @Test
+    public void nextKey_onlyPrintableCharacters() {
+        for (final char ch : testGenerator.nextKey(10_000).toCharArray()) {
+            Assert.assertTrue(Utils.ALLCHARS.indexOf(ch) >= 0);
+        }
+    }
+
+    @Test
+    public void nextKey_usesEveryCharacter() {
+        final Set<Character> seen = new HashSet<>();
+        for (final char ch : testGenerator.nextKey(10_000).toCharArray()) {
+            seen.add(ch);
+        }
+        Assert.assertEquals(Utils.ALLCHARS.length(), seen.size());
+    }
+
+    @Test
+    public void nextKey_sameSeedSameKeys() {
+        final RandomKeyGenerator anotherGenerator = new RandomKeyGenerator(() -> new Random(1));
+
+        Assert.assertEquals(anotherGenerator.nextKey(KEY_LENGTH), testGenerator.nextKey(KEY_LENGTH));
+        Assert.assertEquals(anotherGenerator.nextKey(KEY_LENGTH), testGenerator.nextKey(KEY_LENGTH));
+    }
+
+    @Test
+    public void nextKey_secureKeysDiffer() {
+        final Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(RandomKeyGenerator.secure().nextKey(KEY_LENGTH));
+        }
+        Assert.assertEquals(1000, keys.size());
+    }
+}
@@ -0,0 +1,128 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SlabAllocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SlabAllocator testAllocator;
+
+    @Before
+    public void setUp() {
+        testAllocator = SlabAllocator.direct(2 * SlabAllocator.SLAB_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        testAllocator.close();
+        testAllocator = null;
+    }
+
+    @Test
+    public void allocate_smallestSlotThatFits() {
+        final ByteBuffer slot = testAllocator.slot(testAllocator.allocate(50));
+
+        Assert.assertEquals(64, slot.remaining());
+        Assert.assertEquals(64, testAllocator.usedBytes());
+        Assert.assertEquals(SlabAllocator.SLAB_SIZE, testAllocator.reservedBytes());
+    }
+
+    @Test
+    public void allocate_tooLargeFails() {
+        Assert.assertEquals(-1, testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE + 1));
+        Assert.assertEquals(0, testAllocator.reservedBytes());
+    }
+
+    @Test
+    public void allocate_failsOnceAllSlabsAreInUse() {
+        final int slotsPerSlab = SlabAllocator.SLAB_SIZE / SlabAllocator.MAX_SLOT_SIZE;
+        for (int i = 0; i < 2 * slotsPerSlab; i++) {
+            Assert.assertNotEquals(-1, testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE));
+        }
+
+        Assert.assertEquals(-1, testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE));
+        Assert.assertEquals(-1, testAllocator.allocate(10)); // no slab left for another size either
+    }
+
+    @Test
+    public void free_slotIsReused() {
+        final long first = testAllocator.allocate(100);
+        testAllocator.allocate(100);
+        testAllocator.free(first);
+
+        Assert.assertEquals(first, testAllocator.allocate(120));
+        Assert.assertEquals(256, testAllocator.usedBytes());
+    }
+
+    @Test
+    public void free_emptySlabIsReusedForAnotherSize() {
+        final long[] handles = new long[2 * SlabAllocator.SLAB_SIZE / SlabAllocator.MAX_SLOT_SIZE];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE);
+        }
+        for (final long handle : handles) {
+            testAllocator.free(handle);
+        }
+
+        // Both slabs can now be cut into the smallest slots instead
+        for (int i = 0; i < 2 * SlabAllocator.SLAB_SIZE / 32; i++) {
+            Assert.assertNotEquals(-1, testAllocator.allocate(10));
+        }
+        Assert.assertEquals(-1, testAllocator.allocate(10));
+        Assert.assertEquals(2 * SlabAllocator.SLAB_SIZE, testAllocator.usedBytes());
+    }
+
+    @Test
+    public void free_slabWithLiveSlotsIsKept() {
+        final int slotsPerSlab = SlabAllocator.SLAB_SIZE / SlabAllocator.MAX_SLOT_SIZE;
+        final long[] handles = new long[2 * slotsPerSlab];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE);
+        }
+        for (int i = 1; i < handles.length; i++) {
+            testAllocator.free(handles[i]); // the first slab keeps one slot
+        }
+
+        for (int i = 0; i < SlabAllocator.SLAB_SIZE / 32; i++) {
+            Assert.assertNotEquals(-1, testAllocator.allocate(10));
+        }
+        Assert.assertEquals(-1, testAllocator.allocate(10));
+        Assert.assertNotEquals(-1, testAllocator.allocate(SlabAllocator.MAX_SLOT_SIZE));
+    }
+
+    @Test
+    public void slot_keepsContentsApart() {
+        final long first = testAllocator.allocate(8), second = testAllocator.allocate(8);
+        testAllocator.slot(first).putLong(1);
+        testAllocator.slot(second).putLong(2);
+
+        Assert.assertEquals(1, testAllocator.slot(first).getLong());
+        Assert.assertEquals(2, testAllocator.slot(second).getLong());
+    }
+
+    @Test
+    public void mapped_slotsInFileDeletedOnClose() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("slabs");
+        testAllocator.close();
+        testAllocator = SlabAllocator.mapped(file, SlabAllocator.SLAB_SIZE);
+
+        final long handle = testAllocator.allocate(8);
+        testAllocator.slot(handle).putLong(42);
+        Assert.assertEquals(42, testAllocator.slot(handle).getLong());
+
+        testAllocator.close();
+        Assert.assertFalse(Files.exists(file));
+    }
+}
@@ -0,0 +1,79 @@
+package util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+public class TickerTest {
+
+    private final Instant NOW = Instant.EPOCH.plusSeconds(60);
+    private final Clock FIXED_CLOCK = Clock.fixed(NOW, ZoneId.of("UTC"));
+
+    @Test
+    public void forClock_systemClocksShareTicker() {
+        Assert.assertSame(Ticker.forClock(Clock.systemUTC()), Ticker.forClock(Clock.systemDefaultZone()));
+    }
+
+    @Test
+    public void forClock_otherClockReadsClock() {
+        Assert.assertEquals(NOW.toEpochMilli(), Ticker.forClock(FIXED_CLOCK).read());
+    }
+
+    @Test
+    public void toTicks_otherClockRoundsUp() {
+        final Ticker ticker = Ticker.forClock(FIXED_CLOCK);
+
+        Assert.assertEquals(NOW.toEpochMilli(), ticker.toTicks(NOW));
+        Assert.assertEquals(NOW.toEpochMilli() + 1, ticker.toTicks(NOW.plusNanos(1)));
+        Assert.assertEquals(NOW.toEpochMilli(), ticker.toTicks(NOW.minusNanos(1)));
+    }
+
+    @Test
+    public void toTicks_systemTickerRoundsUp() {
+        final Ticker ticker = Ticker.systemTicker(0);
+        final long before = ticker.read();
+        final long deadline = ticker.toTicks(Instant.now().plusSeconds(60));
+        final long after = ticker.read();
+
+        Assert.assertTrue(deadline >= before + 60_000);
+        Assert.assertTrue(deadline <= after + 60_001);
+    }
+
+    @Test
+    public void toTicks_cachedTickerDoesNotLag() throws InterruptedException {
+        final Ticker ticker = Ticker.systemTicker(10_000);
+        Thread.sleep(50);
+        final long before = Math.floorDiv(System.nanoTime(), 1_000_000);
+        final long deadline = ticker.toTicks(Instant.now().plusSeconds(1));
+
+        // Allowing for the system clock moving on between the two calls, but not for the 50 ms the ticker lags
+        Assert.assertTrue(deadline >= before + 990);
+    }
+
+    @Test
+    public void toTicks_cachedTickerReachesPastInstantAtOnce() throws InterruptedException {
+        final Ticker ticker = Ticker.systemTicker(10_000);
+        Thread.sleep(50);
+
+        Assert.assertTrue(ticker.read() >= ticker.toTicks(Instant.now()));
+        Assert.assertTrue(ticker.read() >= ticker.toTicks(Instant.now().minusSeconds(1)));
+    }
+
+    @Test
+    public void read_systemTickerNeverDecreases() throws InterruptedException {
+        final Ticker ticker = Ticker.systemTicker(1);
+        final long first = ticker.read();
+        Thread.sleep(20);
+        final long second = ticker.read();
+
+        Assert.assertTrue(second > first);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void systemTicker_negativeResolutionThrows() {
+        Ticker.systemTicker(-1);
+    }
+}
@@ -0,0 +1,219 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private WriteAheadLog testLog;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath().resolve("log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (testLog != null) {
+            testLog.close();
+        }
+        testLog = null;
+        directory = null;
+    }
+
+    @Test
+    public void replay_nothingIfNew() throws IOException {
+        Assert.assertEquals(Collections.emptyList(), reopen(WriteAheadLog.SyncPolicy.NEVER));
+    }
+
+    @Test
+    public void replay_recordsInOrderOfAppending() throws IOException {
+        start(WriteAheadLog.SyncPolicy.INTERVAL);
+        testLog.append(bytes("first"));
+        testLog.append(bytes("second"));
+
+        Assert.assertEquals(Arrays.asList("first", "second"), reopen(WriteAheadLog.SyncPolicy.NEVER));
+    }
+
+    @Test
+    public void replay_recordsOfEarlierStarts() throws IOException {
+        start(WriteAheadLog.SyncPolicy.NEVER);
+        testLog.append(bytes("before"));
+        reopen(WriteAheadLog.SyncPolicy.NEVER);
+        testLog.start();
+        testLog.append(bytes("after"));
+
+        Assert.assertEquals(Arrays.asList("before", "after"), reopen(WriteAheadLog.SyncPolicy.NEVER));
+        Assert.assertEquals(2, segments().size());
+    }
+
+    @Test
+    public void roll_laterRecordsInNewSegment() throws IOException {
+        start(WriteAheadLog.SyncPolicy.NEVER);
+        testLog.append(bytes("old"));
+        final long segment = testLog.roll();
+        testLog.append(bytes("new"));
+        testLog.deleteSegmentsBefore(segment);
+
+        Assert.assertEquals(Collections.singletonList("new"), reopen(WriteAheadLog.SyncPolicy.NEVER));
+        Assert.assertEquals(1, segments().size());
+    }
+
+    @Test
+    public void append_rollsOverToNewSegments() throws IOException {
+        testLog = WriteAheadLog.open(directory, WriteAheadLog.SyncPolicy.ALWAYS, Duration.ZERO, 64);
+        testLog.start();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add("record " + i);
+            testLog.append(bytes("record " + i));
+            testLog.awaitDurable(); // one write per record
+        }
+
+        Assert.assertTrue(segments().size() > 1);
+        Assert.assertEquals(expected, reopen(WriteAheadLog.SyncPolicy.NEVER));
+    }
+
+    @Test
+    public void awaitDurable_concurrentAppendsAllWritten() throws Exception {
+        start(WriteAheadLog.SyncPolicy.ALWAYS);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                final int t = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        testLog.append(bytes(t + ":" + i));
+                        testLog.awaitDurable();
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final List<String> records = reopen(WriteAheadLog.SyncPolicy.NEVER);
+        Assert.assertEquals(800, records.size());
+        for (int thread = 0; thread < 8; thread++) { // each thread's records in its order
+            final String prefix = thread + ":";
+            final List<String> own = records.stream().filter(r -> r.startsWith(prefix)).collect(Collectors.toList());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(prefix + i, own.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void replay_cutsOffPartialRecordAtEnd() throws IOException {
+        start(WriteAheadLog.SyncPolicy.NEVER);
+        testLog.append(bytes("whole"));
+        testLog.append(bytes("partial"));
+        testLog.close();
+        testLog = null;
+
+        final Path segment = segments().get(0);
+        final long size = Files.size(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.truncate(size - 3);
+        }
+
+        Assert.assertEquals(Collections.singletonList("whole"), reopen(WriteAheadLog.SyncPolicy.NEVER));
+    }
+
+    @Test
+    public void replay_cutsOffCorruptRecordAtEnd() throws IOException {
+        start(WriteAheadLog.SyncPolicy.NEVER);
+        testLog.append(bytes("whole"));
+        testLog.append(bytes("corrupt"));
+        testLog.close();
+        testLog = null;
+
+        final Path segment = segments().get(0);
+        final byte[] contents = Files.readAllBytes(segment);
+        contents[contents.length - 1] ^= 1;
+        Files.write(segment, contents);
+
+        Assert.assertEquals(Collections.singletonList("whole"), reopen(WriteAheadLog.SyncPolicy.NEVER));
+    }
+
+    @Test(expected = IOException.class)
+    public void replay_corruptRecordBeforeEndThrows() throws IOException {
+        testLog = WriteAheadLog.open(directory, WriteAheadLog.SyncPolicy.NEVER, Duration.ZERO, 32);
+        testLog.start();
+        for (int i = 0; i < 10; i++) {
+            testLog.append(bytes("record " + i));
+        }
+        testLog.close();
+        testLog = null;
+
+        final Path first = segments().get(0);
+        final byte[] contents = Files.readAllBytes(first);
+        contents[contents.length - 1] ^= 1;
+        Files.write(first, contents);
+
+        reopen(WriteAheadLog.SyncPolicy.NEVER);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void append_notStartedThrows() throws IOException {
+        testLog = WriteAheadLog.open(directory, WriteAheadLog.SyncPolicy.NEVER, Duration.ZERO, 1024);
+        testLog.append(bytes("record"));
+    }
+
+    private void start(WriteAheadLog.SyncPolicy syncPolicy) throws IOException {
+        testLog = WriteAheadLog.open(directory, syncPolicy, Duration.ofMillis(10), WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        testLog.start();
+    }
+
+    /**
+     * Closes the log and returns the records that it replays when opened again.
+     */
+    private List<String> reopen(WriteAheadLog.SyncPolicy syncPolicy) throws IOException {
+        if (testLog != null) {
+            testLog.close();
+        }
+        final List<String> records = new ArrayList<>();
+        testLog = WriteAheadLog.open(directory, syncPolicy, Duration.ZERO, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        testLog.replay(record -> records.add(new String(record, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String record) {
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+}
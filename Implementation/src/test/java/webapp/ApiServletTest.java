@@ -0,0 +1,344 @@
+package webapp;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import system.Message;
+import system.MessagingSystem;
+import system.StatusCodes;
+import util.Utils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiServletTest {
+
+    private static final String AGENT_ID = "1234xy";
+    private static final String TARGET_ID = "5678zw";
+    private static final String LOGIN_KEY = Utils.getNCharacters(10, "1");
+    private static final String TARGET_LOGIN_KEY = Utils.getNCharacters(10, "2");
+    private static final String OTHER_LOGIN_KEY = Utils.getNCharacters(10, "3");
+    private static final int MAX_MESSAGES_SENT = 25;
+
+    private MessagingSystem messagingSystem;
+    private String sessionKey;
+    private String targetSessionKey;
+    private StringWriter responseBody;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    @Before
+    public void setUp() throws IOException {
+        messagingSystem = new MessagingSystem();
+        messagingSystem.registerLoginKey(AGENT_ID, LOGIN_KEY);
+        sessionKey = messagingSystem.login(AGENT_ID, LOGIN_KEY);
+        messagingSystem.registerLoginKey(TARGET_ID, TARGET_LOGIN_KEY);
+        targetSessionKey = messagingSystem.login(TARGET_ID, TARGET_LOGIN_KEY);
+        responseBody = new StringWriter();
+        when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+    }
+
+    @After
+    public void tearDown() {
+        messagingSystem = null;
+        sessionKey = null;
+        targetSessionKey = null;
+        responseBody = null;
+        mockRequest = null;
+        mockResponse = null;
+    }
+
+    @Test
+    public void register_returnsLoginKey() throws Exception {
+        post("/register", "{\"agentId\": \"9999ab\"}");
+
+        final Map<?, ?> result = response(HttpServletResponse.SC_OK, StatusCodes.OK);
+        Assert.assertNotNull(messagingSystem.login("9999ab", (String) result.get("loginKey")));
+    }
+
+    @Test
+    public void register_refusedForSpy() throws Exception {
+        post("/register", "{\"agentId\": \"spy-1234\"}");
+
+        response(HttpServletResponse.SC_FORBIDDEN, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void register_missingAgentId() throws Exception {
+        post("/register", "{\"agentId\": 1234}");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void login_returnsSessionKey() throws Exception {
+        messagingSystem.registerLoginKey("9999ab", OTHER_LOGIN_KEY);
+        post("/login", "{\"agentId\": \"9999ab\", \"loginKey\": \"" + OTHER_LOGIN_KEY + "\"}");
+
+        final Map<?, ?> result = response(HttpServletResponse.SC_OK, StatusCodes.OK);
+        Assert.assertNotNull(messagingSystem.authenticate((String) result.get("sessionKey"), "9999ab"));
+    }
+
+    @Test
+    public void login_incorrectLoginKey() throws Exception {
+        messagingSystem.registerLoginKey("9999ab", OTHER_LOGIN_KEY);
+        post("/login", "{\"agentId\": \"9999ab\", \"loginKey\": \"x" + OTHER_LOGIN_KEY + "\"}");
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void doPost_malformedBody() throws Exception {
+        post("/register", "{\"agentId\": ");
+
+        Assert.assertEquals("The body is not valid JSON.",
+                response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR).get("error"));
+    }
+
+    @Test
+    public void doPost_bodyNotAnObject() throws Exception {
+        post("/register", "[\"" + AGENT_ID + "\"]");
+
+        Assert.assertEquals("The body must be a JSON object.",
+                response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR).get("error"));
+    }
+
+    @Test
+    public void doPost_unknownResource() throws Exception {
+        post("/unknown", null);
+
+        response(HttpServletResponse.SC_NOT_FOUND, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void doGet_unknownResource() throws Exception {
+        get("/unknown", null);
+
+        response(HttpServletResponse.SC_NOT_FOUND, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void send_deliversMessage() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_OK, StatusCodes.OK);
+        final Message message = messagingSystem.getNextMessage(targetSessionKey, TARGET_ID);
+        Assert.assertEquals(AGENT_ID, message.getSourceAgentId());
+        Assert.assertEquals("Hello", message.getMessage());
+    }
+
+    @Test
+    public void send_missingSessionHeader() throws Exception {
+        authenticateAs(AGENT_ID, null);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.SESSION_KEY_UNRECOGNIZED);
+        Assert.assertFalse(messagingSystem.agentHasMessages(TARGET_ID));
+    }
+
+    @Test
+    public void send_invalidSessionKey() throws Exception {
+        authenticateAs(AGENT_ID, "x" + sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.SESSION_KEY_UNRECOGNIZED);
+        Assert.assertFalse(messagingSystem.agentHasMessages(TARGET_ID));
+    }
+
+    @Test
+    public void send_loggedOutIsNotLoggedIn() throws Exception {
+        messagingSystem.logout(AGENT_ID);
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.SOURCE_AGENT_NOT_LOGGED_IN);
+        Assert.assertFalse(messagingSystem.agentHasMessages(TARGET_ID));
+    }
+
+    @Test
+    public void send_unknownAgentDoesNotExist() throws Exception {
+        authenticateAs("9999ab", sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.SOURCE_AGENT_DOES_NOT_EXIST);
+        Assert.assertFalse(messagingSystem.agentHasMessages(TARGET_ID));
+    }
+
+    @Test
+    public void send_missingMessage() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\"}");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void send_targetDoesNotExistIsNotFound() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"nobody\", \"message\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_NOT_FOUND, StatusCodes.TARGET_AGENT_DOES_NOT_EXIST);
+    }
+
+    @Test
+    public void send_messageTooLongIsBadRequest() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"" + Utils.getNCharacters(141, "a") + "\"}");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.MESSAGE_LENGTH_EXCEEDED);
+    }
+
+    @Test
+    public void send_quotaExceededIsTooManyRequests() throws Exception {
+        for (int i = 0; i < MAX_MESSAGES_SENT; i++) {
+            Assert.assertEquals(StatusCodes.OK, messagingSystem.sendMessage(sessionKey, AGENT_ID, TARGET_ID, "Hi"));
+        }
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages", "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hello\"}");
+
+        response(429, StatusCodes.BOTH_AGENT_QUOTAS_EXCEEDED);
+    }
+
+    @Test
+    public void sendBatch_returnsStatusOfEachMessage() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages/batch", "{\"messages\": ["
+                + "{\"to\": \"" + TARGET_ID + "\", \"message\": \"First\"}, "
+                + "{\"to\": \"nobody\", \"message\": \"Second\"}, "
+                + "{\"to\": \"" + TARGET_ID + "\"}, "
+                + "\"Fourth\", "
+                + "{\"to\": \"" + TARGET_ID + "\", \"message\": \"Fifth\"}]}");
+
+        final Map<?, ?> result = response(HttpServletResponse.SC_OK, StatusCodes.OK);
+        Assert.assertArrayEquals(new Object[]{StatusCodes.OK.name(), StatusCodes.TARGET_AGENT_DOES_NOT_EXIST.name(),
+                        StatusCodes.GENERIC_ERROR.name(), StatusCodes.GENERIC_ERROR.name(), StatusCodes.OK.name()},
+                (Object[]) result.get("statuses"));
+        Assert.assertEquals("First", messagingSystem.getNextMessage(targetSessionKey, TARGET_ID).getMessage());
+        Assert.assertEquals("Fifth", messagingSystem.getNextMessage(targetSessionKey, TARGET_ID).getMessage());
+    }
+
+    @Test
+    public void sendBatch_missingMessages() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages/batch", "{\"messages\": \"Hello\"}");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void sendBatch_tooManyMessages() throws Exception {
+        final StringBuilder messages = new StringBuilder();
+        for (int i = 0; i <= ApiServlet.MAX_MESSAGES_PER_REQUEST; i++) {
+            messages.append(i == 0 ? "" : ", ").append("{\"to\": \"" + TARGET_ID + "\", \"message\": \"Hi\"}");
+        }
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/messages/batch", "{\"messages\": [" + messages + "]}");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+        Assert.assertFalse(messagingSystem.agentHasMessages(TARGET_ID));
+    }
+
+    @Test
+    public void consume_returnsUpToMaxMessages() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            messagingSystem.sendMessage(targetSessionKey, TARGET_ID, AGENT_ID, "Msg " + i);
+        }
+        authenticateAs(AGENT_ID, sessionKey);
+        get("/messages", "2");
+
+        final Object[] messages = (Object[]) response(HttpServletResponse.SC_OK, StatusCodes.OK).get("messages");
+        Assert.assertEquals(2, messages.length);
+        Assert.assertEquals("Msg 0", ((Map<?, ?>) messages[0]).get("message"));
+        Assert.assertEquals(TARGET_ID, ((Map<?, ?>) messages[1]).get("from"));
+        Assert.assertEquals("Msg 2", messagingSystem.getNextMessage(sessionKey, AGENT_ID).getMessage());
+    }
+
+    @Test
+    public void consume_nonPositiveMax() throws Exception {
+        messagingSystem.sendMessage(targetSessionKey, TARGET_ID, AGENT_ID, "Hello");
+        authenticateAs(AGENT_ID, sessionKey);
+        get("/messages", "0");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+        Assert.assertTrue(messagingSystem.agentHasMessages(AGENT_ID));
+    }
+
+    @Test
+    public void consume_nonNumericMax() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        get("/messages", "many");
+
+        response(HttpServletResponse.SC_BAD_REQUEST, StatusCodes.GENERIC_ERROR);
+    }
+
+    @Test
+    public void consume_missingAgentHeader() throws Exception {
+        authenticateAs(null, sessionKey);
+        get("/messages", null);
+
+        response(HttpServletResponse.SC_UNAUTHORIZED, StatusCodes.SOURCE_AGENT_DOES_NOT_EXIST);
+    }
+
+    @Test
+    public void logout_endsSession() throws Exception {
+        authenticateAs(AGENT_ID, sessionKey);
+        post("/logout", null);
+
+        response(HttpServletResponse.SC_OK, StatusCodes.OK);
+        Assert.assertFalse(messagingSystem.agentLoggedIn(AGENT_ID));
+    }
+
+    private void post(String path, String body) throws IOException {
+        when(mockRequest.getPathInfo()).thenReturn(path);
+        when(mockRequest.getContentLength()).thenReturn(body == null ? 0 : body.length());
+        if (body != null) {
+            when(mockRequest.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        }
+        new ApiServlet(messagingSystem).doPost(mockRequest, mockResponse);
+    }
+
+    private void get(String path, String max) throws IOException {
+        when(mockRequest.getPathInfo()).thenReturn(path);
+        if (max != null) {
+            when(mockRequest.getParameter("max")).thenReturn(max);
+        }
+        new ApiServlet(messagingSystem).doGet(mockRequest, mockResponse);
+    }
+
+    private void authenticateAs(String agentId, String sessionKey) {
+        when(mockRequest.getHeader(ApiServlet.AGENT_ID_HEADER)).thenReturn(agentId);
+        when(mockRequest.getHeader(ApiServlet.SESSION_KEY_HEADER)).thenReturn(sessionKey);
+    }
+
+    /**
+     * Checks the HTTP status and the status field of the response.
+     *
+     * @return The response body.
+     */
+    private Map<?, ?> response(int httpStatus, StatusCodes status) {
+        verify(mockResponse).setStatus(httpStatus);
+        verify(mockResponse).setContentType("application/json");
+        final Map<?, ?> result = (Map<?, ?>) JSON.parse(responseBody.toString());
+        Assert.assertEquals(status.name(), result.get("status"));
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package webapp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+import system.MessagingSystem;
+import util.Utils;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AuthFilterTest {
+
+    private static final String AGENT_ID = "1234xy";
+    private static final String LOGIN_KEY = Utils.getNCharacters(10, "1");
+
+    private MessagingSystem messagingSystem;
+    private String sessionKey;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+    @Mock
+    private HttpServletResponse mockResponse;
+    @Mock
+    private FilterChain mockChain;
+
+    @Before
+    public void setUp() {
+        messagingSystem = new MessagingSystem();
+        messagingSystem.registerLoginKey(AGENT_ID, LOGIN_KEY);
+        sessionKey = messagingSystem.login(AGENT_ID, LOGIN_KEY);
+    }
+
+    @After
+    public void tearDown() {
+        messagingSystem = null;
+        sessionKey = null;
+        mockRequest = null;
+        mockResponse = null;
+        mockChain = null;
+    }
+
+    @Test
+    public void doFilter_attachesSessionIfAuthenticated() throws Exception {
+        when(mockRequest.getCookies()).thenReturn(new Cookie[]{
+                new Cookie("JSESSIONID", "x"),
+                new Cookie(CookieNames.AGENT_ID.name(), AGENT_ID),
+                new Cookie(CookieNames.SESSION_KEY.name(), sessionKey)});
+
+        new AuthFilter(messagingSystem, true).doFilter(mockRequest, mockResponse, mockChain);
+
+        verify(mockChain).doFilter(mockRequest, mockResponse);
+        final AuthContext context = attachedContext();
+        Assert.assertEquals(AGENT_ID, context.getSession().getAgentId());
+        Assert.assertEquals(sessionKey, context.getCookie(CookieNames.SESSION_KEY).getValue());
+        Assert.assertNull(context.getCookie(CookieNames.LOGIN_KEY));
+    }
+
+    @Test
+    public void doFilter_redirectsIfNoCookies() throws Exception {
+        when(mockRequest.getCookies()).thenReturn(null);
+
+        new AuthFilter(messagingSystem, true).doFilter(mockRequest, mockResponse, mockChain);
+
+        verify(mockChain, never()).doFilter(mockRequest, mockResponse);
+        verify(mockResponse).sendRedirect("/register");
+        verify(mockResponse, never()).addCookie(Mockito.any());
+    }
+
+    @Test
+    public void doFilter_logsOutIfSessionNotRecognized() throws Exception {
+        when(mockRequest.getCookies()).thenReturn(new Cookie[]{
+                new Cookie(CookieNames.AGENT_ID.name(), AGENT_ID),
+                new Cookie(CookieNames.SESSION_KEY.name(), "x" + sessionKey)});
+
+        new AuthFilter(messagingSystem, true).doFilter(mockRequest, mockResponse, mockChain);
+
+        verify(mockChain, never()).doFilter(mockRequest, mockResponse);
+        verify(mockResponse).sendRedirect("/register");
+        final ArgumentCaptor<Cookie> cookies = ArgumentCaptor.forClass(Cookie.class);
+        verify(mockResponse, Mockito.times(3)).addCookie(cookies.capture());
+        Assert.assertEquals(0, cookies.getAllValues().get(0).getMaxAge());
+        Assert.assertEquals(0, cookies.getAllValues().get(1).getMaxAge());
+        Assert.assertEquals(CookieNames.LOGGED_OUT_STATUS.name(), cookies.getAllValues().get(2).getName());
+    }
+
+    @Test
+    public void doFilter_passesUnauthenticatedIfSessionOptional() throws Exception {
+        when(mockRequest.getCookies()).thenReturn(new Cookie[]{
+                new Cookie(CookieNames.AGENT_ID.name(), AGENT_ID)});
+
+        new AuthFilter(messagingSystem, false).doFilter(mockRequest, mockResponse, mockChain);
+
+        verify(mockChain).doFilter(mockRequest, mockResponse);
+        final AuthContext context = attachedContext();
+        Assert.assertNull(context.getSession());
+        Assert.assertFalse(context.hasSessionCookies());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void of_throwsIfNotFiltered() {
+        AuthContext.of(mockRequest);
+    }
+
+    private AuthContext attachedContext() {
+        final ArgumentCaptor<Object> context = ArgumentCaptor.forClass(Object.class);
+        verify(mockRequest).setAttribute(Mockito.anyString(), context.capture());
+        return (AuthContext) context.getValue();
+    }
+}
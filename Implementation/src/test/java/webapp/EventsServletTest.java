@@ -0,0 +1,208 @@
+package webapp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+import system.MessagingSystem;
+import system.StatusCodes;
+import util.Utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventsServletTest {
+
+    private static final String AGENT_ID = "1234xy";
+    private static final String SOURCE_ID = "5678zw";
+    private static final String LOGIN_KEY = Utils.getNCharacters(10, "1");
+    private static final String SOURCE_LOGIN_KEY = Utils.getNCharacters(10, "2");
+
+    private MessagingSystem messagingSystem;
+    private String sourceSessionKey;
+    private SlowClient client;
+    private List<Runnable> tasks; // started on the async context, run when the test says so
+
+    @Mock
+    private HttpServletRequest mockRequest;
+    @Mock
+    private HttpServletResponse mockResponse;
+    @Mock
+    private AsyncContext mockAsyncContext;
+
+    @Before
+    public void setUp() throws Exception {
+        messagingSystem = new MessagingSystem();
+        messagingSystem.registerLoginKey(AGENT_ID, LOGIN_KEY);
+        final String sessionKey = messagingSystem.login(AGENT_ID, LOGIN_KEY);
+        messagingSystem.registerLoginKey(SOURCE_ID, SOURCE_LOGIN_KEY);
+        sourceSessionKey = messagingSystem.login(SOURCE_ID, SOURCE_LOGIN_KEY);
+
+        final Cookie[] cookies = {
+                new Cookie(CookieNames.AGENT_ID.name(), AGENT_ID),
+                new Cookie(CookieNames.SESSION_KEY.name(), sessionKey)};
+        final AuthContext context = AuthContext.attach(mockRequest, AuthContext.parseCookies(cookies),
+                messagingSystem.authenticate(sessionKey, AGENT_ID));
+        when(mockRequest.getAttribute(AuthContext.class.getName())).thenReturn(context);
+        when(mockRequest.startAsync()).thenReturn(mockAsyncContext);
+        client = new SlowClient();
+        when(mockResponse.getOutputStream()).thenReturn(client);
+        tasks = new ArrayList<>();
+        Mockito.doAnswer(invocation -> tasks.add(invocation.getArgument(0)))
+                .when(mockAsyncContext).start(Mockito.any(Runnable.class));
+    }
+
+    @After
+    public void tearDown() {
+        messagingSystem = null;
+        sourceSessionKey = null;
+        client = null;
+        tasks = null;
+        mockRequest = null;
+        mockResponse = null;
+        mockAsyncContext = null;
+    }
+
+    @Test
+    public void doGet_streamsMessagesAsTheyArrive() throws Exception {
+        client.reading = true;
+        new EventsServlet(messagingSystem).doGet(mockRequest, mockResponse);
+
+        send("First");
+        runTasks();
+        send("Second");
+        runTasks();
+
+        final String events = client.received();
+        Assert.assertTrue(events.startsWith(": connected\n\n"));
+        Assert.assertTrue(events.indexOf("\"First\"") < events.indexOf("\"Second\""));
+        Assert.assertFalse(messagingSystem.agentHasMessages(AGENT_ID));
+    }
+
+    @Test
+    public void doGet_clientThatDoesNotReadHoldsNoThread() throws Exception {
+        new EventsServlet(messagingSystem).doGet(mockRequest, mockResponse);
+        Assert.assertEquals(": connected\n\n", client.received()); // and then the client stops reading
+
+        send("First");
+        runTasks(); // returns, rather than waiting for the client
+        send("Second");
+        runTasks();
+
+        // Nothing more was written, nor consumed from the mailbox, while the client was not ready
+        Assert.assertEquals(": connected\n\n", client.received());
+        Assert.assertTrue(messagingSystem.agentHasMessages(AGENT_ID));
+
+        client.read();
+        runTasks();
+        client.read();
+        runTasks();
+
+        final String events = client.received();
+        Assert.assertTrue(events.contains("\"First\"") && events.contains("\"Second\""));
+        Assert.assertFalse(messagingSystem.agentHasMessages(AGENT_ID));
+        verify(mockAsyncContext, never()).complete();
+    }
+
+    @Test
+    public void doGet_logoutEventWaitsForClientThenCompletes() throws Exception {
+        new EventsServlet(messagingSystem).doGet(mockRequest, mockResponse);
+        client.read();
+        client.read(); // up to date, and then the client stops reading again
+
+        messagingSystem.logout(AGENT_ID); // wakes the stream up, which finds the agent logged out
+        runTasks();
+        verify(mockAsyncContext, never()).complete();
+
+        client.read();
+        client.read();
+        Assert.assertTrue(client.received().endsWith("event: logout\ndata: \n\n"));
+        verify(mockAsyncContext).complete();
+    }
+
+    private void send(String message) {
+        Assert.assertEquals(StatusCodes.OK,
+                messagingSystem.sendMessage(sourceSessionKey, SOURCE_ID, AGENT_ID, message));
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    /**
+     * An output stream whose client only reads when told to: the stream is not ready again after a write
+     * or flush until the client has read, and, as in a container, must not be written to until then.
+     */
+    private static final class SlowClient extends ServletOutputStream {
+
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private boolean reading = false; // whether the client keeps up with everything
+        private boolean ready = true;
+
+        @Override
+        public synchronized boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.listener = writeListener;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            if (!ready) {
+                throw new IllegalStateException("Written to while not ready.");
+            }
+            received.write(bytes, offset, length);
+            ready = reading;
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (!ready) {
+                throw new IllegalStateException("Flushed while not ready.");
+            }
+            ready = reading;
+        }
+
+        /**
+         * Reads what has been written, after which the container tells the listener that it may write again.
+         */
+        void read() throws Exception {
+            synchronized (this) {
+                ready = true;
+            }
+            listener.onWritePossible();
+        }
+
+        synchronized String received() {
+            return new String(received.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
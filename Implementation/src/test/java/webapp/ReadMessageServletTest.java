@@ -0,0 +1,142 @@
+package webapp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+import system.MessagingSystem;
+import system.StatusCodes;
+import util.Utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReadMessageServletTest {
+
+    private static final String AGENT_ID = "1234xy";
+    private static final String SOURCE_ID = "5678zw";
+    private static final String LOGIN_KEY = Utils.getNCharacters(10, "1");
+    private static final String SOURCE_LOGIN_KEY = Utils.getNCharacters(10, "2");
+
+    private MessagingSystem messagingSystem;
+    private String sourceSessionKey;
+    private ReadMessageServlet servlet;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+    @Mock
+    private HttpServletResponse mockResponse;
+    @Mock
+    private AsyncContext mockAsyncContext;
+
+    @Before
+    public void setUp() {
+        messagingSystem = new MessagingSystem();
+        messagingSystem.registerLoginKey(AGENT_ID, LOGIN_KEY);
+        final String sessionKey = messagingSystem.login(AGENT_ID, LOGIN_KEY);
+        messagingSystem.registerLoginKey(SOURCE_ID, SOURCE_LOGIN_KEY);
+        sourceSessionKey = messagingSystem.login(SOURCE_ID, SOURCE_LOGIN_KEY);
+        servlet = new ReadMessageServlet(messagingSystem);
+
+        // As the filter would have attached it to the request
+        final Cookie[] cookies = {
+                new Cookie(CookieNames.AGENT_ID.name(), AGENT_ID),
+                new Cookie(CookieNames.SESSION_KEY.name(), sessionKey)};
+        final AuthContext context = AuthContext.attach(mockRequest, AuthContext.parseCookies(cookies),
+                messagingSystem.authenticate(sessionKey, AGENT_ID));
+        when(mockRequest.getAttribute(AuthContext.class.getName())).thenReturn(context);
+    }
+
+    @After
+    public void tearDown() {
+        messagingSystem = null;
+        sourceSessionKey = null;
+        servlet = null;
+        mockRequest = null;
+        mockResponse = null;
+        mockAsyncContext = null;
+    }
+
+    @Test
+    public void doGet_rendersMessageThatArrivesWhileWaiting() throws Exception {
+        final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        when(mockResponse.getOutputStream()).thenReturn(outputStream(page));
+        suspend();
+
+        Assert.assertEquals(StatusCodes.OK, messagingSystem.sendMessage(sourceSessionKey, SOURCE_ID, AGENT_ID, "Hi"));
+        verify(mockAsyncContext).dispatch();
+        servlet.doGet(mockRequest, mockResponse);
+
+        Assert.assertTrue(new String(page.toByteArray(), StandardCharsets.UTF_8).contains(">Hi</span>"));
+        verify(mockRequest, times(1)).startAsync();
+    }
+
+    @Test
+    public void doGet_logsOutIfLoggedOutWhileWaiting() throws Exception {
+        suspend();
+
+        messagingSystem.logout(AGENT_ID);
+        verify(mockAsyncContext).dispatch();
+        servlet.doGet(mockRequest, mockResponse);
+
+        // Logged out like the filter does, rather than waiting again for a session that has ended
+        verify(mockRequest, times(1)).startAsync();
+        verify(mockResponse).sendRedirect("/register");
+        final ArgumentCaptor<Cookie> cookies = ArgumentCaptor.forClass(Cookie.class);
+        verify(mockResponse, times(3)).addCookie(cookies.capture());
+        Assert.assertEquals(0, cookies.getAllValues().get(0).getMaxAge());
+        Assert.assertEquals(0, cookies.getAllValues().get(1).getMaxAge());
+        Assert.assertEquals(CookieNames.LOGGED_OUT_STATUS.name(), cookies.getAllValues().get(2).getName());
+        verify(mockResponse, never()).getOutputStream();
+    }
+
+    /**
+     * Reads from the empty mailbox with a wait, which suspends the request.
+     */
+    private void suspend() throws IOException {
+        when(mockRequest.getParameter(ReadMessageServlet.WAIT_PARAMETER)).thenReturn("3");
+        when(mockRequest.startAsync()).thenReturn(mockAsyncContext);
+
+        servlet.doGet(mockRequest, mockResponse);
+
+        verify(mockAsyncContext).setTimeout(Mockito.longThat(timeout -> timeout > 0 && timeout <= 3_000));
+        verify(mockAsyncContext, never()).dispatch();
+        verify(mockResponse, never()).sendRedirect(Mockito.anyString());
+    }
+
+    private static ServletOutputStream outputStream(ByteArrayOutputStream bytes) {
+        return new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                bytes.write(b);
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package webapp;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.DefaultHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class ServerConfigTest {
+
+    private Properties properties;
+    private Handler handler;
+
+    @Before
+    public void setUp() {
+        properties = new Properties();
+        handler = new DefaultHandler();
+    }
+
+    @After
+    public void tearDown() {
+        properties = null;
+        handler = null;
+    }
+
+    @Test
+    public void constructor_defaultsIfNoSettings() {
+        final ServerConfig config = new ServerConfig(properties);
+
+        Assert.assertEquals(StartJettyHandler.PORT_NUMBER, config.port);
+        Assert.assertEquals(-1, config.acceptors);
+        Assert.assertTrue(config.keepAlive);
+        Assert.assertFalse(config.gzip);
+        Assert.assertFalse(config.h2c);
+    }
+
+    @Test
+    public void constructor_readsSettings() {
+        properties.setProperty("server.port", "9090");
+        properties.setProperty("server.maxThreads", "50");
+        properties.setProperty("server.keepAlive", "false");
+
+        final ServerConfig config = new ServerConfig(properties);
+        Assert.assertEquals(9090, config.port);
+        Assert.assertEquals(50, config.maxThreads);
+        Assert.assertFalse(config.keepAlive);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_notANumberThrows() {
+        properties.setProperty("server.maxThreads", "many");
+        new ServerConfig(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_notABooleanThrows() {
+        properties.setProperty("server.gzip", "yes");
+        new ServerConfig(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_minThreadsAboveMaxThreadsThrows() {
+        properties.setProperty("server.minThreads", "20");
+        properties.setProperty("server.maxThreads", "10");
+        new ServerConfig(properties);
+    }
+
+    @Test
+    public void createServer_appliesSettings() {
+        properties.setProperty("server.port", "9090");
+        properties.setProperty("server.minThreads", "4");
+        properties.setProperty("server.maxThreads", "16");
+        properties.setProperty("server.acceptors", "1");
+        properties.setProperty("server.selectors", "2");
+        properties.setProperty("server.idleTimeout", "5000");
+        properties.setProperty("server.acceptQueueSize", "128");
+        properties.setProperty("server.keepAlive", "false");
+
+        final Server server = new ServerConfig(properties).createServer(handler);
+        final QueuedThreadPool threadPool = (QueuedThreadPool) server.getThreadPool();
+        final ServerConnector connector = (ServerConnector) server.getConnectors()[0];
+        Assert.assertEquals(4, threadPool.getMinThreads());
+        Assert.assertEquals(16, threadPool.getMaxThreads());
+        Assert.assertEquals(9090, connector.getPort());
+        Assert.assertEquals(1, connector.getAcceptors());
+        Assert.assertEquals(2, connector.getSelectorManager().getSelectorCount());
+        Assert.assertEquals(5000, connector.getIdleTimeout());
+        Assert.assertEquals(128, connector.getAcceptQueueSize());
+        Assert.assertFalse(connector.getConnectionFactory(HttpConnectionFactory.class)
+                .getHttpConfiguration().isPersistentConnectionsEnabled());
+        Assert.assertSame(handler, server.getHandler());
+    }
+
+    @Test
+    public void createServer_gzipWrapsHandler() {
+        properties.setProperty("server.gzip", "true");
+
+        final Server server = new ServerConfig(properties).createServer(handler);
+        Assert.assertTrue(server.getHandler() instanceof GzipHandler);
+        Assert.assertSame(handler, ((GzipHandler) server.getHandler()).getHandler());
+    }
+
+    @Test
+    public void createServer_h2cAddsProtocol() {
+        properties.setProperty("server.h2c", "true");
+
+        final Server server = new ServerConfig(properties).createServer(handler);
+        Assert.assertTrue(server.getConnectors()[0].getProtocols().contains("h2c"));
+    }
+
+    @Test
+    public void describe_includesSettings() {
+        properties.setProperty("server.acceptors", "1");
+        properties.setProperty("server.gzip", "true");
+
+        final String description = ServerConfig.describe(new ServerConfig(properties).createServer(handler));
+        Assert.assertTrue(description.contains("acceptors=1"));
+        Assert.assertTrue(description.contains("gzip=minSize 256"));
+    }
+}
@@ -0,0 +1,107 @@
+package webapp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TemplateTest {
+
+    private ByteArrayOutputStream output;
+
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new ByteArrayOutputStream();
+        when(mockResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                output.write(b);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        output = null;
+        mockResponse = null;
+    }
+
+    @Test
+    public void render_replacesPlaceholdersInOrder() throws IOException {
+        Template.compile("<h1>{{a}}</h1><p>{{b}}</p>").render(mockResponse, "first", "second");
+
+        Assert.assertEquals("<h1>first</h1><p>second</p>", rendered());
+    }
+
+    @Test
+    public void render_escapesValues() throws IOException {
+        Template.compile("<p>{{a}}</p>").render(mockResponse, "<script>alert(\"x\" & 'y')</script>");
+
+        Assert.assertEquals("<p>&lt;script&gt;alert(&quot;x&quot; &amp; &#39;y&#39;)&lt;/script&gt;</p>", rendered());
+    }
+
+    @Test
+    public void render_leavesOutNullValues() throws IOException {
+        Template.compile("<p>{{a}}</p>").render(mockResponse, (String) null);
+
+        Assert.assertEquals("<p></p>", rendered());
+    }
+
+    @Test
+    public void render_setsContentLengthInBytes() throws IOException {
+        Template.compile("<p>\u00e9 {{a}}</p>").render(mockResponse, "\u20ac");
+
+        Mockito.verify(mockResponse).setContentType("text/html;charset=UTF-8");
+        Mockito.verify(mockResponse).setContentLength(output.size());
+        Assert.assertEquals("<p>\u00e9 \u20ac</p>", rendered());
+    }
+
+    @Test
+    public void render_withoutPlaceholders() throws IOException {
+        Template.compile("<p>static</p>").render(mockResponse);
+
+        Assert.assertEquals("<p>static</p>", rendered());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void render_wrongNumberOfValuesThrows() throws IOException {
+        Template.compile("<p>{{a}}</p>").render(mockResponse, "first", "second");
+    }
+
+    @Test
+    public void escape_sameInstanceIfNothingToEscape() {
+        final String text = "nothing to escape";
+
+        Assert.assertSame(text, Template.escape(text));
+    }
+
+    private String rendered() {
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}